@@ -5,19 +5,47 @@ import org.apache.commons.lang.StringUtils;
 import play.Logger;
 import play.modules.storage.ISObject;
 import play.modules.storage.StoragePlugin;
+import play.modules.storage.impl.SObject;
 import play.mvc.Controller;
+import play.mvc.Http;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.Vector;
 
 public class Pictures extends Controller {
 
+    /**
+     * Requests with more ranges than this are answered with the full body
+     */
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * Max number of thumbnails returned by one {@link #getThumbnails} call
+     */
+    private static final int MAX_THUMBNAILS = 200;
+
+    private static final String CONTENT_TYPE = "image";
+
     public static void get(String id) {
-        if (StringUtils.isNumeric(id)) {
-            Long l = Long.valueOf(id);
+        Long l = id_(id);
+        if (null != l) {
             getById_(l);
         } else {
             getByKey_(id);
@@ -26,16 +54,93 @@ public class Pictures extends Controller {
 
     public static void getThumbnail(String id) {
         Picture pic;
-        if (StringUtils.isNumeric(id)) {
-            Long l = Long.valueOf(id);
+        Long l = id_(id);
+        if (null != l) {
             pic = Picture.findById(l);
         } else {
             pic = Picture.find("byKey", id).first();
         }
+        notFoundIfNull(pic);
 
         byte[] data = pic.thumbnail;
-        InputStream is = new ByteArrayInputStream(data);
-        renderBinary(is);
+        render_(SObject.asSObject(id, data));
+    }
+
+    /**
+     * Return the thumbnails of many pictures in one response, loaded with a
+     * single query. <code>ids</code> is a comma separated list of picture ids
+     * and/or storage keys.
+     * <p/>
+     * The body is a sequence of frames, one per requested id in the
+     * requested order, each made of big endian fields:
+     * <pre>
+     * int    length of the id in bytes
+     * byte[] the id, UTF-8 encoded
+     * int    length of the thumbnail in bytes, -1 if not found
+     * byte[] the thumbnail
+     * </pre>
+     */
+    public static void getThumbnails(String ids) {
+        if (StringUtils.isBlank(ids)) {
+            badRequest();
+        }
+        String[] sa = ids.split(",");
+        if (sa.length > MAX_THUMBNAILS) {
+            error(413, "Too many thumbnails requested");
+        }
+        List<Long> idList = new ArrayList<Long>();
+        List<String> keyList = new ArrayList<String>();
+        for (int i = 0; i < sa.length; ++i) {
+            String id = sa[i].trim();
+            sa[i] = id;
+            Long l = id_(id);
+            if (null != l) {
+                idList.add(l);
+            } else {
+                keyList.add(id);
+            }
+        }
+        Map<String, byte[]> found = new HashMap<String, byte[]>();
+        for (Picture pic : Picture.findByIdsOrKeys(idList, keyList)) {
+            found.put(String.valueOf(pic.id), pic.thumbnail);
+            found.put(pic.path, pic.thumbnail);
+        }
+
+        Vector<InputStream> frames = new Vector<InputStream>();
+        try {
+            for (String id : sa) {
+                byte[] data = found.get(id);
+                ByteArrayOutputStream header = new ByteArrayOutputStream(id.length() + 8);
+                DataOutputStream dos = new DataOutputStream(header);
+                byte[] idBytes = id.getBytes("UTF-8");
+                dos.writeInt(idBytes.length);
+                dos.write(idBytes);
+                dos.writeInt(null == data ? -1 : data.length);
+                frames.add(new ByteArrayInputStream(header.toByteArray()));
+                if (null != data) {
+                    frames.add(new ByteArrayInputStream(data));
+                }
+            }
+        } catch (IOException e) {
+            error(e);
+        }
+        response.contentType = "application/octet-stream";
+        renderBinary(new SequenceInputStream(frames.elements()));
+    }
+
+    /**
+     * @return the picture id, or <code>null</code> if the string is not a
+     * number that fits a long and should be taken as a key
+     */
+    private static Long id_(String s) {
+        if (!StringUtils.isNumeric(s) || s.length() == 0) {
+            return null;
+        }
+        try {
+            return Long.valueOf(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     private static void getById_(Long id) {
@@ -46,20 +151,256 @@ public class Pictures extends Controller {
     }
 
     private static void getByKey_(String key) {
-        ISObject sobj = StoragePlugin.service.get(key);
-        InputStream is = null;
+        // suspend the request rather than hold its thread during the I/O
+        ISObject sobj = await(StoragePlugin.asyncService.get(key));
+        notFoundIfNull(sobj);
+        render_(sobj);
+    }
+
+    /**
+     * Render the storage object, answering conditional requests with
+     * <code>304</code> and range requests with <code>206</code>
+     */
+    private static void render_(ISObject sobj) {
+        String key = sobj.getKey();
         try {
-            is = new BufferedInputStream(sobj.asInputStream());
-            response.contentType = "image";
-            renderBinary(is);
+            if (sobj.isFileBacked() && !sobj.asFile().exists()) {
+                notFound(key);
+            }
+            String etag = sobj.getETag();
+            long lastModified = sobj.getLastModified();
+            if (null != etag) {
+                response.setHeader("ETag", etag);
+            }
+            if (lastModified > 0) {
+                response.setHeader("Last-Modified", httpDate_(lastModified));
+            }
+            response.setHeader("Accept-Ranges", "bytes");
+            if (!isModified_(etag, lastModified)) {
+                notModified();
+            }
+
+            long len = sobj.getLength();
+            List<long[]> ranges = ranges_(len, etag, lastModified);
+            if (null == ranges) {
+                renderFull_(sobj);
+            }
+            if (ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + len);
+                error(416, "Requested range not satisfiable");
+            }
+            response.status = 206;
+            if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                response.contentType = CONTENT_TYPE;
+                response.setHeader("Content-Range", contentRange_(r, len));
+                renderBinary(open_(sobj, r[0], r[1] - r[0] + 1));
+            }
+            String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+            response.contentType = "multipart/byteranges; boundary=" + boundary;
+            renderBinary(new SequenceInputStream(new MultipartRanges_(sobj, ranges, len, boundary)));
         } catch (IOException e) {
             Logger.error(e, "Error retreive picture from storage by key [%1$s]", key);
             error(e);
         }
     }
 
+    /**
+     * Send the whole content. Play 1.2 gives the controller no access to the
+     * channel, so the body cannot be sent with {@link ISObject#transferTo};
+     * the server reads any stream or file in 8KB heap chunks. Files are not
+     * rendered as such because the server would then set its own
+     * <code>ETag</code> and <code>Last-Modified</code> over the ones set by
+     * {@link #render_}, and answer conditional requests with them
+     */
+    private static void renderFull_(ISObject sobj) {
+        response.contentType = CONTENT_TYPE;
+        InputStream is = open_(sobj, 0, -1);
+        // the server reads in chunks already, only buffer streams which
+        // could be read byte by byte
+        renderBinary(sobj.isFileBacked() ? is : new BufferedInputStream(is));
+    }
+
+    /**
+     * Open the content on the storage I/O threads, e.g. the S3 GET request
+     * up to its response headers, rather than on the request thread. The
+     * body is then read by the server as it writes the response
+     */
+    private static InputStream open_(ISObject sobj, long offset, long length) {
+        return await(StoragePlugin.asyncService.open(sobj, offset, length));
+    }
+
+    private static String header_(String name) {
+        Http.Header h = request.headers.get(name);
+        return null == h ? null : h.value();
+    }
+
+    /**
+     * @return <code>false</code> if the client copy identified by
+     * <code>If-None-Match</code> or <code>If-Modified-Since</code> is
+     * still current
+     */
+    private static boolean isModified_(String etag, long lastModified) {
+        String inm = header_("if-none-match");
+        if (null != inm) {
+            return null == etag || !etagMatches_(inm, etag);
+        }
+        String ims = header_("if-modified-since");
+        if (null != ims && lastModified > 0) {
+            long since = parseHttpDate_(ims);
+            // HTTP dates have second precision
+            return since < 0 || lastModified / 1000 > since / 1000;
+        }
+        return true;
+    }
+
+    private static boolean etagMatches_(String header, String etag) {
+        for (String s : header.split(",")) {
+            s = s.trim();
+            if (s.startsWith("W/")) s = s.substring(2);
+            if ("*".equals(s) || s.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parse the <code>Range</code> header against an object of the given
+     * length.
+     *
+     * @return <code>null</code> if the full body shall be served, an empty
+     * list if no range is satisfiable, otherwise the list of
+     * <code>{first, last}</code> byte positions
+     */
+    private static List<long[]> ranges_(long len, String etag, long lastModified) {
+        String range = header_("range");
+        if (null == range || len < 0) {
+            return null;
+        }
+        String ifRange = header_("if-range");
+        if (null != ifRange) {
+            ifRange = ifRange.trim();
+            boolean current = ifRange.startsWith("\"") ? ifRange.equals(etag)
+                    : lastModified > 0 && parseHttpDate_(ifRange) / 1000 == lastModified / 1000;
+            if (!current) {
+                return null;
+            }
+        }
+        range = range.trim();
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> l = new ArrayList<long[]>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first, last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, len - suffix);
+                    last = len - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? len - 1 : Math.min(len - 1, Long.parseLong(spec.substring(dash + 1)));
+                    if (last < first) return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < len) {
+                l.add(new long[]{first, last});
+            }
+        }
+        return l;
+    }
+
+    private static String contentRange_(long[] r, long len) {
+        return "bytes " + r[0] + "-" + r[1] + "/" + len;
+    }
+
+    private static SimpleDateFormat httpDateFormat_() {
+        SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return sdf;
+    }
+
+    private static String httpDate_(long time) {
+        return httpDateFormat_().format(new Date(time));
+    }
+
+    private static long parseHttpDate_(String s) {
+        try {
+            return httpDateFormat_().parse(s.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Produce the parts of a <code>multipart/byteranges</code> body. The
+     * stream of a range is opened only when the previous part has been sent
+     */
+    private static class MultipartRanges_ implements Enumeration<InputStream> {
+        private ISObject sobj_;
+        private List<long[]> ranges_;
+        private long len_;
+        private String boundary_;
+        private int next_ = 0;
+        private boolean body_ = false;
+
+        MultipartRanges_(ISObject sobj, List<long[]> ranges, long len, String boundary) {
+            sobj_ = sobj;
+            ranges_ = ranges;
+            len_ = len;
+            boundary_ = boundary;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next_ <= ranges_.size();
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (!hasMoreElements()) throw new NoSuchElementException();
+            if (next_ == ranges_.size()) {
+                ++next_;
+                return ascii_("\r\n--" + boundary_ + "--\r\n");
+            }
+            long[] r = ranges_.get(next_);
+            if (!body_) {
+                body_ = true;
+                return ascii_("\r\n--" + boundary_ + "\r\nContent-Type: " + CONTENT_TYPE
+                        + "\r\nContent-Range: " + contentRange_(r, len_) + "\r\n\r\n");
+            }
+            body_ = false;
+            ++next_;
+            try {
+                return sobj_.asInputStream(r[0], r[1] - r[0] + 1);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static InputStream ascii_(String s) {
+            try {
+                return new ByteArrayInputStream(s.getBytes("ISO-8859-1"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     public static void listOrphans() {
         List<Picture> list = Picture.findOrphans();
         render(list);
     }
-}
\ No newline at end of file
+}
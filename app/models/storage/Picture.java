@@ -6,16 +6,22 @@ import play.db.jpa.JPA;
 import play.db.jpa.Model;
 import play.exceptions.UnexpectedException;
 import play.jobs.Job;
-import play.libs.Images;
+import play.modules.storage.BatchResult;
+import play.modules.storage.ISObject;
+import play.modules.storage.ImagePipeline;
 import play.modules.storage.StoragePlugin;
 import play.modules.storage.impl.SObject;
 
-import javax.imageio.ImageIO;
 import javax.persistence.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 //@Entity
 //@Table(name = "pictures", uniqueConstraints = {@UniqueConstraint(columnNames = {
@@ -29,6 +35,14 @@ public class Picture extends Model {
     @Lob
     public byte[] thumbnail;
 
+    /**
+     * The comma separated names of the renditions stored in the storage
+     * service, so that they are all removed with the picture even if the
+     * configured sizes change. <code>null</code> for pictures stored before
+     * it was recorded
+     */
+    public String renditions;
+
     public static Picture add(File file) throws IOException {
         return Picture.add(file, -1, -1);
     }
@@ -39,6 +53,14 @@ public class Picture extends Model {
         return add(schema, file, normalLen, thumbnailLen);
     }
 
+    public static final String NORMAL = "normal";
+    public static final String THUMBNAIL = "thumbnail";
+
+    private static final String CONF_SIZE_PREFIX = "picture.size.";
+    private static final String CONF_SIZE_SUFFIX = ".length";
+
+    private static ImagePipeline pipeline_ = null;
+
     private transient Job removeJob_ = null;
 
     /**
@@ -64,86 +86,143 @@ public class Picture extends Model {
      */
     public static Picture add(String schema, File file, int normalLen,
                               int thumbnailLen) throws IOException {
-        File nFile = resize_(file, normalLen);
-        byte[] thumbnail = generateThumbnail_(file, thumbnailLen);
+        Map<String, Integer> sizes = sizes_();
+        if (normalLen >= 0) sizes.put(NORMAL, normalLen);
+        if (thumbnailLen >= 0) sizes.put(THUMBNAIL, thumbnailLen);
+        Map<String, byte[]> renditions = pipeline_().render(file, sizes);
 
         String key = newKey_(schema);
-        StoragePlugin.service.put(key, SObject.asSObject(key, nFile));
-        nFile.delete();
+        Map<String, ISObject> objects = new HashMap<String, ISObject>();
+        for (Map.Entry<String, byte[]> e : renditions.entrySet()) {
+            if (THUMBNAIL.equals(e.getKey())) continue;
+            String k = renditionKey(key, e.getKey());
+            objects.put(k, SObject.asSObject(k, e.getValue()));
+        }
+        if (1 == objects.size()) {
+            StoragePlugin.service.put(key, objects.get(key));
+        } else {
+            BatchResult<ISObject> result = StoragePlugin.service.putAll(objects);
+            if (result.hasErrors()) {
+                StoragePlugin.service.removeAll(result.getResults().keySet());
+                Throwable t = result.getErrors().values().iterator().next();
+                if (t instanceof IOException) throw (IOException) t;
+                throw new UnexpectedException(t);
+            }
+        }
 
         Picture pic = new Picture();
         pic.albumn = schema;
         pic.path = key;
-        pic.thumbnail = thumbnail;
+        pic.thumbnail = renditions.get(THUMBNAIL);
+        StringBuilder sb = new StringBuilder();
+        for (String rendition : renditions.keySet()) {
+            if (THUMBNAIL.equals(rendition)) continue;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(rendition);
+        }
+        pic.renditions = sb.toString();
         pic.save();
 
         return pic;
     }
 
+    /**
+     * @return the storage key of a rendition of the picture stored under the
+     * key, the key itself for the normal size
+     */
+    public static String renditionKey(String key, String rendition) {
+        return NORMAL.equals(rendition) ? key : key + "_" + rendition;
+    }
+
     private static class RemoveJob_ extends Job {
         String key_ = null;
+        String renditions_ = null;
 
-        RemoveJob_(String key) {
+        RemoveJob_(String key, String renditions) {
             key_ = key;
+            renditions_ = renditions;
         }
 
         public void doJob() throws Exception {
-            StoragePlugin.service.remove(key_);
+            Set<String> names = new HashSet<String>();
+            if (null == renditions_) {
+                // not recorded, the configured sizes are the best guess
+                names.addAll(sizes_().keySet());
+            } else {
+                names.addAll(Arrays.asList(renditions_.split(",")));
+            }
+            names.remove(THUMBNAIL);
+            names.remove("");
+            names.add(NORMAL);
+            if (1 == names.size()) {
+                StoragePlugin.service.delete(key_);
+                return;
+            }
+            List<String> keys = new ArrayList<String>();
+            for (String rendition : names) {
+                keys.add(renditionKey(key_, rendition));
+            }
+            StoragePlugin.service.removeAll(keys);
         }
     }
 
     @PostRemove
     public void removeFromStorage() {
-        removeJob_ = new RemoveJob_(path);
+        removeJob_ = new RemoveJob_(path, renditions);
     }
 
-    private static File resize_(File file, int len) {
-        if (len < 0) {
-            //len = StoragePlugin.conf.getInt("picture.size.normal.length");
-            len = 200;
+    /**
+     * The long side length of the renditions: the normal size stored in the
+     * storage service, the thumbnail stored with the picture and any other
+     * size configured as <code>picture.size.&lt;name&gt;.length</code>
+     */
+    private static Map<String, Integer> sizes_() {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        sizes.put(NORMAL, 200);
+        sizes.put(THUMBNAIL, 100);
+        for (String k : Play.configuration.stringPropertyNames()) {
+            if (k.startsWith(CONF_SIZE_PREFIX) && k.endsWith(CONF_SIZE_SUFFIX)
+                    && k.length() > CONF_SIZE_PREFIX.length() + CONF_SIZE_SUFFIX.length()) {
+                String name = k.substring(CONF_SIZE_PREFIX.length(), k.length() - CONF_SIZE_SUFFIX.length());
+                sizes.put(name, Integer.parseInt(Play.configuration.getProperty(k).trim()));
+            }
         }
+        return sizes;
+    }
 
-        try {
-            BufferedImage img = ImageIO.read(file);
-            int w = img.getWidth();
-            int h = img.getHeight();
-            if (Math.max(w, h) < len)
-                return file;
-            File nFile = File.createTempFile("pic_", null, Play.tmpDir);
-            if (h < w)
-                Images.resize(file, nFile, len, -1);
-            else
-                Images.resize(file, nFile, -1, len);
-            return nFile;
-        } catch (Exception e) {
-            throw new UnexpectedException(e);
+    private static synchronized ImagePipeline pipeline_() {
+        if (null == pipeline_) {
+            String s = Play.configuration.getProperty(ImagePipeline.CONF_THREADS);
+            int threads = null == s ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(s.trim());
+            pipeline_ = new ImagePipeline(threads);
         }
+        return pipeline_;
     }
 
     private static String newKey_(String schema) {
         return schema + File.separator + StoragePlugin.newKey();
     }
 
-    private static byte[] generateThumbnail_(File file, int len) {
-        if (len < 0) {
-            //len = StoragePlugin.conf.getInt("picture.size.thumbnail.length");
-            len = 100;
+    /**
+     * Load the pictures identified by id or by storage key with a single
+     * query, e.g. to render the thumbnails of a gallery page in one go
+     *
+     * @param ids  the picture ids
+     * @param keys the storage keys of the pictures
+     * @return the pictures found, in no particular order
+     */
+    public static List<Picture> findByIdsOrKeys(List<Long> ids, List<String> keys) {
+        if (ids.isEmpty() && keys.isEmpty()) {
+            return new ArrayList<Picture>();
         }
-
-        File nFile = resize_(file, len);
-
-        try {
-            return SObject.asSObject("", nFile).asByteArray();
-        } catch (Exception e) {
-            throw new UnexpectedException(e);
-        } finally {
-            if (null != nFile) {
-                try {
-                    nFile.delete();
-                } catch (Exception e) {
-                }
-            }
+        // an empty "in ()" is rejected by some databases
+        if (keys.isEmpty()) {
+            return Picture.find("id in (?1)", ids).fetch();
+        }
+        if (ids.isEmpty()) {
+            return Picture.find("path in (?1)", keys).fetch();
         }
+        return Picture.find("id in (?1) or path in (?2)", ids, keys).fetch();
     }
 
     public static List<Picture> findOrphans() {
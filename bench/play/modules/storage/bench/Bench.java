@@ -0,0 +1,186 @@
+package play.modules.storage.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Helpers shared by the storage benchmarks. A benchmark is a plain
+ * <code>main</code> class which warms up, measures a number of iterations of
+ * an operation and reports time, throughput and bytes allocated by the
+ * measuring thread. Results are also appended as JSON lines to the file
+ * named by the <code>bench.out</code> system property, if set.
+ */
+public class Bench {
+
+    /**
+     * An operation to be measured
+     */
+    public static interface Op {
+        /**
+         * @return number of payload bytes processed by this invocation
+         */
+        long run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean threads_ = threadBean_();
+
+    private static com.sun.management.ThreadMXBean threadBean_() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sb = (com.sun.management.ThreadMXBean) bean;
+            if (sb.isThreadAllocatedMemorySupported()) {
+                sb.setThreadAllocatedMemoryEnabled(true);
+                return sb;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far or <code>-1</code>
+     * if the JVM does not support allocation counting
+     */
+    public static long allocatedBytes() {
+        if (null == threads_) return -1;
+        return threads_.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Run the operation <code>warmup</code> times unmeasured, then
+     * <code>iterations</code> times measured, and print a report line
+     */
+    public static void measure(String name, int warmup, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; ++i) {
+            op.run();
+        }
+        long bytes = 0;
+        long alloc0 = allocatedBytes();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            bytes += op.run();
+        }
+        long t = System.nanoTime() - t0;
+        long alloc = allocatedBytes() - alloc0;
+        report(name, iterations, t, bytes, alloc0 < 0 ? -1 : alloc);
+    }
+
+    /**
+     * Run the operation <code>iterations</code> times on each of
+     * <code>threads</code> threads started together, after a warm up of
+     * <code>warmup</code> iterations per thread, and print a report line
+     * with the aggregated throughput and allocation
+     */
+    public static void measureConcurrent(String name, int threads, final int warmup, final int iterations, final Op op) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong alloc = new AtomicLong();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        for (int t = 0; t < threads; ++t) {
+            new Thread(name + "-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < warmup; ++i) {
+                            op.run();
+                        }
+                        start.await();
+                        long alloc0 = allocatedBytes();
+                        long n = 0;
+                        for (int i = 0; i < iterations; ++i) {
+                            n += op.run();
+                        }
+                        bytes.addAndGet(n);
+                        alloc.addAndGet(allocatedBytes() - alloc0);
+                    } catch (Exception e) {
+                        error.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.await();
+        long t0 = System.nanoTime();
+        done.await();
+        long t = System.nanoTime() - t0;
+        if (null != error.get()) throw error.get();
+        report(name + "/t" + threads, iterations * threads, t, bytes.get(), allocatedBytes() < 0 ? -1 : alloc.get());
+    }
+
+    /**
+     * Create an empty temporary directory
+     */
+    public static File tempDir(String prefix) throws IOException {
+        File f = File.createTempFile(prefix, "");
+        if (!f.delete() || !f.mkdir()) throw new IOException("cannot create " + f);
+        return f;
+    }
+
+    /**
+     * Print a report line and, if the <code>bench.out</code> system property
+     * names a file, append the result to it as a line of JSON
+     */
+    static void report(String name, int iterations, long nanos, long bytes, long alloc) {
+        double secs = nanos / 1e9;
+        double allocPerOp = alloc < 0 ? Double.NaN : (double) alloc / iterations;
+        System.out.println(String.format("%-40s %8d ops %10.1f ops/s %10.2f MB/s %12.1f B/op alloc",
+                name, iterations, iterations / secs, bytes / secs / (1024 * 1024), allocPerOp));
+        String out = System.getProperty("bench.out");
+        if (null == out || out.length() == 0) return;
+        String json = String.format(Locale.US,
+                "{\"name\":\"%s\",\"ops\":%d,\"nanos\":%d,\"bytes\":%d,\"opsPerSec\":%.3f,\"nanosPerOp\":%.1f,\"mbPerSec\":%.3f,\"allocPerOp\":%s,\"timestamp\":%d}",
+                name.replace("\\", "\\\\").replace("\"", "\\\""), iterations, nanos, bytes, iterations / secs,
+                (double) nanos / iterations, bytes / secs / (1024 * 1024),
+                alloc < 0 ? "null" : String.format(Locale.US, "%.1f", allocPerOp), System.currentTimeMillis());
+        synchronized (Bench.class) {
+            try {
+                Writer w = new OutputStreamWriter(new FileOutputStream(out, true), "UTF-8");
+                try {
+                    w.write(json);
+                    w.write('\n');
+                } finally {
+                    w.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("cannot write results to " + out, e);
+            }
+        }
+    }
+
+    /**
+     * Create a temporary file filled with <code>size</code> random bytes
+     */
+    public static File randomFile(int size) throws IOException {
+        File f = File.createTempFile("bench_", null);
+        f.deleteOnExit();
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(randomBytes(size));
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+
+    public static byte[] randomBytes(int size) {
+        byte[] buf = new byte[size];
+        new Random(size).nextBytes(buf);
+        return buf;
+    }
+
+    public static int intArg(String[] args, int i, int def) {
+        return args.length > i ? Integer.parseInt(args[i]) : def;
+    }
+}
@@ -0,0 +1,66 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.IStorageService;
+import play.modules.storage.impl.DedupStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measure put throughput and disk usage of {@link FileStorageService} with
+ * and without {@link DedupStorageService} when uploads are drawn from a
+ * small set of distinct payloads.
+ * <p/>
+ * Usage: <code>DedupBench [puts] [distinct-payloads] [size-in-KB]</code>
+ */
+public class DedupBench {
+
+    public static void main(String[] args) throws Exception {
+        int puts = Bench.intArg(args, 0, 2000);
+        int distinct = Bench.intArg(args, 1, 50);
+        int size = Bench.intArg(args, 2, 256) * 1024;
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+
+        final byte[][] payloads = new byte[distinct][];
+        for (int i = 0; i < distinct; ++i) {
+            payloads[i] = Bench.randomBytes(size + i);
+        }
+        for (String mode : new String[]{"plain", "dedup"}) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, mode);
+            conf.put("storage.url.root", "/s");
+            IStorageService fss = new FileStorageService(conf);
+            final IStorageService service = "dedup".equals(mode) ? new DedupStorageService(fss) : fss;
+            service.configure(conf);
+            final Random r = new Random(puts);
+            final int[] seq = {0};
+            Bench.measure("put/" + mode, 0, puts, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    byte[] data = payloads[r.nextInt(payloads.length)];
+                    String key = "k" + seq[0]++;
+                    service.put(key, SObject.asSObject(key, new ByteArrayInputStream(data)));
+                    return data.length;
+                }
+            });
+            System.out.println(String.format("%-40s %12d bytes on disk", "disk/" + mode, du_(new File(root, mode))));
+        }
+    }
+
+    private static long du_(File f) {
+        if (f.isFile()) return f.length();
+        long n = 0;
+        File[] files = f.listFiles();
+        if (null != files) {
+            for (File c : files) n += du_(c);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,356 @@
+package play.modules.storage.bench;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in memory S3 compatible endpoint on the loopback interface, enough
+ * for the S3 service to run offline: path style object PUT, GET with
+ * ranges, HEAD, DELETE, multi-object delete and multipart uploads.
+ * Signatures are not checked. Reads can be delayed with
+ * {@link #setLatency(long, double, long)} to stand for a service with a
+ * long latency tail.
+ * <p/>
+ * Point the S3 service to it with <code>storage.s3.endpoint</code>
+ */
+public class FakeS3 {
+
+    private static class Obj {
+        final byte[] data;
+        final String etag;
+        final long lastModified;
+        final Map<String, String> headers;
+
+        Obj(byte[] data, String etag, Map<String, String> headers) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = System.currentTimeMillis();
+            this.headers = headers;
+        }
+    }
+
+    private final Map<String, Obj> objects_ = new ConcurrentHashMap<String, Obj>();
+    private final Map<String, Map<Integer, byte[]>> uploads_ = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+    private final Map<String, Map<String, String>> uploadHeaders_ = new ConcurrentHashMap<String, Map<String, String>>();
+    private final AtomicLong uploadSeq_ = new AtomicLong();
+    private final AtomicLong gets_ = new AtomicLong();
+    private final AtomicLong bodyBytesSent_ = new AtomicLong();
+    private final HttpServer server_;
+    private final Random random_ = new Random();
+    private volatile long baseLatency_ = 0;
+    private volatile double slowFraction_ = 0;
+    private volatile long slowLatency_ = 0;
+
+    private static final Pattern KEY_ = Pattern.compile("<Key>(.*?)</Key>");
+
+    public FakeS3() throws IOException {
+        server_ = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server_.setExecutor(Executors.newCachedThreadPool());
+        server_.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    handle_(ex);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    reply_(ex, 500, error_("InternalError", String.valueOf(e)));
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+        server_.start();
+    }
+
+    /**
+     * @return the endpoint URL, e.g. <code>http://127.0.0.1:51234</code>
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server_.getAddress().getPort();
+    }
+
+    public void stop() {
+        server_.stop(0);
+    }
+
+    /**
+     * Delay each GET and HEAD by <code>baseMillis</code>, and a random
+     * <code>slowFraction</code> of them by <code>slowMillis</code> instead
+     */
+    public void setLatency(long baseMillis, double slowFraction, long slowMillis) {
+        baseLatency_ = baseMillis;
+        slowFraction_ = slowFraction;
+        slowLatency_ = slowMillis;
+    }
+
+    /**
+     * @return the number of object GET requests served, HEAD excluded
+     */
+    public long getGets() {
+        return gets_.get();
+    }
+
+    /**
+     * @return the number of object content bytes written to GET responses
+     * so far, as the client consumed them
+     */
+    public long getBodyBytesSent() {
+        return bodyBytesSent_.get();
+    }
+
+    private void delay_() {
+        long ms = random_.nextDouble() < slowFraction_ ? slowLatency_ : baseLatency_;
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle_(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        // path style: /bucket/key
+        String path = URLDecoder.decode(ex.getRequestURI().getRawPath(), "UTF-8");
+        int slash = path.indexOf('/', 1);
+        String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        String id = bucket + "/" + key;
+        Map<String, String> query = query_(ex.getRequestURI().getRawQuery());
+        Headers req = ex.getRequestHeaders();
+
+        if ("POST".equals(method) && query.containsKey("delete")) {
+            Matcher m = KEY_.matcher(new String(body_(ex), "UTF-8"));
+            while (m.find()) {
+                objects_.remove(bucket + "/" + unescape_(m.group(1)));
+            }
+            reply_(ex, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><DeleteResult></DeleteResult>");
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            String uploadId = "u" + uploadSeq_.incrementAndGet();
+            uploads_.put(uploadId, new TreeMap<Integer, byte[]>());
+            uploadHeaders_.put(uploadId, meta_(req));
+            reply_(ex, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><InitiateMultipartUploadResult><Bucket>" + bucket
+                    + "</Bucket><Key>" + escape_(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+            Map<Integer, byte[]> parts = uploads_.get(query.get("uploadId"));
+            if (null == parts) {
+                reply_(ex, 404, error_("NoSuchUpload", query.get("uploadId")));
+                return;
+            }
+            byte[] data = body_(ex);
+            synchronized (parts) {
+                parts.put(Integer.parseInt(query.get("partNumber")), data);
+            }
+            ex.getResponseHeaders().set("ETag", "\"" + md5_(data) + "\"");
+            reply_(ex, 200, null);
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            body_(ex);
+            String uploadId = query.get("uploadId");
+            Map<Integer, byte[]> parts = uploads_.remove(uploadId);
+            if (null == parts) {
+                reply_(ex, 404, error_("NoSuchUpload", uploadId));
+                return;
+            }
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            synchronized (parts) {
+                for (byte[] p : parts.values()) {
+                    all.write(p);
+                }
+            }
+            String etag = md5_(all.toByteArray()) + "-" + parts.size();
+            objects_.put(id, new Obj(all.toByteArray(), etag, uploadHeaders_.remove(uploadId)));
+            reply_(ex, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + id
+                    + "</Location><Bucket>" + bucket + "</Bucket><Key>" + escape_(key) + "</Key><ETag>&quot;" + etag
+                    + "&quot;</ETag></CompleteMultipartUploadResult>");
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+            uploads_.remove(query.get("uploadId"));
+            uploadHeaders_.remove(query.get("uploadId"));
+            reply_(ex, 204, null);
+        } else if ("PUT".equals(method)) {
+            byte[] data = body_(ex);
+            String etag = md5_(data);
+            objects_.put(id, new Obj(data, etag, meta_(req)));
+            ex.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+            reply_(ex, 200, null);
+        } else if ("DELETE".equals(method)) {
+            objects_.remove(id);
+            reply_(ex, 204, null);
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            delay_();
+            Obj o = objects_.get(id);
+            boolean head = "HEAD".equals(method);
+            if (null == o) {
+                reply_(ex, 404, head ? null : error_("NoSuchKey", key));
+                return;
+            }
+            Headers h = ex.getResponseHeaders();
+            for (Map.Entry<String, String> e : o.headers.entrySet()) {
+                h.set(e.getKey(), e.getValue());
+            }
+            h.set("ETag", "\"" + o.etag + "\"");
+            h.set("Last-Modified", httpDate_(o.lastModified));
+            h.set("Accept-Ranges", "bytes");
+            int from = 0, to = o.data.length - 1, status = 200;
+            String range = req.getFirst("Range");
+            if (null != range && range.startsWith("bytes=")) {
+                String[] r = range.substring(6).split("-", 2);
+                from = Integer.parseInt(r[0].trim());
+                if (r.length > 1 && r[1].trim().length() > 0) to = Math.min(to, Integer.parseInt(r[1].trim()));
+                h.set("Content-Range", "bytes " + from + "-" + to + "/" + o.data.length);
+                status = 206;
+            }
+            int len = Math.max(0, to - from + 1);
+            if (head) {
+                h.set("Content-Length", String.valueOf(o.data.length));
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            gets_.incrementAndGet();
+            ex.sendResponseHeaders(status, len == 0 ? -1 : len);
+            if (len > 0) {
+                // in slices, so that the count follows a client reading slowly
+                OutputStream os = ex.getResponseBody();
+                for (int off = from, end = from + len; off < end; off += 8192) {
+                    int n = Math.min(8192, end - off);
+                    os.write(o.data, off, n);
+                    bodyBytesSent_.addAndGet(n);
+                }
+                os.close();
+            }
+        } else {
+            reply_(ex, 405, error_("MethodNotAllowed", method));
+        }
+    }
+
+    /**
+     * The content type and user metadata sent with an object
+     */
+    private static Map<String, String> meta_(Headers req) {
+        Map<String, String> m = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> e : req.entrySet()) {
+            String name = e.getKey().toLowerCase(Locale.US);
+            if (name.startsWith("x-amz-meta-") || name.equals("content-type")) {
+                m.put(name, e.getValue().get(0));
+            }
+        }
+        return m;
+    }
+
+    private static Map<String, String> query_(String q) throws IOException {
+        Map<String, String> m = new HashMap<String, String>();
+        if (null == q) return m;
+        for (String p : q.split("&")) {
+            int eq = p.indexOf('=');
+            if (eq < 0) {
+                m.put(URLDecoder.decode(p, "UTF-8"), "");
+            } else {
+                m.put(URLDecoder.decode(p.substring(0, eq), "UTF-8"), URLDecoder.decode(p.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return m;
+    }
+
+    private static byte[] body_(HttpExchange ex) throws IOException {
+        InputStream is = ex.getRequestBody();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            os.write(buf, 0, n);
+        }
+        String sha = ex.getRequestHeaders().getFirst("x-amz-content-sha256");
+        return null != sha && sha.startsWith("STREAMING-") ? unchunk_(os.toByteArray()) : os.toByteArray();
+    }
+
+    /**
+     * Decode a body signed chunk by chunk, as SigV4 clients send it over
+     * plain HTTP: <code>size-in-hex;chunk-signature=...\r\n</code>, the
+     * data and <code>\r\n</code>, up to a chunk of size 0
+     */
+    private static byte[] unchunk_(byte[] body) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos < body.length) {
+            int eol = pos;
+            while (eol + 1 < body.length && !(body[eol] == '\r' && body[eol + 1] == '\n')) {
+                eol++;
+            }
+            String header = new String(body, pos, eol - pos);
+            int semi = header.indexOf(';');
+            int size = Integer.parseInt((semi < 0 ? header : header.substring(0, semi)).trim(), 16);
+            if (size == 0) break;
+            os.write(body, eol + 2, size);
+            pos = eol + 2 + size + 2;
+        }
+        return os.toByteArray();
+    }
+
+    private static void reply_(HttpExchange ex, int status, String xml) throws IOException {
+        if (null == xml) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] b = xml.getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "application/xml");
+        ex.sendResponseHeaders(status, b.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(b);
+        os.close();
+    }
+
+    private static String error_(String code, String message) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>"
+                + escape_(message) + "</Message><RequestId>fake</RequestId></Error>";
+    }
+
+    private static String md5_(byte[] data) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : d) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String httpDate_(long millis) {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f.format(new Date(millis));
+    }
+
+    private static String escape_(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String unescape_(String s) {
+        return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+    }
+}
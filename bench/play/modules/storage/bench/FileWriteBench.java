@@ -0,0 +1,51 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure the put throughput of {@link FileStorageService} in each of the
+ * <code>storage.file.sync</code> modes with concurrent writers. Objects
+ * have a content type so that puts to a directory append to its attribute
+ * log.
+ * <p/>
+ * Usage: <code>FileWriteBench [threads] [size-in-KB] [puts-per-thread]</code>
+ */
+public class FileWriteBench {
+
+    public static void main(String[] args) throws Exception {
+        int threads = Bench.intArg(args, 0, 8);
+        final int size = Bench.intArg(args, 1, 16) * 1024;
+        int iterations = Bench.intArg(args, 2, 500);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+
+        final byte[] data = Bench.randomBytes(size);
+        for (FileStorageService.SyncMode mode : FileStorageService.SyncMode.values()) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, mode.name().toLowerCase());
+            conf.put("storage.url.root", "/s");
+            conf.put(FileStorageService.CONF_SYNC, mode.name());
+            final FileStorageService fss = new FileStorageService(conf);
+            final AtomicLong seq = new AtomicLong();
+            Bench.measureConcurrent("put/" + mode.name().toLowerCase() + "/" + size, threads, 20, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    String key = "d" + (seq.get() & 15) + "/o" + seq.incrementAndGet();
+                    ISObject sobj = SObject.asSObject(key, data);
+                    // puts to the same directory share its attribute log
+                    sobj.setAttribute(ISObject.ATTR_CONTENT_TYPE, "application/octet-stream");
+                    fss.put(key, sobj);
+                    return size;
+                }
+            });
+        }
+    }
+}
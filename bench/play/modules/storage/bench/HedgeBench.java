@@ -0,0 +1,106 @@
+package play.modules.storage.bench;
+
+import play.modules.storage.impl.HedgedExecutor;
+import play.modules.storage.impl.S3Service;
+import play.modules.storage.impl.SObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure the tail latency of reads with and without hedging, for several
+ * hedge budgets. Reads take 2 ms, 2% of them 50 ms. By default the reads are
+ * simulated in process through {@link HedgedExecutor}; with <code>s3</code>
+ * as last argument they are GETs of {@link S3Service} on a {@link FakeS3}
+ * endpoint delayed the same way.
+ * <p/>
+ * Usage: <code>HedgeBench [iterations-per-thread] [threads] [s3]</code>
+ */
+public class HedgeBench {
+
+    private static final long BASE_MS = 2;
+    private static final double SLOW_FRACTION = 0.02;
+    private static final long SLOW_MS = 50;
+
+    /**
+     * The hedge budgets in percent, <code>0</code> for no hedging
+     */
+    private static final int[] BUDGETS = {0, 1, 5, 10};
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 500);
+        int threads = Bench.intArg(args, 1, 8);
+        boolean s3 = args.length > 2 && "s3".equals(args[2]);
+        if (s3) {
+            s3_(iterations, threads);
+        } else {
+            sim_(iterations, threads);
+        }
+    }
+
+    private static void sim_(int iterations, int threads) throws Exception {
+        final Random random = new Random();
+        final HedgedExecutor.Call<Object> read = new HedgedExecutor.Call<Object>() {
+            @Override
+            public Object call() throws Exception {
+                Thread.sleep(random.nextDouble() < SLOW_FRACTION ? SLOW_MS : BASE_MS);
+                return Boolean.TRUE;
+            }
+        };
+        for (int budget : BUDGETS) {
+            final HedgedExecutor executor = new HedgedExecutor("bench-hedge", 4 * threads, budget > 0, 95, 1,
+                    budget / 100.0, 1000);
+            Bench.measureConcurrent("read/sim/budget" + budget, threads, 50, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    executor.execute(read, null);
+                    return 0;
+                }
+            });
+            System.out.println("  " + executor);
+            executor.shutdown();
+        }
+    }
+
+    private static void s3_(int iterations, int threads) throws Exception {
+        FakeS3 fake = new FakeS3();
+        try {
+            final int objects = 100;
+            final byte[] data = Bench.randomBytes(4 * 1024);
+            for (int budget : BUDGETS) {
+                Map<String, String> conf = new HashMap<String, String>();
+                conf.put(S3Service.S3_KEY_ID, "bench");
+                conf.put(S3Service.S3_KEY_SECRET, "bench");
+                conf.put(S3Service.S3_BUCKET, "bench");
+                conf.put(S3Service.S3_ENDPOINT, fake.getEndpoint());
+                conf.put(S3Service.S3_READ_TIMEOUT, "1000");
+                conf.put(S3Service.S3_HEDGE_ENABLED, String.valueOf(budget > 0));
+                conf.put(S3Service.S3_HEDGE_BUDGET, String.valueOf(budget));
+                conf.put(S3Service.S3_HEDGE_MIN_DELAY, "1");
+                conf.put(S3Service.S3_READ_THREADS, String.valueOf(4 * threads));
+                final S3Service service = new S3Service();
+                service.configure(conf);
+                fake.setLatency(0, 0, 0);
+                for (int i = 0; i < objects; ++i) {
+                    service.put("k" + i, SObject.asSObject("k" + i, data));
+                }
+                fake.setLatency(BASE_MS, SLOW_FRACTION, SLOW_MS);
+                final AtomicInteger seq = new AtomicInteger();
+                // a HEAD and a GET per read
+                Bench.measureConcurrent("read/s3/budget" + budget, threads, 50, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        String key = "k" + seq.incrementAndGet() % objects;
+                        return service.get(key).asByteArray().length;
+                    }
+                });
+                System.out.println("  " + service);
+                service.close();
+            }
+        } finally {
+            fake.stop();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.libs.IO;
+import play.libs.Images;
+import play.modules.storage.IStorageService;
+import play.modules.storage.ImagePipeline;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure the picture processing done by <code>Picture.add</code>: the
+ * resize to the normal size and the thumbnail generation, each of which
+ * decodes the source image to read its dimensions and resizes it with
+ * {@link Images#resize}, compared to the single decode {@link ImagePipeline}
+ * used now. Whole uploads, the renditions stored in a file storage, are
+ * measured both ways in uploads per second and in peak heap per upload.
+ * <p/>
+ * Usage: <code>ImageBench [iterations] [width] [height] [normal-length] [thumbnail-length] [threads]</code>
+ */
+public class ImageBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 20);
+        int width = Bench.intArg(args, 1, 3264);
+        int height = Bench.intArg(args, 2, 2448);
+        final int normalLen = Bench.intArg(args, 3, 1024);
+        final int thumbnailLen = Bench.intArg(args, 4, 64);
+        int threads = Bench.intArg(args, 5, 4);
+        final File src = photo_(width, height);
+        final long size = src.length();
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "file");
+        conf.put("storage.url.root", "/s");
+        final IStorageService service = new FileStorageService(conf);
+        final ImagePipeline pipeline = new ImagePipeline(Runtime.getRuntime().availableProcessors());
+        final Map<String, Integer> sizes = new HashMap<String, Integer>();
+        sizes.put("normal", normalLen);
+        sizes.put("thumbnail", thumbnailLen);
+        final AtomicInteger seq = new AtomicInteger();
+        String dim = width + "x" + height;
+        try {
+            Bench.measure("picture/resize/" + width + "x" + height + "/" + normalLen, 2, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    resize_(src, normalLen).delete();
+                    return size;
+                }
+            });
+            Bench.measure("picture/thumbnail/" + width + "x" + height + "/" + thumbnailLen, 2, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    File f = resize_(src, thumbnailLen);
+                    f.delete();
+                    return size;
+                }
+            });
+            Bench.measure("picture/pipeline/" + dim, 2, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    pipeline.render(src, sizes);
+                    return size;
+                }
+            });
+
+            Bench.Op legacy = new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    // Picture.add before: two resize_ calls and a temp file read back
+                    File nFile = resize_(src, normalLen);
+                    File tFile = resize_(src, thumbnailLen);
+                    IO.readContent(tFile);
+                    tFile.delete();
+                    String key = "legacy/" + seq.incrementAndGet();
+                    service.put(key, SObject.asSObject(key, nFile));
+                    nFile.delete();
+                    return size;
+                }
+            };
+            Bench.Op single = new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    Map<String, byte[]> r = pipeline.render(src, sizes);
+                    String key = "pipeline/" + seq.incrementAndGet();
+                    service.put(key, SObject.asSObject(key, r.get("normal")));
+                    return size;
+                }
+            };
+            Bench.measureConcurrent("picture/upload/legacy/" + dim, threads, 1, iterations, legacy);
+            Bench.measureConcurrent("picture/upload/pipeline/" + dim, threads, 1, iterations, single);
+            peakHeap_("picture/upload/legacy/" + dim, legacy);
+            peakHeap_("picture/upload/pipeline/" + dim, single);
+        } finally {
+            pipeline.shutdown();
+            src.delete();
+        }
+    }
+
+    /**
+     * Print the heap used at the peak of one run of the operation above the
+     * heap used before it, after a full collection. The peaks of the heap
+     * pools are summed, they may not have been reached at the same time so
+     * this is an upper bound.
+     */
+    private static void peakHeap_(String name, Bench.Op op) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            long base = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP) continue;
+                pool.resetPeakUsage();
+                base += pool.getUsage().getUsed();
+            }
+            op.run();
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP) continue;
+                peak += pool.getPeakUsage().getUsed();
+            }
+            best = Math.min(best, peak - base);
+        }
+        System.out.println(String.format("%-40s %10.1f MB peak heap per upload", name, best / (1024.0 * 1024)));
+    }
+
+    // the steps of Picture.resize_
+    private static File resize_(File file, int len) throws Exception {
+        BufferedImage img = ImageIO.read(file);
+        int w = img.getWidth();
+        int h = img.getHeight();
+        File nFile = File.createTempFile("pic_", ".jpg");
+        if (h < w)
+            Images.resize(file, nFile, len, -1);
+        else
+            Images.resize(file, nFile, -1, len);
+        return nFile;
+    }
+
+    /**
+     * A JPEG with enough detail not to compress to nothing
+     */
+    private static File photo_(int w, int h) throws Exception {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        Random r = new Random(w * 31 + h);
+        for (int i = 0; i < 2000; ++i) {
+            g.setColor(new Color(r.nextInt(0xffffff)));
+            g.fillOval(r.nextInt(w), r.nextInt(h), 20 + r.nextInt(w / 8), 20 + r.nextInt(h / 8));
+        }
+        g.dispose();
+        File f = File.createTempFile("bench_", ".jpg");
+        ImageIO.write(img, "jpg", f);
+        return f;
+    }
+}
@@ -0,0 +1,50 @@
+package play.modules.storage.bench;
+
+import org.apache.commons.lang.RandomStringUtils;
+import play.modules.storage.StoragePlugin;
+import play.modules.storage.StoragePlugin.Structure;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * Measure the throughput of {@link StoragePlugin#newKey()} with 1 to 64
+ * threads, against the former implementation which generated names under a
+ * global lock and formatted the path with <code>String.format</code>.
+ * <p/>
+ * Usage: <code>KeyGenBench [keys-per-thread]</code>
+ */
+public class KeyGenBench {
+
+    private static final Object lock_ = new Object();
+
+    private static String legacyNewKey() {
+        String name;
+        synchronized (lock_) {
+            long l = System.currentTimeMillis();
+            String prefix = RandomStringUtils.randomAlphabetic(5);
+            name = prefix + String.valueOf(l);
+        }
+        return String.format("%2$tY%1$s%2$tm%1$s%2$td%1$s%3$s", File.separator, Calendar.getInstance(), name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 200000);
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Bench.measureConcurrent("newKey/legacy", threads, iterations / 10, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    legacyNewKey();
+                    return 0;
+                }
+            });
+            Bench.measureConcurrent("newKey/by_date", threads, iterations / 10, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    StoragePlugin.newKey(Structure.BY_DATE);
+                    return 0;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package play.modules.storage.bench;
+
+import play.modules.storage.StoragePlugin;
+import play.modules.storage.StoragePlugin.Structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measure file create and lookup latency under each key
+ * {@link Structure}, with all objects created on the same day as it happens
+ * with a burst of uploads.
+ * <p/>
+ * Usage: <code>KeyLayoutBench [objects] [lookups]</code>
+ */
+public class KeyLayoutBench {
+
+    public static void main(String[] args) throws Exception {
+        final int objects = Bench.intArg(args, 0, 1000000);
+        final int lookups = Bench.intArg(args, 1, 200000);
+        File root = Bench.tempDir("storage_bench");
+
+        for (final Structure structure : new Structure[]{Structure.BY_DATE, Structure.HASH_SHARDED, Structure.BY_DATE_HASHED}) {
+            final File dir = new File(root, structure.name().toLowerCase());
+            final String[] keys = new String[objects];
+            for (int i = 0; i < objects; ++i) {
+                keys[i] = StoragePlugin.newKey("o" + i, structure);
+            }
+            final int[] seq = {0};
+            Bench.measure("create/" + structure.name().toLowerCase(), 0, objects, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    File f = new File(dir, keys[seq[0]++]);
+                    try {
+                        f.createNewFile();
+                    } catch (IOException e) {
+                        f.getParentFile().mkdirs();
+                        f.createNewFile();
+                    }
+                    return 0;
+                }
+            });
+            final Random r = new Random(objects);
+            Bench.measure("lookup/" + structure.name().toLowerCase(), lookups / 10, lookups, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    if (!new File(dir, keys[r.nextInt(objects)]).exists()) throw new IllegalStateException();
+                    return 0;
+                }
+            });
+            // a miss scans the whole directory on file systems without an index
+            Bench.measure("miss/" + structure.name().toLowerCase(), lookups / 10, lookups, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    if (new File(dir, StoragePlugin.newKey("x" + r.nextInt(), structure)).exists()) throw new IllegalStateException();
+                    return 0;
+                }
+            });
+            System.out.println(String.format("%-40s %8d entries in the largest directory", "layout/" + structure.name().toLowerCase(), largest_(dir)));
+        }
+    }
+
+    private static int largest_(File dir) {
+        File[] files = dir.listFiles();
+        if (null == files) return 0;
+        int max = files.length;
+        for (File f : files) {
+            if (f.isDirectory()) max = Math.max(max, largest_(f));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,116 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measure the latency of {@link FileStorageService#remove(String)} and
+ * {@link FileStorageService#delete(String)} as the object size grows,
+ * against the former remove which copied the object into a temporary file
+ * before deleting it. Only the removal is timed, objects are created
+ * beforehand.
+ * <p/>
+ * Usage: <code>RemoveBench [removes-per-size]</code>
+ */
+public class RemoveBench {
+
+    private static abstract class Removal {
+        abstract void prepare(byte[] data) throws Exception;
+
+        abstract void remove() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 20);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "storage");
+        conf.put("storage.url.root", "/s");
+        final FileStorageService fss = new FileStorageService(conf);
+        final File legacy = new File(root, "legacy.obj");
+
+        Map<String, Removal> removals = new LinkedHashMap<String, Removal>();
+        removals.put("copy", new Removal() {
+            void prepare(byte[] data) throws Exception {
+                write_(legacy, data);
+            }
+
+            void remove() throws Exception {
+                copyThenDelete_(legacy);
+            }
+        });
+        removals.put("trash", new Removal() {
+            void prepare(byte[] data) throws Exception {
+                fss.put("d/o", SObject.asSObject("d/o", data));
+            }
+
+            void remove() throws Exception {
+                fss.remove("d/o");
+            }
+        });
+        removals.put("delete", new Removal() {
+            void prepare(byte[] data) throws Exception {
+                fss.put("d/o", SObject.asSObject("d/o", data));
+            }
+
+            void remove() throws Exception {
+                fss.delete("d/o");
+            }
+        });
+
+        for (int kb : new int[]{1, 64, 1024, 16 * 1024, 64 * 1024}) {
+            byte[] data = Bench.randomBytes(kb * 1024);
+            for (Map.Entry<String, Removal> e : removals.entrySet()) {
+                Removal r = e.getValue();
+                long nanos = 0;
+                for (int i = -2; i < iterations; ++i) {
+                    r.prepare(data);
+                    long t0 = System.nanoTime();
+                    r.remove();
+                    if (i >= 0) nanos += System.nanoTime() - t0;
+                }
+                Bench.report("remove/" + e.getKey() + "/" + kb + "KB", iterations, nanos, (long) data.length * iterations, -1);
+            }
+        }
+    }
+
+    // what remove used to do: copy the content aside, then delete the original
+    private static void copyThenDelete_(File f) throws IOException {
+        File tmp = File.createTempFile("sobj_", null);
+        InputStream is = new FileInputStream(f);
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        f.delete();
+        tmp.delete();
+    }
+
+    private static void write_(File f, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.IStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.ReplicatedStorageService;
+import play.modules.storage.impl.S3Service;
+import play.modules.storage.impl.SObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure {@link ReplicatedStorageService} over three local file storage
+ * roots, delayed by 1, 5 and 40 ms per call to stand for replicas of
+ * different speed: puts acknowledged by a quorum of 2 and of 3, reads
+ * served by the fastest replica, then the repair of a replica which was
+ * down during some puts. With <code>s3</code> as last argument a fourth
+ * replica on S3 against a {@link FakeS3} endpoint is added.
+ * <p/>
+ * Usage: <code>ReplicatedBench [iterations] [size-in-KB] [s3]</code>
+ */
+public class ReplicatedBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 200);
+        int size = Bench.intArg(args, 1, 64) * 1024;
+        boolean withS3 = args.length > 2 && "s3".equals(args[2]);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        final byte[] data = Bench.randomBytes(size);
+        FakeS3 fake = withS3 ? new FakeS3() : null;
+        try {
+            for (int quorum = 2; quorum <= 3; ++quorum) {
+                List<SlowStorageService> slow = new ArrayList<SlowStorageService>();
+                List<IStorageService> replicas = new ArrayList<IStorageService>();
+                int[] delays = {1, 5, 40};
+                for (int i = 0; i < delays.length; ++i) {
+                    Map<String, String> conf = new HashMap<String, String>();
+                    conf.put(FileStorageService.CONF_HOME, "q" + quorum + "-r" + i);
+                    conf.put("storage.url.root", "/s");
+                    SlowStorageService s = new SlowStorageService(new FileStorageService(conf), delays[i], delays[i]);
+                    slow.add(s);
+                    replicas.add(s);
+                }
+                if (null != fake) {
+                    Map<String, String> conf = new HashMap<String, String>();
+                    conf.put(S3Service.S3_KEY_ID, "bench");
+                    conf.put(S3Service.S3_KEY_SECRET, "bench");
+                    conf.put(S3Service.S3_BUCKET, "bench");
+                    conf.put(S3Service.S3_ENDPOINT, fake.getEndpoint());
+                    S3Service s3 = new S3Service();
+                    s3.configure(conf);
+                    replicas.add(s3);
+                }
+                Map<String, String> conf = new HashMap<String, String>();
+                conf.put(ReplicatedStorageService.CONF_WRITE_QUORUM, String.valueOf(quorum));
+                conf.put(ReplicatedStorageService.CONF_REPAIR_INTERVAL, "3600");
+                final ReplicatedStorageService service = new ReplicatedStorageService(replicas);
+                service.configure(conf);
+
+                final AtomicInteger seq = new AtomicInteger();
+                Bench.measure("put/replicated/w" + quorum, 5, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        String key = "k" + seq.incrementAndGet();
+                        service.put(key, SObject.asSObject(key, data));
+                        return data.length;
+                    }
+                });
+                final AtomicInteger read = new AtomicInteger();
+                Bench.measure("get/replicated/w" + quorum, 5, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        String key = "k" + (1 + read.incrementAndGet() % seq.get());
+                        return service.get(key).asByteArray().length;
+                    }
+                });
+
+                // the fastest replica goes down for a few puts
+                slow.get(0).failing = true;
+                int before = seq.get();
+                int failed = 0;
+                for (int i = 0; i < 20; ++i) {
+                    String key = "k" + seq.incrementAndGet();
+                    try {
+                        service.put(key, SObject.asSObject(key, data));
+                    } catch (IOException e) {
+                        // no quorum without the replica
+                        failed++;
+                    }
+                }
+                slow.get(0).failing = false;
+                Thread.sleep(200);
+                int pending = service.getPendingRepairs();
+                long t0 = System.nanoTime();
+                int repaired = service.repair();
+                int missing = 0;
+                for (int i = before + 1; i <= seq.get(); ++i) {
+                    if (!new File(root, "q" + quorum + "-r0/k" + i).exists()) missing++;
+                }
+                System.out.println(String.format("%-40s %8d puts failed, %d repairs pending, %d repaired in %.1f ms, %d still missing",
+                        "repair/replicated/w" + quorum, failed, pending, repaired, (System.nanoTime() - t0) / 1e6, missing));
+                System.out.println(service);
+                service.close();
+            }
+        } finally {
+            if (null != fake) fake.stop();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package play.modules.storage.bench;
+
+import play.modules.storage.impl.S3Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Run {@link StorageServiceBench} on {@link S3Service} against a
+ * {@link FakeS3} endpoint, so that the S3 code path is measured offline.
+ * The numbers include the HTTP round trips on the loopback interface but
+ * not the network latency of the real service.
+ * <p/>
+ * Usage: same as {@link StorageServiceBench}
+ */
+public class S3Bench {
+
+    public static void main(String[] args) throws Exception {
+        FakeS3 fake = new FakeS3();
+        try {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(S3Service.S3_KEY_ID, "bench");
+            conf.put(S3Service.S3_KEY_SECRET, "bench");
+            conf.put(S3Service.S3_BUCKET, "bench");
+            conf.put(S3Service.S3_ENDPOINT, fake.getEndpoint());
+            S3Service s3 = new S3Service();
+            s3.configure(conf);
+            StorageServiceBench.run("s3", s3, args);
+        } finally {
+            fake.stop();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package play.modules.storage.bench;
+
+import play.modules.storage.ISObject;
+import play.modules.storage.impl.SObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Measure <code>asByteArray</code>, <code>asInputStream</code> and
+ * <code>getLength</code> of every {@link SObject} variant for a range of
+ * content sizes. Stream backed objects are created per operation since
+ * their first access consumes the stream.
+ * <p/>
+ * Usage: <code>SObjectBench [iterations] [sizes-in-KB, comma separated]</code>
+ */
+public class SObjectBench {
+
+    /**
+     * Create the object to measure
+     */
+    private static interface Factory {
+        ISObject create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 2000);
+        String sizes = args.length > 1 ? args[1] : "1,64,1024";
+        for (String s : sizes.split(",")) {
+            final int size = Integer.parseInt(s.trim()) * 1024;
+            final byte[] data = Bench.randomBytes(size);
+            final File file = Bench.randomFile(size);
+            final String str = new String(data, "ISO-8859-1");
+            final ISObject fileObj = SObject.asSObject("k", file);
+            final ISObject bytesObj = SObject.asSObject("k", data);
+            final ISObject stringObj = SObject.asSObject("k", str);
+            final ISObject bufferObj = SObject.asSObject("k", ByteBuffer.wrap(data));
+            Factory[] factories = {
+                    new Factory() {
+                        public ISObject create() {
+                            return fileObj;
+                        }
+                    },
+                    new Factory() {
+                        public ISObject create() {
+                            return stringObj;
+                        }
+                    },
+                    new Factory() {
+                        public ISObject create() {
+                            return bytesObj;
+                        }
+                    },
+                    new Factory() {
+                        public ISObject create() {
+                            return bufferObj;
+                        }
+                    },
+                    new Factory() {
+                        public ISObject create() {
+                            return SObject.asSObject("k", new ByteArrayInputStream(data));
+                        }
+                    }
+            };
+            String[] names = {"file", "string", "bytes", "buffer", "stream"};
+            for (int i = 0; i < factories.length; ++i) {
+                final Factory f = factories[i];
+                String prefix = "sobject/" + names[i] + "/" + size + "/";
+                Bench.measure(prefix + "asByteArray", iterations / 10, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        return f.create().asByteArray().length;
+                    }
+                });
+                Bench.measure(prefix + "asInputStream", iterations / 10, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        return drain_(f.create().asInputStream());
+                    }
+                });
+                Bench.measure(prefix + "getLength", iterations / 10, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        f.create().getLength();
+                        return 0;
+                    }
+                });
+            }
+            file.delete();
+        }
+    }
+
+    private static long drain_(InputStream is) throws Exception {
+        byte[] buf = new byte[8192];
+        long n = 0;
+        int r;
+        try {
+            while ((r = is.read(buf)) != -1) {
+                n += r;
+            }
+        } finally {
+            is.close();
+        }
+        return n;
+    }
+}
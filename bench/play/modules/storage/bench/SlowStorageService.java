@@ -0,0 +1,93 @@
+package play.modules.storage.bench;
+
+import play.modules.storage.BatchResult;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Make a local storage as slow as a remote one: every get and put is
+ * delayed by a fixed time. Setting {@link #failing} makes every call fail
+ * like an unreachable remote store
+ */
+class SlowStorageService implements IStorageService {
+    private final IStorageService service_;
+    private final long getDelay_;
+    private final long putDelay_;
+    final AtomicLong gets = new AtomicLong();
+    volatile boolean failing = false;
+
+    SlowStorageService(IStorageService service, long getDelay, long putDelay) {
+        service_ = service;
+        getDelay_ = getDelay;
+        putDelay_ = putDelay;
+    }
+
+    private void check_() {
+        if (failing) throw new IllegalStateException("storage unavailable");
+    }
+
+    private static void sleep_(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+    }
+
+    @Override
+    public ISObject get(String key) {
+        gets.incrementAndGet();
+        sleep_(getDelay_);
+        check_();
+        return service_.get(key);
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        sleep_(putDelay_);
+        check_();
+        service_.put(key, stuff);
+    }
+
+    @Override
+    public ISObject remove(String key) {
+        check_();
+        return service_.remove(key);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        check_();
+        return service_.delete(key);
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return service_.getAll(keys);
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+        return service_.putAll(objects);
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return service_.removeAll(keys);
+    }
+
+    @Override
+    public String getUrl(String key) {
+        return service_.getUrl(key);
+    }
+}
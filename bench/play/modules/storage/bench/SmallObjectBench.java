@@ -0,0 +1,62 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+import play.modules.storage.impl.SegmentStorageService;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measure put and get of thumbnail sized objects with
+ * {@link FileStorageService}, a file per object, and
+ * {@link SegmentStorageService}, objects packed into segments.
+ * <p/>
+ * Usage: <code>SmallObjectBench [objects] [size-in-KB] [gets]</code>
+ */
+public class SmallObjectBench {
+
+    public static void main(String[] args) throws Exception {
+        final int objects = Bench.intArg(args, 0, 50000);
+        final int size = Bench.intArg(args, 1, 4) * 1024;
+        int gets = Bench.intArg(args, 2, 200000);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        final byte[] data = Bench.randomBytes(size);
+
+        for (String mode : new String[]{"file", "segment"}) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, mode);
+            conf.put(SegmentStorageService.CONF_HOME, mode);
+            conf.put("storage.url.root", "/s");
+            final IStorageService service = "file".equals(mode) ? new FileStorageService(conf) : new SegmentStorageService(conf);
+            final int[] seq = {0};
+            Bench.measure("put/" + mode + "/" + size, 0, objects, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    String key = "t" + (seq[0] % 64) + "/o" + seq[0]++;
+                    ISObject sobj = SObject.asSObject(key, data);
+                    sobj.setAttribute(ISObject.ATTR_CONTENT_TYPE, "image/jpeg");
+                    service.put(key, sobj);
+                    return size;
+                }
+            });
+            final Random r = new Random(objects);
+            Bench.measure("get/" + mode + "/" + size, gets / 10, gets, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    int i = r.nextInt(objects);
+                    return service.get("t" + (i % 64) + "/o" + i).asByteArray().length;
+                }
+            });
+            if (service instanceof SegmentStorageService) {
+                ((SegmentStorageService) service).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package play.modules.storage.bench;
+
+/**
+ * Run all the storage engine benchmarks with short default parameters,
+ * e.g. to compare releases. Every benchmark runs offline; S3 is measured
+ * against a {@link FakeS3} endpoint. Set the <code>bench.out</code> system
+ * property to collect the results as JSON lines.
+ * <p/>
+ * Usage: <code>StorageBenchSuite [scale]</code>, where scale multiplies
+ * the number of iterations, default 1
+ */
+public class StorageBenchSuite {
+
+    public static void main(String[] args) throws Exception {
+        int scale = Bench.intArg(args, 0, 1);
+        section_("SObject variants");
+        SObjectBench.main(new String[]{String.valueOf(500 * scale), "1,64,1024"});
+        section_("FileStorageService");
+        StorageServiceBench.main(new String[]{String.valueOf(100 * scale), "1,64,1024", "1,4,16"});
+        section_("S3Service on a fake endpoint");
+        S3Bench.main(new String[]{String.valueOf(50 * scale), "1,64,1024", "1,4,16"});
+        section_("StoragePlugin.newKey");
+        KeyGenBench.main(new String[]{String.valueOf(20000 * scale)});
+        section_("Picture resize and thumbnail");
+        ImageBench.main(new String[]{String.valueOf(5 * scale)});
+    }
+
+    private static void section_(String title) {
+        System.out.println();
+        System.out.println("# " + title);
+    }
+}
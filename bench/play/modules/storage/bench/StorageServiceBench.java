@@ -0,0 +1,85 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure put, get and remove of an {@link IStorageService} for a range of
+ * object sizes and thread counts. <code>main</code> runs it on
+ * {@link FileStorageService}, {@link S3Bench} on S3.
+ * <p/>
+ * Usage: <code>StorageServiceBench [ops-per-thread] [sizes-in-KB] [threads]</code>,
+ * sizes and threads comma separated
+ */
+public class StorageServiceBench {
+
+    public static void main(String[] args) throws Exception {
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "file");
+        conf.put("storage.url.root", "/s");
+        run("file", new FileStorageService(conf), args);
+    }
+
+    /**
+     * Run the put, get and remove measures on the service
+     *
+     * @param label identify the service in the report lines
+     */
+    public static void run(String label, final IStorageService service, String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 200);
+        String sizes = args.length > 1 ? args[1] : "1,64,1024";
+        String threads = args.length > 2 ? args[2] : "1,4,16";
+        for (String s : sizes.split(",")) {
+            final int size = Integer.parseInt(s.trim()) * 1024;
+            final byte[] data = Bench.randomBytes(size);
+            for (String t : threads.split(",")) {
+                int n = Integer.parseInt(t.trim());
+                String prefix = label + "/" + size + "/";
+                // every thread works on its own keys, put creates them,
+                // get reads them and remove drops them
+                final AtomicLong putSeq = new AtomicLong();
+                final AtomicLong getSeq = new AtomicLong();
+                final AtomicLong removeSeq = new AtomicLong();
+                final long total = (long) n * iterations;
+                Bench.measureConcurrent(prefix + "put", n, 0, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        String key = key_(putSeq.getAndIncrement());
+                        ISObject sobj = SObject.asSObject(key, data);
+                        sobj.setAttribute(ISObject.ATTR_CONTENT_TYPE, "application/octet-stream");
+                        service.put(key, sobj);
+                        return size;
+                    }
+                });
+                Bench.measureConcurrent(prefix + "get", n, 0, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        ISObject sobj = service.get(key_(getSeq.getAndIncrement() % total));
+                        return sobj.asByteArray().length;
+                    }
+                });
+                Bench.measureConcurrent(prefix + "remove", n, 0, iterations, new Bench.Op() {
+                    @Override
+                    public long run() throws Exception {
+                        service.remove(key_(removeSeq.getAndIncrement()));
+                        return 0;
+                    }
+                });
+            }
+        }
+    }
+
+    private static String key_(long i) {
+        return "b" + (i & 63) + "/o" + i;
+    }
+}
@@ -0,0 +1,80 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+import play.modules.storage.impl.TieredStorageService;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measure {@link TieredStorageService} with a local hot tier and a cold tier
+ * made as slow as S3 by a fixed delay per call: the sweep demoting old
+ * <code>BY_DATE</code> keys, then reads of recent and old keys with and
+ * without promotion, and the resulting hit ratios.
+ * <p/>
+ * Usage: <code>TieredBench [objects] [size-in-KB] [cold-delay-ms] [reads]</code>
+ */
+public class TieredBench {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    public static void main(String[] args) throws Exception {
+        final int objects = Bench.intArg(args, 0, 2000);
+        int size = Bench.intArg(args, 1, 64) * 1024;
+        int delay = Bench.intArg(args, 2, 20);
+        int reads = Bench.intArg(args, 3, 500);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        byte[] data = Bench.randomBytes(size);
+
+        for (String mode : new String[]{"noPromote", "promote"}) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, mode + "-hot");
+            conf.put("storage.url.root", "/s");
+            FileStorageService hot = new FileStorageService(conf);
+            conf.put(FileStorageService.CONF_HOME, mode + "-cold");
+            SlowStorageService cold = new SlowStorageService(new FileStorageService(conf), delay, delay);
+            conf.put(TieredStorageService.CONF_MAX_AGE, String.valueOf(7 * 24 * 3600));
+            conf.put(TieredStorageService.CONF_PROMOTE, String.valueOf("promote".equals(mode)));
+            conf.put(TieredStorageService.CONF_THREADS, "8");
+            final TieredStorageService tiered = new TieredStorageService(hot, cold);
+            tiered.configure(conf);
+
+            // one object a day over the last objects days, keyed and dated BY_DATE
+            final String[] keys = new String[objects];
+            long now = System.currentTimeMillis();
+            Calendar c = Calendar.getInstance();
+            for (int i = 0; i < objects; ++i) {
+                long t = now - i * DAY / 10;
+                c.setTimeInMillis(t);
+                keys[i] = String.format("%04d/%02d/%02d/k%d", c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                        c.get(Calendar.DAY_OF_MONTH), i);
+                tiered.put(keys[i], SObject.asSObject(keys[i], data));
+                new File(new File(root, mode + "-hot"), keys[i]).setLastModified(t);
+            }
+            long t0 = System.nanoTime();
+            int moved = tiered.sweep();
+            System.out.println(String.format("%-40s %8d of %d objects demoted in %.1f ms", "sweep/" + mode, moved, objects,
+                    (System.nanoTime() - t0) / 1e6));
+
+            // 80% of the reads on the recent tenth of the objects
+            final Random r = new Random(objects);
+            Bench.measure("get/tiered/" + mode, 0, reads, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    int i = r.nextInt(10) < 8 ? r.nextInt(objects / 10) : r.nextInt(objects);
+                    ISObject sobj = tiered.get(keys[i]);
+                    return sobj.asByteArray().length;
+                }
+            });
+            System.out.println(tiered);
+            tiered.close();
+        }
+    }
+}
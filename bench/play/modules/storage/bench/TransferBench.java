@@ -0,0 +1,118 @@
+package play.modules.storage.bench;
+
+import play.libs.IO;
+import play.modules.storage.ISObject;
+import play.modules.storage.impl.SObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Compare serving a file backed {@link ISObject} with
+ * {@link ISObject#transferTo} (zero copy) against the heap streaming path
+ * used before by <code>Pictures.get</code>, and against the 8KB chunks the
+ * Play 1.2 server reads any rendered file or stream in, which is what
+ * <code>Pictures.get</code> gets. All paths write to a loopback socket
+ * which is drained by a separate thread.
+ * <p/>
+ * Usage: <code>TransferBench [size-in-KB] [iterations]</code>
+ */
+public class TransferBench {
+
+    public static void main(String[] args) throws Exception {
+        int size = Bench.intArg(args, 0, 1024) * 1024;
+        int iterations = Bench.intArg(args, 1, 200);
+        File f = Bench.randomFile(size);
+        final ISObject sobj = SObject.asSObject("bench", f);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel sink = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel drain = server.accept();
+        Thread drainer = new Thread("bench-drain") {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (drain.read(buf) >= 0) {
+                        buf.clear();
+                    }
+                } catch (IOException e) {
+                    // socket closed
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+
+        final OutputStream os = Channels.newOutputStream(sink);
+        int warmup = Math.max(10, iterations / 10);
+        Bench.measure("transferTo/" + size, warmup, iterations, new Bench.Op() {
+            @Override
+            public long run() throws Exception {
+                return sobj.transferTo(sink);
+            }
+        });
+        Bench.measure("heapStream/" + size, warmup, iterations, new Bench.Op() {
+            @Override
+            public long run() throws Exception {
+                IO.write(new BufferedInputStream(sobj.asInputStream()), new NonClosing(os));
+                return sobj.getLength();
+            }
+        });
+
+        Bench.measure("serverChunks/" + size, warmup, iterations, new Bench.Op() {
+            @Override
+            public long run() throws Exception {
+                InputStream is = sobj.asInputStream();
+                try {
+                    long n = 0;
+                    while (true) {
+                        // a new chunk per read, as the server does
+                        byte[] chunk = new byte[8192];
+                        int r = is.read(chunk);
+                        if (r < 0) break;
+                        ByteBuffer buf = ByteBuffer.wrap(chunk, 0, r);
+                        while (buf.hasRemaining()) sink.write(buf);
+                        n += r;
+                    }
+                    return n;
+                } finally {
+                    is.close();
+                }
+            }
+        });
+
+        sink.close();
+        drain.close();
+        server.close();
+    }
+
+    /**
+     * {@link IO#write(java.io.InputStream, OutputStream)} closes the output,
+     * keep the socket open between iterations
+     */
+    private static class NonClosing extends java.io.FilterOutputStream {
+        NonClosing(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package play.modules.storage.bench;
+
+import play.Play;
+import play.modules.storage.IStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.SObject;
+import play.modules.storage.impl.WriteBehindStorageService;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure the put latency seen by callers with and without
+ * {@link WriteBehindStorageService}, in front of a file storage made as slow
+ * as a remote store by a fixed delay per put, and the time taken to drain
+ * the queue afterwards.
+ * <p/>
+ * Usage: <code>WriteBehindBench [puts-per-thread] [size-in-KB] [backend-delay-ms] [threads]</code>
+ */
+public class WriteBehindBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Bench.intArg(args, 0, 50);
+        int size = Bench.intArg(args, 1, 256) * 1024;
+        int delay = Bench.intArg(args, 2, 50);
+        int threads = Bench.intArg(args, 3, 8);
+        File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        final byte[] data = Bench.randomBytes(size);
+        for (String mode : new String[]{"direct", "writeBehind"}) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, mode);
+            conf.put("storage.url.root", "/s");
+            conf.put(WriteBehindStorageService.CONF_HOME, mode + "-queue");
+            conf.put(WriteBehindStorageService.CONF_THREADS, "16");
+            IStorageService backend = new SlowStorageService(new FileStorageService(conf), 0, delay);
+            final IStorageService service = "direct".equals(mode) ? backend : new WriteBehindStorageService(backend);
+            service.configure(conf);
+            final AtomicInteger seq = new AtomicInteger();
+            Bench.measureConcurrent("put/" + mode + "/" + delay + "ms/" + (size / 1024) + "KB", threads, 2, iterations, new Bench.Op() {
+                @Override
+                public long run() throws Exception {
+                    String key = "k" + seq.incrementAndGet();
+                    service.put(key, SObject.asSObject(key, data));
+                    return data.length;
+                }
+            });
+            if (service instanceof WriteBehindStorageService) {
+                WriteBehindStorageService wb = (WriteBehindStorageService) service;
+                long t0 = System.nanoTime();
+                int pending = wb.getPendingCount();
+                wb.flush(600 * 1000L);
+                System.out.println(String.format("%-40s %8d ops drained in %.1f ms", "drain/" + mode, pending, (System.nanoTime() - t0) / 1e6));
+                wb.close();
+            }
+        }
+    }
+}
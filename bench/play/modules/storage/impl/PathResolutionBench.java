@@ -0,0 +1,87 @@
+package play.modules.storage.impl;
+
+import play.Play;
+import play.modules.storage.StoragePlugin;
+import play.modules.storage.bench.Bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compare the file system calls and the time spent resolving the directory
+ * of a put with <code>BY_DATE</code> keys: the former walk, which checked
+ * every path component with <code>exists</code>/<code>isDirectory</code>,
+ * against the cached resolution of {@link FileStorageService}.
+ * <p/>
+ * Lives in the implementation package to reach the resolution methods.
+ * <p/>
+ * Usage: <code>PathResolutionBench [puts]</code>
+ */
+public class PathResolutionBench {
+
+    private static long calls_ = 0;
+
+    /**
+     * The resolution done by <code>FileStorageService.put</code> before
+     * directories were cached, counting the file system calls
+     */
+    private static File legacyResolve(File root, String key) throws IOException {
+        String[] path = key.replace('\\', '/').split("/");
+        File f = root;
+        for (int i = 0; i < path.length - 1; ++i) {
+            f = new File(f, path[i]);
+            ++calls_;
+            if (!f.exists()) {
+                ++calls_;
+                f.mkdir();
+            } else {
+                ++calls_;
+                if (!f.isDirectory()) {
+                    throw new IOException(f + " is not a directory");
+                }
+            }
+        }
+        return new File(f, path[path.length - 1]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int puts = Bench.intArg(args, 0, 200000);
+        final File root = Bench.tempDir("storage_bench");
+        Play.applicationPath = root;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "cached");
+        conf.put("storage.url.root", "/s");
+        final FileStorageService fss = new FileStorageService(conf);
+        final File legacyRoot = new File(root, "legacy");
+        legacyRoot.mkdir();
+
+        final String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = "gallery/" + StoragePlugin.newKey(StoragePlugin.Structure.BY_DATE);
+        }
+
+        Bench.measure("resolve/legacy", 1000, puts, new Bench.Op() {
+            int i = 0;
+            @Override
+            public long run() throws Exception {
+                legacyResolve(legacyRoot, keys[i++ & 1023]);
+                return 0;
+            }
+        });
+        long legacyCalls = calls_;
+
+        Bench.measure("resolve/cached", 1000, puts, new Bench.Op() {
+            int i = 0;
+            @Override
+            public long run() throws Exception {
+                fss.ensureParent(fss.resolve(keys[i++ & 1023]));
+                return 0;
+            }
+        });
+        System.out.println(String.format("file system calls per put: legacy %.2f, cached %.6f (%d directory creations)",
+                (double) legacyCalls / (puts + 1000), (double) fss.knownDirectories() / (puts + 1000),
+                fss.knownDirectories()));
+    }
+}
@@ -0,0 +1,88 @@
+package play.modules.storage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The per key outcome of a bulk operation on an {@link IStorageService}. A
+ * key either succeeded, with a result which could be <code>null</code>, e.g.
+ * when the key was not found, or failed with an error. A failing key does
+ * not fail the other keys of the batch.
+ *
+ * @param <T> the type of the per key result
+ */
+public class BatchResult<T> {
+
+    private Map<String, T> results_ = new LinkedHashMap<String, T>();
+    private Map<String, Throwable> errors_ = new LinkedHashMap<String, Throwable>();
+
+    public synchronized void success(String key, T result) {
+        errors_.remove(key);
+        results_.put(key, result);
+    }
+
+    public synchronized void failure(String key, Throwable error) {
+        results_.remove(key);
+        errors_.put(key, error);
+    }
+
+    /**
+     * Copy the outcome of all keys of another batch into this one
+     */
+    public synchronized void addAll(BatchResult<T> other) {
+        for (Map.Entry<String, T> e : other.getResults().entrySet()) {
+            success(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Throwable> e : other.getErrors().entrySet()) {
+            failure(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return the result of the key, or <code>null</code> if the key failed
+     * or the result is <code>null</code>
+     */
+    public synchronized T get(String key) {
+        return results_.get(key);
+    }
+
+    /**
+     * @return the error the key failed with, or <code>null</code>
+     */
+    public synchronized Throwable getError(String key) {
+        return errors_.get(key);
+    }
+
+    public synchronized boolean isSuccess(String key) {
+        return results_.containsKey(key);
+    }
+
+    public synchronized boolean hasErrors() {
+        return !errors_.isEmpty();
+    }
+
+    public synchronized Set<String> getFailedKeys() {
+        return Collections.unmodifiableSet(new java.util.LinkedHashSet<String>(errors_.keySet()));
+    }
+
+    /**
+     * @return a copy of the results of the keys which succeeded
+     */
+    public synchronized Map<String, T> getResults() {
+        return new LinkedHashMap<String, T>(results_);
+    }
+
+    /**
+     * @return a copy of the errors of the keys which failed
+     */
+    public synchronized Map<String, Throwable> getErrors() {
+        return new LinkedHashMap<String, Throwable>(errors_);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchResult[" + results_.size() + " succeeded, " + errors_.size() + " failed]";
+    }
+}
@@ -0,0 +1,51 @@
+package play.modules.storage;
+
+import play.libs.F;
+
+import java.io.InputStream;
+
+/**
+ * The non blocking counterpart of {@link IStorageService}. Each operation
+ * returns at once with a promise which is redeemed when the operation
+ * completes, so that a controller could <code>await</code> it instead of
+ * holding a request thread during the disk or network latency
+ */
+public interface IAsyncStorageService {
+
+    /**
+     * @see IStorageService#get(String)
+     */
+    F.Promise<ISObject> get(String key);
+
+    /**
+     * @see IStorageService#put(String, ISObject)
+     */
+    F.Promise<Void> put(String key, ISObject stuff);
+
+    /**
+     * @see IStorageService#remove(String)
+     */
+    F.Promise<ISObject> remove(String key);
+
+    /**
+     * Open the content of an object, e.g. send the GET request of an S3
+     * object and wait for its response. The bytes are read from the stream
+     * as it is consumed
+     *
+     * @param offset the position of the first byte to read
+     * @param length the number of bytes to read, or <code>-1</code> to read
+     *               to the end
+     * @see ISObject#asInputStream(long, long)
+     */
+    F.Promise<InputStream> open(ISObject sobj, long offset, long length);
+
+    /**
+     * @see IStorageService#getUrl(String)
+     */
+    F.Promise<String> getUrl(String key);
+
+    /**
+     * @return the blocking service this service runs on
+     */
+    IStorageService getService();
+}
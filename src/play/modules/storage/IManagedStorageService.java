@@ -0,0 +1,23 @@
+package play.modules.storage;
+
+import java.util.List;
+
+/**
+ * A storage service with resources to release on stop, e.g. threads or
+ * connections, or built on other services, e.g. a decorator. The plugin
+ * walks {@link StoragePlugin#service} and the services it is built on to
+ * close them and to show their status
+ */
+public interface IManagedStorageService extends IStorageService {
+
+    /**
+     * @return the services this one is built on, empty if none
+     */
+    List<IStorageService> getServices();
+
+    /**
+     * Release the resources of this service. The services it is built on
+     * are closed by the caller, after this one
+     */
+    void close();
+}
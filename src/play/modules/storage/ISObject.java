@@ -3,6 +3,9 @@ package play.modules.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 
 /**
@@ -32,6 +35,19 @@ public interface ISObject {
      */
     long getLength();
     
+    /**
+     * @return an opaque validator which changes whenever the content of the
+     * object changes, quoted as required by the HTTP <code>ETag</code>
+     * header, or <code>null</code> if the object cannot tell
+     */
+    String getETag();
+
+    /**
+     * @return the time the object was last modified in milliseconds since
+     * the epoch, or <code>0</code> if it is unknown
+     */
+    long getLastModified();
+
     /** 
      * Return attribute associated with this storage object by key. If there is 
      * no such attribute found then <code>null</code> is returned
@@ -78,6 +94,41 @@ public interface ISObject {
     * @return the stuff content as an input stream
     */
    InputStream asInputStream() throws IOException;
+   /**
+    * @param offset the position of the first byte to read
+    * @param length the number of bytes to read
+    * @return an input stream on the given span of the stuff content. Only
+    * the requested bytes are read from the underline storage when possible
+    */
+   InputStream asInputStream(long offset, long length) throws IOException;
+   /**
+    * @return the stuff content as a read only buffer, positioned at 0. File
+    * backed objects return a memory mapped buffer and in memory objects
+    * wrap their content, so the bytes are read in place without a copy
+    */
+   ByteBuffer asByteBuffer() throws IOException;
+   /**
+    * @return a channel reading the stuff content. The caller closes it
+    */
+   ReadableByteChannel asChannel() throws IOException;
+
+    /**
+     * @return <code>true</code> if the content of this object is a file in
+     * the local file system, in which case {@link #asFile()} returns the
+     * file itself instead of a temporary copy
+     */
+   boolean isFileBacked();
+
+    /**
+     * Write the content of this object to the channel specified. File backed
+     * objects use {@link java.nio.channels.FileChannel#transferTo} so the
+     * bytes go from the page cache to the target without being copied
+     * through the heap
+     *
+     * @param target the channel to write to
+     * @return the number of bytes transferred
+     */
+   long transferTo(WritableByteChannel target) throws IOException;
 
     /**
      * @return the external URL to access this ISObject. It requires the 
@@ -1,6 +1,7 @@
 package play.modules.storage;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 
 
@@ -35,6 +36,44 @@ public interface IStorageService {
      */
     ISObject remove(String key);
 
+    /**
+     * Remove the file from the storage by key without returning it. Cheaper
+     * than {@link #remove(String)} when the caller does not need the content
+     *
+     * @param key
+     * @return <code>true</code> if the object was found and removed. Services
+     * which cannot tell without an extra round trip return <code>true</code>
+     */
+    boolean delete(String key);
+
+    /**
+     * Retrieve many objects at once. Keys not found have a <code>null</code>
+     * result
+     *
+     * @param keys
+     * @return the objects by key, and the errors of the keys which failed
+     */
+    BatchResult<ISObject> getAll(Collection<String> keys);
+
+    /**
+     * Put many objects at once
+     *
+     * @param objects the objects to put by key
+     * @return the objects which have been put by key, and the errors of the
+     * keys which failed
+     */
+    BatchResult<ISObject> putAll(Map<String, ISObject> objects);
+
+    /**
+     * Remove many objects at once. The per key result is the same as
+     * {@link #remove(String)} would return
+     *
+     * @param keys
+     * @return the removed objects by key, and the errors of the keys which
+     * failed
+     */
+    BatchResult<ISObject> removeAll(Collection<String> keys);
+
     /**
      * Return the URL to access a stored resource by key 
      * 
@@ -0,0 +1,211 @@
+package play.modules.storage;
+
+import play.libs.IO;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produce several renditions of an image, each fitting a given long side
+ * length, from a single decode of the source. The renditions are scaled from
+ * largest to smallest, each from the previous one, and encoded to JPEG in
+ * parallel as soon as they are scaled. Sources which fit a length already
+ * are returned as they are, and a source fitting all lengths is not decoded
+ * at all.
+ * <p/>
+ * When the largest rendition is less than a quarter of the source, the
+ * source is decoded with subsampling so that the full size raster is never
+ * held in memory.
+ */
+public class ImagePipeline {
+
+    public static final String CONF_THREADS = "picture.pipeline.threads";
+
+    private static final AtomicInteger seq_ = new AtomicInteger();
+
+    private final ExecutorService executor_;
+
+    /**
+     * @param threads number of threads encoding renditions
+     */
+    public ImagePipeline(int threads) {
+        executor_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-image-" + seq_.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor_.shutdown();
+    }
+
+    /**
+     * @param source  the image file
+     * @param lengths the long side length of each rendition by name
+     * @return the content of each rendition by name
+     */
+    public Map<String, byte[]> render(File source, Map<String, Integer> lengths) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(source);
+        if (null == iis) throw new IOException("cannot read " + source);
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        List<Map.Entry<String, Integer>> scaled = new ArrayList<Map.Entry<String, Integer>>();
+        BufferedImage img;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) throw new IOException("not an image: " + source);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int maxLen = 0;
+                for (Map.Entry<String, Integer> e : lengths.entrySet()) {
+                    if (longSide < e.getValue()) {
+                        continue;
+                    }
+                    scaled.add(e);
+                    maxLen = Math.max(maxLen, e.getValue());
+                }
+                if (scaled.size() < lengths.size()) {
+                    byte[] original = IO.readContent(source);
+                    for (String name : lengths.keySet()) {
+                        result.put(name, original);
+                    }
+                }
+                if (scaled.isEmpty()) {
+                    return result;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                // subsampling picks pixels, keep twice the resolution for the scaling to smooth
+                int sub = longSide / (2 * Math.max(1, maxLen));
+                if (sub > 1) {
+                    param.setSourceSubsampling(sub, sub, 0, 0);
+                }
+                img = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+
+        Collections.sort(scaled, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        Map<String, Future<byte[]>> encoded = new HashMap<String, Future<byte[]>>();
+        for (Map.Entry<String, Integer> e : scaled) {
+            img = scale_(img, e.getValue());
+            final BufferedImage rendition = img;
+            encoded.put(e.getKey(), executor_.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return encode_(rendition);
+                }
+            }));
+        }
+        img = null;
+        try {
+            for (Map.Entry<String, Future<byte[]>> e : encoded.entrySet()) {
+                result.put(e.getKey(), e.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted rendering " + source);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("error rendering " + source, cause);
+        } finally {
+            for (Future<byte[]> f : encoded.values()) {
+                f.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scale the image so that its long side is <code>len</code>, halving it
+     * first as long as it is at least twice as large: a single bilinear step
+     * over a larger ratio would skip source pixels
+     */
+    private static BufferedImage scale_(BufferedImage img, int len) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int tw, th;
+        if (h < w) {
+            tw = len;
+            th = Math.max(1, (int) ((long) h * len / w));
+        } else {
+            th = len;
+            tw = Math.max(1, (int) ((long) w * len / h));
+        }
+        do {
+            w = w / 2 >= tw ? w / 2 : tw;
+            h = h / 2 >= th ? h / 2 : th;
+            img = draw_(img, w, h);
+        } while (w != tw || h != th);
+        return img;
+    }
+
+    private static BufferedImage draw_(BufferedImage src, int w, int h) {
+        // JPEG has no alpha, transparent pixels end up white as with Images.resize
+        BufferedImage dest = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dest.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return dest;
+    }
+
+    private static byte[] encode_(BufferedImage img) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/jpeg").next();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(img.getWidth() * img.getHeight() / 4 + 1024);
+        MemoryCacheImageOutputStream os = new MemoryCacheImageOutputStream(bos);
+        try {
+            writer.setOutput(os);
+            writer.write(null, new IIOImage(img, null, null), writer.getDefaultWriteParam());
+        } finally {
+            writer.dispose();
+            os.close();
+        }
+        return bos.toByteArray();
+    }
+}
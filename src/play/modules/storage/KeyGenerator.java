@@ -0,0 +1,85 @@
+package play.modules.storage;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generate 128 bit ids which are unique across nodes and sort by creation
+ * time. The high 64 bits hold the milliseconds since epoch (48 bits) and the
+ * node id (16 bits), the low 64 bits a per generator sequence starting at a
+ * random value. Ids are rendered as 26 characters of Crockford base32, like
+ * ULID, so that their string form sorts the same way.
+ * <p/>
+ * The generator is lock free: generating an id takes one atomic increment.
+ */
+public class KeyGenerator {
+
+    public static final int MAX_NODE = 0xffff;
+
+    private static final char[] BASE32_ = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private final long node_;
+    private final AtomicLong seq_;
+
+    /**
+     * @param node the id of this node, from <code>0</code> to {@link #MAX_NODE}
+     */
+    public KeyGenerator(int node) {
+        if (node < 0 || node > MAX_NODE) throw new IllegalArgumentException("node id out of range: " + node);
+        node_ = node;
+        // a random start avoids reusing ids if the clock goes back between runs
+        seq_ = new AtomicLong(new Random().nextLong() >>> 1);
+    }
+
+    public int getNode() {
+        return (int) node_;
+    }
+
+    public String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * Generate an id for the given time
+     */
+    public String next(long millis) {
+        long hi = (millis << 16) | node_;
+        long lo = seq_.getAndIncrement();
+        char[] buf = new char[26];
+        // 3 + 25 * 5 = 128 bits, the first character takes the top 3 bits of hi,
+        // each next one the following 5 bits of hi then lo
+        buf[0] = BASE32_[(int) (hi >>> 61)];
+        int bit = 125;
+        for (int i = 1; i < 26; ++i) {
+            bit -= 5;
+            buf[i] = BASE32_[bits5_(hi, lo, bit)];
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Return the creation time encoded in an id generated by this class
+     */
+    public static long timestampOf(String id) {
+        long hi = 0;
+        // the first 13 characters hold the top 63 bits
+        for (int i = 0; i < 13; ++i) {
+            hi = (hi << 5) | decode_(id.charAt(i));
+        }
+        return hi >>> 15;
+    }
+
+    // the 5 bits starting at bit position <code>bit</code> of the 128 bit value
+    private static int bits5_(long hi, long lo, int bit) {
+        if (bit >= 64) return (int) (hi >>> (bit - 64)) & 0x1f;
+        if (bit <= 59) return (int) (lo >>> bit) & 0x1f;
+        return (int) ((hi << (64 - bit)) | (lo >>> bit)) & 0x1f;
+    }
+
+    private static int decode_(char c) {
+        for (int i = 0; i < BASE32_.length; ++i) {
+            if (BASE32_[i] == c) return i;
+        }
+        throw new IllegalArgumentException("not a key generator id: " + c);
+    }
+}
@@ -1,27 +1,70 @@
 package play.modules.storage;
 
-import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import play.Logger;
 import play.Play;
 import play.PlayPlugin;
+import play.exceptions.ConfigurationException;
 import play.exceptions.UnexpectedException;
+import play.modules.storage.impl.AsyncStorageService;
+import play.modules.storage.impl.CachingStorageService;
+import play.modules.storage.impl.DedupStorageService;
+import play.modules.storage.impl.InstrumentedStorageService;
+import play.modules.storage.impl.WriteBehindStorageService;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public class StoragePlugin extends PlayPlugin {
 
     public static IStorageService service = null;
 
+    /**
+     * The non blocking access to {@link #service}
+     */
+    public static IAsyncStorageService asyncService = null;
+
+    public static final String CONF_KEY_STRUCTURE = "storage.key.structure";
+    public static final String CONF_SHARD_FANOUT = "storage.key.shard.fanout";
+    public static final String CONF_SHARD_LEVELS = "storage.key.shard.levels";
+    public static final String CONF_KEY_NODE = "storage.key.node";
+
+    private static volatile Structure defStructure_ = Structure.BY_DATE;
+    private static volatile int shardFanout_ = 256;
+    private static volatile int shardLevels_ = 2;
+    private static volatile KeyGenerator keys_ = new KeyGenerator(new Random().nextInt(KeyGenerator.MAX_NODE + 1));
+
     @Override
     public void onApplicationStart() {
+        configureKeys((Map) Play.configuration);
         try {
             String className = Play.configuration.getProperty("storage.serviceImpl");
             Class clazz = Class.forName(className);
             service = (IStorageService) clazz.newInstance();
             service.configure((Map)Play.configuration);
+            if (Boolean.parseBoolean(Play.configuration.getProperty(InstrumentedStorageService.CONF_ENABLED, "false"))) {
+                service = new InstrumentedStorageService(service);
+                service.configure((Map)Play.configuration);
+            }
+            if (Boolean.parseBoolean(Play.configuration.getProperty(WriteBehindStorageService.CONF_ENABLED, "false"))) {
+                service = new WriteBehindStorageService(service);
+                service.configure((Map)Play.configuration);
+            }
+            if (Boolean.parseBoolean(Play.configuration.getProperty(DedupStorageService.CONF_ENABLED, "false"))) {
+                service = new DedupStorageService(service);
+                service.configure((Map)Play.configuration);
+            }
+            if (Boolean.parseBoolean(Play.configuration.getProperty(CachingStorageService.CONF_ENABLED, "false"))) {
+                service = new CachingStorageService(service);
+                service.configure((Map)Play.configuration);
+            }
+            AsyncStorageService async = new AsyncStorageService(service);
+            async.configure((Map)Play.configuration);
+            asyncService = async;
         } catch (Exception e) {
             Logger.error(e, "error init StoragePlugin");
             throw new UnexpectedException(e);
@@ -30,10 +73,115 @@ public class StoragePlugin extends PlayPlugin {
         Logger.trace("gallery module initialized");
     }
 
-    private static Object lock_ = new Object();
+    @Override
+    public void onApplicationStop() {
+        if (asyncService instanceof AsyncStorageService) {
+            ((AsyncStorageService) asyncService).shutdown();
+        }
+        for (IManagedStorageService s : managed_()) {
+            s.close();
+        }
+    }
+
+    /**
+     * @return {@link #service} and the services it is built on, each once,
+     * every service before those it is built on
+     */
+    private static List<IManagedStorageService> managed_() {
+        List<IManagedStorageService> l = new ArrayList<IManagedStorageService>();
+        walk_(service, l);
+        return l;
+    }
+
+    private static void walk_(IStorageService s, List<IManagedStorageService> l) {
+        if (!(s instanceof IManagedStorageService) || l.contains(s)) return;
+        IManagedStorageService m = (IManagedStorageService) s;
+        l.add(m);
+        for (IStorageService child : m.getServices()) {
+            walk_(child, l);
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        for (IManagedStorageService s : managed_()) {
+            sb.append(s).append("\n");
+        }
+        return sb.length() == 0 ? null : "Storage:\n~~~~~~~~\n" + sb;
+    }
+
+    /**
+     * Parse a size configuration like <code>65536</code>, <code>64k</code>,
+     * <code>64mb</code> or <code>1g</code>
+     *
+     * @param s   the configured value, could be <code>null</code>
+     * @param def the value returned if <code>s</code> is blank
+     * @return the number of bytes
+     */
+    public static long bytesOf(String s, long def) {
+        if (StringUtils.isBlank(s)) return def;
+        s = s.trim().toLowerCase();
+        if (s.endsWith("b")) s = s.substring(0, s.length() - 1);
+        long unit = 1;
+        if (s.endsWith("k")) {
+            unit = 1024;
+        } else if (s.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) s = s.substring(0, s.length() - 1);
+        try {
+            return Long.parseLong(s.trim()) * unit;
+        } catch (NumberFormatException e) {
+            throw new UnexpectedException("invalid size configuration: " + s);
+        }
+    }
+
+    /**
+     * Configure the structure used by {@link #newKey()} and the fan-out of
+     * the hashed structures
+     */
+    public static void configureKeys(Map<String, String> conf) {
+        String s = conf.get(CONF_KEY_STRUCTURE);
+        if (StringUtils.isNotBlank(s)) {
+            try {
+                defStructure_ = Structure.valueOf(s.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("unknown key structure: " + s);
+            }
+        }
+        s = conf.get(CONF_SHARD_FANOUT);
+        if (StringUtils.isNotBlank(s)) {
+            int fanout = Integer.parseInt(s.trim());
+            if (fanout < 2 || fanout > 65536) {
+                throw new ConfigurationException(CONF_SHARD_FANOUT + " must be between 2 and 65536");
+            }
+            shardFanout_ = fanout;
+        }
+        s = conf.get(CONF_SHARD_LEVELS);
+        if (StringUtils.isNotBlank(s)) {
+            int levels = Integer.parseInt(s.trim());
+            if (levels < 1 || levels > 4) {
+                throw new ConfigurationException(CONF_SHARD_LEVELS + " must be between 1 and 4");
+            }
+            shardLevels_ = levels;
+        }
+        s = conf.get(CONF_KEY_NODE);
+        if (StringUtils.isNotBlank(s)) {
+            int node = Integer.parseInt(s.trim());
+            if (node < 0 || node > KeyGenerator.MAX_NODE) {
+                throw new ConfigurationException(CONF_KEY_NODE + " must be between 0 and " + KeyGenerator.MAX_NODE);
+            }
+            keys_ = new KeyGenerator(node);
+        } else {
+            Logger.warn("%s not configured, generated keys are unique on node %s only", CONF_KEY_NODE, keys_.getNode());
+        }
+    }
 
     public static String newKey() {
-        return newKey(null, Structure.BY_DATE);
+        return newKey(null, defStructure_);
     }
 
     public static String newKey(Structure structure) {
@@ -41,7 +189,7 @@ public class StoragePlugin extends PlayPlugin {
     }
 
     public static String newKey(String name) {
-        return newKey(name, Structure.BY_DATE);
+        return newKey(name, defStructure_);
     }
 
     /**
@@ -54,20 +202,21 @@ public class StoragePlugin extends PlayPlugin {
      * @return the key
      */
     public static String newKey(String name, Structure structure) {
+        long now = System.currentTimeMillis();
         if (StringUtils.isBlank(name)) {
-            synchronized (lock_) {
-                long l = System.currentTimeMillis();
-                String prefix = RandomStringUtils.randomAlphabetic(5);
-                name = prefix + String.valueOf(l);
-            }
+            name = keys_.next(now);
         }
 
-        if (null == structure) structure = Structure.BY_DATE;
+        if (null == structure) structure = defStructure_;
         switch (structure) {
+            case HASH_SHARDED:
+                return shard(name) + name;
+            case BY_DATE_HASHED:
+                return datePrefix_(now, false) + shard(name) + name;
             case BY_DATETIME:
-                return String.format("%2$tY%1$s%2$tm%1$s%2$td%1$s%2$tH%1$s%2$tM%1$s%2$tS%1$s%3$s", File.separator, Calendar.getInstance(), name);
+                return datePrefix_(now, true) + name;
             case BY_DATE:
-                return String.format("%2$tY%1$s%2$tm%1$s%2$td%1$s%3$s", File.separator, Calendar.getInstance(), name);
+                return datePrefix_(now, false) + name;
             case PLAIN:
                 return name;
             default:
@@ -76,15 +225,108 @@ public class StoragePlugin extends PlayPlugin {
     }
 
     /**
-     * Define the storage structure. There are 2 possible structure
+     * A date path like <code>yyyy/mm/dd/</code> valid from <code>from</code>
+     * until <code>to</code>
+     */
+    private static final class DatePrefix_ {
+        final long from;
+        final long to;
+        final String prefix;
+
+        DatePrefix_(long from, long to, String prefix) {
+            this.from = from;
+            this.to = to;
+            this.prefix = prefix;
+        }
+    }
+
+    private static volatile DatePrefix_ day_ = new DatePrefix_(0, 0, null);
+    private static volatile DatePrefix_ second_ = new DatePrefix_(0, 0, null);
+
+    // the path is rebuilt once a day, or once a second with the time
+    private static String datePrefix_(long now, boolean withTime) {
+        DatePrefix_ p = withTime ? second_ : day_;
+        if (now >= p.from && now < p.to) return p.prefix;
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(now);
+        StringBuilder sb = new StringBuilder(withTime ? 20 : 11);
+        sb.append(c.get(Calendar.YEAR)).append(File.separatorChar);
+        pad2_(sb, c.get(Calendar.MONTH) + 1).append(File.separatorChar);
+        pad2_(sb, c.get(Calendar.DAY_OF_MONTH)).append(File.separatorChar);
+        if (withTime) {
+            pad2_(sb, c.get(Calendar.HOUR_OF_DAY)).append(File.separatorChar);
+            pad2_(sb, c.get(Calendar.MINUTE)).append(File.separatorChar);
+            pad2_(sb, c.get(Calendar.SECOND)).append(File.separatorChar);
+            long from = now - now % 1000;
+            second_ = p = new DatePrefix_(from, from + 1000, sb.toString());
+        } else {
+            c.set(Calendar.HOUR_OF_DAY, 0);
+            c.set(Calendar.MINUTE, 0);
+            c.set(Calendar.SECOND, 0);
+            c.set(Calendar.MILLISECOND, 0);
+            long from = c.getTimeInMillis();
+            c.add(Calendar.DAY_OF_MONTH, 1);
+            day_ = p = new DatePrefix_(from, c.getTimeInMillis(), sb.toString());
+        }
+        return p.prefix;
+    }
+
+    private static StringBuilder pad2_(StringBuilder sb, int n) {
+        if (n < 10) sb.append('0');
+        return sb.append(n);
+    }
+
+    /**
+     * Return the hashed directory prefix of a name, e.g. <code>3f/a0/</code>
+     * with the default fan-out of 256 over 2 levels. The prefix depends on
+     * the name only, so the same name always lands in the same shard
+     *
+     * @param name the file name
+     * @return the prefix, ending with a separator
+     */
+    public static String shard(String name) {
+        int fanout = shardFanout_, levels = shardLevels_;
+        int digits = 1;
+        while ((1 << (4 * digits)) < fanout) ++digits;
+        int h = name.hashCode();
+        char[] buf = new char[levels * (digits + 1)];
+        int pos = 0;
+        for (int i = 0; i < levels; ++i) {
+            int bucket = (int) ((mix_(h + i * 0x9e3779b9) & 0xffffffffL) % fanout);
+            for (int d = digits - 1; d >= 0; --d) {
+                buf[pos++] = HEX_[(bucket >>> (4 * d)) & 0xf];
+            }
+            buf[pos++] = File.separatorChar;
+        }
+        return new String(buf);
+    }
+
+    private static final char[] HEX_ = "0123456789abcdef".toCharArray();
+
+    // murmur3 finalizer, String.hashCode alone is poorly distributed
+    private static int mix_(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Define the storage structure. There are 5 possible structure
      * 1. PLAIN, all files are saved directly in one folder
      * 2. BY_DATE, files are saved in a hierarchical structure like yyyy/mm/dd
      * 3. BY_DATETIME, files are saved in a hierarchical structure like yyyy/mm/dd/HH/MM/SS
+     * 4. HASH_SHARDED, files are spread over hashed folders like 3f/a0, see
+     * {@link #shard(String)}
+     * 5. BY_DATE_HASHED, files are saved in hashed folders under the date like
+     * yyyy/mm/dd/3f/a0
      *
      * @author greenl
      */
     public static enum Structure {
-        PLAIN, BY_DATE, BY_DATETIME
+        PLAIN, BY_DATE, BY_DATETIME, HASH_SHARDED, BY_DATE_HASHED
     }
 
     public static void main(String[] args) {
@@ -92,6 +334,8 @@ public class StoragePlugin extends PlayPlugin {
         System.out.println(newKey("Hello.world"));
         System.out.println(newKey("Hello.world", Structure.BY_DATETIME));
         System.out.println(newKey(Structure.PLAIN));
+        System.out.println(newKey("Hello.world", Structure.HASH_SHARDED));
+        System.out.println(newKey("Hello.world", Structure.BY_DATE_HASHED));
     }
 
 }
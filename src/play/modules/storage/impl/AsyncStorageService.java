@@ -0,0 +1,123 @@
+package play.modules.storage.impl;
+
+import play.libs.F;
+import play.modules.storage.IAsyncStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lift any {@link IStorageService} into an {@link IAsyncStorageService}.
+ * Operations run on a dedicated pool of <code>storage.async.threads</code>
+ * I/O threads and redeem the returned promise when done, so the Play request
+ * threads are free while the backend works
+ */
+public class AsyncStorageService implements IAsyncStorageService {
+
+    public static final String CONF_THREADS = "storage.async.threads";
+
+    private IStorageService service_;
+    private ExecutorService executor_;
+
+    public AsyncStorageService(IStorageService service) {
+        if (null == service) throw new NullPointerException();
+        service_ = service;
+    }
+
+    public void configure(Map<String, String> conf) {
+        String s = conf.get(CONF_THREADS);
+        int threads = null == s ? 16 : Math.max(1, Integer.parseInt(s.trim()));
+        if (null != executor_) executor_.shutdown();
+        executor_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private AtomicInteger n = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-async-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public IStorageService getService() {
+        return service_;
+    }
+
+    @Override
+    public F.Promise<ISObject> get(final String key) {
+        return submit_(new Callable<ISObject>() {
+            @Override
+            public ISObject call() {
+                return service_.get(key);
+            }
+        });
+    }
+
+    @Override
+    public F.Promise<Void> put(final String key, final ISObject stuff) {
+        return submit_(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                service_.put(key, stuff);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public F.Promise<ISObject> remove(final String key) {
+        return submit_(new Callable<ISObject>() {
+            @Override
+            public ISObject call() {
+                return service_.remove(key);
+            }
+        });
+    }
+
+    @Override
+    public F.Promise<InputStream> open(final ISObject sobj, final long offset, final long length) {
+        return submit_(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return length < 0 && offset == 0 ? sobj.asInputStream() : sobj.asInputStream(offset, length);
+            }
+        });
+    }
+
+    /**
+     * URLs are computed without I/O, the promise is redeemed at once
+     */
+    @Override
+    public F.Promise<String> getUrl(String key) {
+        F.Promise<String> p = new F.Promise<String>();
+        p.invoke(service_.getUrl(key));
+        return p;
+    }
+
+    public void shutdown() {
+        if (null != executor_) executor_.shutdown();
+    }
+
+    private <T> F.Promise<T> submit_(final Callable<T> task) {
+        final F.Promise<T> p = new F.Promise<T>();
+        executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    p.invoke(task.call());
+                } catch (Throwable t) {
+                    p.invokeWithException(t);
+                }
+            }
+        });
+        return p;
+    }
+}
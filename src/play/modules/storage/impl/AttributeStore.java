@@ -0,0 +1,495 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Keep the attributes of the objects of a {@link FileStorageService} in one
+ * append only log per directory instead of one <code>.attr</code> file per
+ * object.
+ * <p/>
+ * Each record of a log is <code>[int length][int crc32][payload]</code>
+ * where the payload is either a put of the attributes of an object or the
+ * removal of the attributes of an object. The log of a directory is read on
+ * first access into an in-memory index, so reading attributes is a hash
+ * lookup. A torn record at the end of a log, e.g. after a crash, is
+ * discarded. A log is compacted once it holds more superseded records than
+ * live ones. At most <code>maxLogs</code> directory logs are kept loaded,
+ * the least recently used idle ones are dropped beyond.
+ * <p/>
+ * Legacy <code>.attr</code> files found in a directory when its log is
+ * loaded are ingested into the log and deleted, provided the object they
+ * belong to exists: an object whose own key ends with <code>.attr</code> is
+ * left alone.
+ */
+class AttributeStore {
+
+    static final String LOG_NAME = ".attrs.log";
+    static final String LEGACY_SUFFIX = ".attr";
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int MIN_COMPACTION_DEAD = 64;
+
+    /**
+     * Loaded directory logs, least recently used first
+     */
+    private final LinkedHashMap<String, DirLog> logs_ = new LinkedHashMap<String, DirLog>(16, 0.75f, true);
+    private final int maxLogs_;
+
+    /**
+     * Directory logs with an open output stream, least recently used first
+     */
+    private final LinkedHashMap<DirLog, Boolean> open_ = new LinkedHashMap<DirLog, Boolean>(16, 0.75f, true);
+    private final int maxOpen_;
+    private final boolean migrate_;
+
+    AttributeStore(int maxOpenLogs, int maxLogs, boolean migrate) {
+        maxOpen_ = maxOpenLogs;
+        maxLogs_ = Math.max(1, maxLogs);
+        migrate_ = migrate;
+    }
+
+    /**
+     * @return the attributes of the object, empty if it has none
+     */
+    Map<String, String> get(File dir, String name) throws IOException {
+        DirLog log = pin_(dir, false);
+        if (null == log) return Collections.emptyMap();
+        try {
+            log.load();
+            Map<String, String> attrs = log.get(name);
+            return null == attrs ? Collections.<String, String>emptyMap() : attrs;
+        } finally {
+            unpin_(log);
+        }
+    }
+
+    /**
+     * Record the attributes of an object, replacing the previous ones. The
+     * returned handle must be released with {@link Handle#release()} once the
+     * caller has synced it if needed.
+     *
+     * @return a handle on the log written to, or <code>null</code> if
+     * nothing has been written
+     */
+    Handle put(File dir, String name, Map<String, String> attrs) throws IOException {
+        DirLog log = pin_(dir, true);
+        try {
+            log.load();
+            if (attrs.isEmpty()) {
+                if (!log.remove(name)) return null;
+            } else {
+                log.put(name, attrs);
+            }
+        } finally {
+            unpin_(log);
+        }
+        evict_();
+        return log;
+    }
+
+    /**
+     * Remove the attributes of an object
+     */
+    void remove(File dir, String name) throws IOException {
+        DirLog log = pin_(dir, false);
+        if (null == log) return;
+        boolean removed;
+        try {
+            log.load();
+            removed = log.remove(name);
+        } finally {
+            unpin_(log);
+        }
+        if (removed) {
+            log.release();
+            evict_();
+        }
+    }
+
+    /**
+     * Close all open logs
+     */
+    void close() {
+        List<DirLog> l;
+        synchronized (open_) {
+            l = new ArrayList<DirLog>(open_.keySet());
+            open_.clear();
+        }
+        for (DirLog log : l) {
+            log.closeStream();
+        }
+    }
+
+    /**
+     * Get the log of a directory and pin it in memory until
+     * {@link #unpin_(DirLog)}, so that no other log of the directory is
+     * loaded meanwhile
+     *
+     * @param create whether to load the log of a directory which does not
+     *               exist
+     * @return the log, <code>null</code> if the directory does not exist
+     * and <code>create</code> is <code>false</code>
+     */
+    private DirLog pin_(File dir, boolean create) {
+        String path = dir.getPath();
+        synchronized (logs_) {
+            DirLog log = logs_.get(path);
+            if (null != log) {
+                log.pins++;
+                return log;
+            }
+        }
+        // do not keep a log for lookups in missing directories
+        if (!create && !dir.isDirectory()) return null;
+        synchronized (logs_) {
+            DirLog log = logs_.get(path);
+            if (null == log) {
+                log = new DirLog(dir);
+                logs_.put(path, log);
+                trim_();
+            }
+            log.pins++;
+            return log;
+        }
+    }
+
+    private void unpin_(DirLog log) {
+        synchronized (logs_) {
+            log.pins--;
+        }
+    }
+
+    /**
+     * Drop the least recently used logs beyond the limit of loaded logs,
+     * unless they are pinned or written to. Called with the lock of
+     * {@link #logs_}
+     */
+    private void trim_() {
+        Iterator<DirLog> itr = logs_.values().iterator();
+        while (logs_.size() > maxLogs_ && itr.hasNext()) {
+            DirLog log = itr.next();
+            if (log.pins > 0 || !log.closeIfIdle()) continue;
+            itr.remove();
+            synchronized (open_) {
+                open_.remove(log);
+            }
+        }
+    }
+
+    private void opened_(DirLog log) {
+        synchronized (open_) {
+            open_.put(log, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Close the least recently used logs beyond the limit of open logs.
+     * Called without holding the lock of any log
+     */
+    private void evict_() {
+        List<DirLog> victims = null;
+        synchronized (open_) {
+            Iterator<DirLog> itr = open_.keySet().iterator();
+            while (open_.size() > maxOpen_ && itr.hasNext()) {
+                if (null == victims) victims = new ArrayList<DirLog>();
+                victims.add(itr.next());
+                itr.remove();
+            }
+        }
+        if (null == victims) return;
+        for (DirLog log : victims) {
+            if (!log.closeIfIdle()) {
+                // still in use, keep tracking it
+                opened_(log);
+            }
+        }
+    }
+
+    /**
+     * A log which has been written to. It stays open until released so that
+     * the caller could sync it
+     */
+    static interface Handle {
+        FileDescriptor getFD() throws IOException;
+
+        void release();
+    }
+
+    private class DirLog implements Handle {
+        private final File dir_;
+        private final File file_;
+        private Map<String, Map<String, String>> index_ = null;
+        private FileOutputStream os_ = null;
+        private int users_ = 0;
+        private int dead_ = 0;
+        /**
+         * Number of callers between {@link #pin_} and {@link #unpin_},
+         * guarded by {@link #logs_}
+         */
+        int pins = 0;
+
+        DirLog(File dir) {
+            dir_ = dir;
+            file_ = new File(dir, LOG_NAME);
+        }
+
+        synchronized void load() throws IOException {
+            if (null != index_) return;
+            index_ = new HashMap<String, Map<String, String>>();
+            if (file_.exists()) {
+                read_();
+            }
+            if (migrate_) {
+                migrate_();
+            }
+        }
+
+        synchronized Map<String, String> get(String name) {
+            Map<String, String> attrs = index_.get(name);
+            return null == attrs ? null : new HashMap<String, String>(attrs);
+        }
+
+        /**
+         * Append a put record, the log is left acquired
+         */
+        synchronized void put(String name, Map<String, String> attrs) throws IOException {
+            append_(encode_(OP_PUT, name, attrs));
+            if (null != index_.put(name, new HashMap<String, String>(attrs))) {
+                ++dead_;
+            }
+            ++users_;
+        }
+
+        /**
+         * Append a remove record if the object has attributes, in which case
+         * the log is left acquired
+         */
+        synchronized boolean remove(String name) throws IOException {
+            if (!index_.containsKey(name)) return false;
+            append_(encode_(OP_REMOVE, name, null));
+            index_.remove(name);
+            // the put and the remove records are both dead now
+            dead_ += 2;
+            ++users_;
+            return true;
+        }
+
+        @Override
+        public synchronized FileDescriptor getFD() throws IOException {
+            return os_.getFD();
+        }
+
+        @Override
+        public void release() {
+            synchronized (this) {
+                --users_;
+                if (users_ > 0 || dead_ < MIN_COMPACTION_DEAD || dead_ <= index_.size()) {
+                    return;
+                }
+                try {
+                    compact_();
+                } catch (IOException e) {
+                    Logger.error(e, "error compacting attribute log %s", file_);
+                }
+            }
+        }
+
+        synchronized boolean closeIfIdle() {
+            if (users_ > 0) return false;
+            closeStream();
+            return true;
+        }
+
+        synchronized void closeStream() {
+            if (null == os_) return;
+            try {
+                os_.close();
+            } catch (IOException e) {
+                Logger.warn(e, "error closing attribute log %s", file_);
+            }
+            os_ = null;
+        }
+
+        private void append_(byte[] record) throws IOException {
+            if (null == os_) {
+                os_ = new FileOutputStream(file_, true);
+                opened_(this);
+            }
+            os_.write(record);
+        }
+
+        private void read_() throws IOException {
+            long valid = 0;
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file_)));
+            try {
+                while (true) {
+                    int len;
+                    try {
+                        len = dis.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (len <= 0 || len > file_.length()) break;
+                    byte[] payload = new byte[len];
+                    int crc;
+                    try {
+                        crc = dis.readInt();
+                        dis.readFully(payload);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    CRC32 crc32 = new CRC32();
+                    crc32.update(payload);
+                    if ((int) crc32.getValue() != crc) break;
+                    apply_(payload);
+                    valid += 8 + len;
+                }
+            } finally {
+                dis.close();
+            }
+            if (valid < file_.length()) {
+                Logger.warn("discard %s trailing bytes of attribute log %s", file_.length() - valid, file_);
+                RandomAccessFile raf = new RandomAccessFile(file_, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        private void apply_(byte[] payload) throws IOException {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = dis.readByte();
+            String name = dis.readUTF();
+            if (OP_PUT == op) {
+                int n = dis.readInt();
+                Map<String, String> attrs = new HashMap<String, String>(n * 2);
+                for (int i = 0; i < n; ++i) {
+                    attrs.put(dis.readUTF(), dis.readUTF());
+                }
+                if (null != index_.put(name, attrs)) ++dead_;
+            } else {
+                index_.remove(name);
+                dead_ += 2;
+            }
+        }
+
+        private void migrate_() throws IOException {
+            File[] legacy = dir_.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(LEGACY_SUFFIX) && !name.startsWith(".");
+                }
+            });
+            if (null == legacy || legacy.length == 0) return;
+            List<File> migrated = new ArrayList<File>();
+            for (File f : legacy) {
+                String name = f.getName().substring(0, f.getName().length() - LEGACY_SUFFIX.length());
+                // without its object, or not written by Properties.store, the
+                // file could be an object of its own
+                if (!new File(dir_, name).isFile() || !isLegacy_(f)) continue;
+                migrated.add(f);
+                // a record in the log is newer than the legacy file
+                if (!index_.containsKey(name)) {
+                    Properties p = new Properties();
+                    InputStream is = new BufferedInputStream(new FileInputStream(f));
+                    try {
+                        p.load(is);
+                    } finally {
+                        is.close();
+                    }
+                    Map<String, String> attrs = new HashMap<String, String>();
+                    for (String k : p.stringPropertyNames()) {
+                        attrs.put(k, p.getProperty(k));
+                    }
+                    append_(encode_(OP_PUT, name, attrs));
+                    index_.put(name, attrs);
+                }
+            }
+            if (migrated.isEmpty()) return;
+            if (null != os_) {
+                os_.getFD().sync();
+            }
+            for (File f : migrated) {
+                f.delete();
+            }
+            Logger.info("migrated %s attribute files into %s", migrated.size(), file_);
+        }
+
+        /**
+         * Legacy attribute files were written by {@link Properties#store}
+         * with an empty comment, and start with a comment line
+         */
+        private boolean isLegacy_(File f) throws IOException {
+            InputStream is = new FileInputStream(f);
+            try {
+                return '#' == is.read();
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * Rewrite the log with the live records only
+         */
+        private void compact_() throws IOException {
+            File tmp = new File(dir_, LOG_NAME + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                OutputStream os = new BufferedOutputStream(fos);
+                for (Map.Entry<String, Map<String, String>> e : index_.entrySet()) {
+                    os.write(encode_(OP_PUT, e.getKey(), e.getValue()));
+                }
+                os.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            closeStream();
+            if (!tmp.renameTo(file_)) {
+                if (!(file_.delete() && tmp.renameTo(file_))) {
+                    tmp.delete();
+                    throw new IOException("cannot replace " + file_);
+                }
+            }
+            dead_ = 0;
+        }
+
+        private byte[] encode_(byte op, String name, Map<String, String> attrs) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+            DataOutputStream dos = new DataOutputStream(payload);
+            dos.writeByte(op);
+            dos.writeUTF(name);
+            if (OP_PUT == op) {
+                dos.writeInt(attrs.size());
+                for (Map.Entry<String, String> e : attrs.entrySet()) {
+                    dos.writeUTF(e.getKey());
+                    dos.writeUTF(e.getValue());
+                }
+            }
+            byte[] buf = payload.toByteArray();
+            CRC32 crc32 = new CRC32();
+            crc32.update(buf);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(buf.length + 8);
+            dos = new DataOutputStream(record);
+            dos.writeInt(buf.length);
+            dos.writeInt((int) crc32.getValue());
+            dos.write(buf);
+            return record.toByteArray();
+        }
+    }
+}
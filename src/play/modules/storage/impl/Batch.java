@@ -0,0 +1,131 @@
+package play.modules.storage.impl;
+
+import play.modules.storage.BatchResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run the keys of a bulk operation with bounded concurrency. Keys come in
+ * groups; the keys of a group are processed one after the other by the same
+ * worker, different groups are processed in parallel. The calling thread is
+ * one of the workers so that a batch always makes progress, even when the
+ * shared pool is busy
+ */
+class Batch {
+
+    public static final String CONF_PARALLELISM = "storage.batch.parallelism";
+
+    static final int DEF_PARALLELISM = 8;
+
+    /**
+     * Process one key of a batch
+     */
+    static interface KeyOp<T> {
+        T apply(String key) throws Exception;
+    }
+
+    private static ExecutorService executor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger n = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "storage-batch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static int parallelism(Map<String, String> conf) {
+        String s = conf.get(CONF_PARALLELISM);
+        return null == s ? DEF_PARALLELISM : Math.max(1, Integer.parseInt(s.trim()));
+    }
+
+    /**
+     * @return every key in a group of its own
+     */
+    static List<List<String>> singletons(Collection<String> keys) {
+        List<List<String>> groups = new ArrayList<List<String>>(keys.size());
+        for (String key : keys) {
+            groups.add(Collections.singletonList(key));
+        }
+        return groups;
+    }
+
+    /**
+     * @return the keys grouped by the directory part of the key
+     */
+    static List<List<String>> byDirectory(Collection<String> keys) {
+        Map<String, List<String>> m = new LinkedHashMap<String, List<String>>();
+        for (String key : keys) {
+            String k = key.replace('\\', '/');
+            int pos = k.lastIndexOf('/');
+            String dir = pos < 0 ? "" : k.substring(0, pos);
+            List<String> l = m.get(dir);
+            if (null == l) {
+                l = new ArrayList<String>();
+                m.put(dir, l);
+            }
+            l.add(key);
+        }
+        return new ArrayList<List<String>>(m.values());
+    }
+
+    /**
+     * @return the keys split in chunks of at most <code>size</code> keys
+     */
+    static List<List<String>> chunks(Collection<String> keys, int size) {
+        List<String> l = new ArrayList<String>(keys);
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < l.size(); i += size) {
+            chunks.add(l.subList(i, Math.min(l.size(), i + size)));
+        }
+        return chunks;
+    }
+
+    static <T> BatchResult<T> run(List<List<String>> groups, int parallelism, final KeyOp<T> op) {
+        final BatchResult<T> result = new BatchResult<T>();
+        final Queue<List<String>> queue = new ConcurrentLinkedQueue<List<String>>(groups);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                List<String> group;
+                while (null != (group = queue.poll())) {
+                    for (String key : group) {
+                        try {
+                            result.success(key, op.apply(key));
+                        } catch (Exception e) {
+                            result.failure(key, e);
+                        }
+                    }
+                }
+            }
+        };
+        int n = Math.min(parallelism, groups.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(n);
+        for (int i = 1; i < n; ++i) {
+            futures.add(executor_.submit(worker));
+        }
+        worker.run();
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // workers record their errors in the result
+            }
+        }
+        return result;
+    }
+}
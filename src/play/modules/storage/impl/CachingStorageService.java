@@ -0,0 +1,484 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.StoragePlugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read through cache in front of another {@link IStorageService}. The
+ * content of small objects is kept in memory so that hot objects are served
+ * without any I/O on the underline service.
+ * <p/>
+ * The cache is bounded by the total number of bytes held. Admission and
+ * eviction follow the W-TinyLFU policy: new objects enter a small LRU window,
+ * and an object leaving the window is only admitted into the main segmented
+ * LRU if it has been requested more often than the object it would evict,
+ * as estimated by a count-min sketch. This keeps one off reads of large
+ * galleries from flushing the hot pictures.
+ * <p/>
+ * The cache is enabled by <code>storage.cache.enabled=true</code> and sized
+ * by <code>storage.cache.maxBytes</code> and
+ * <code>storage.cache.maxObjectSize</code>
+ */
+public class CachingStorageService implements IManagedStorageService {
+
+    public static final String CONF_ENABLED = "storage.cache.enabled";
+    public static final String CONF_MAX_BYTES = "storage.cache.maxBytes";
+    public static final String CONF_MAX_OBJECT_SIZE = "storage.cache.maxObjectSize";
+
+    private IStorageService service_;
+
+    private long maxBytes_ = 64L * 1024 * 1024;
+    private long maxObjectSize_ = 256L * 1024;
+
+    private Policy policy_;
+
+    /**
+     * Bumped by every put or remove so that a value loaded concurrently with
+     * a write is not put into the cache after the write invalidated it
+     */
+    private AtomicLong writes_ = new AtomicLong();
+
+    private AtomicLong hits_ = new AtomicLong();
+    private AtomicLong misses_ = new AtomicLong();
+    private AtomicLong evictions_ = new AtomicLong();
+
+    public CachingStorageService(IStorageService service) {
+        if (null == service) throw new NullPointerException();
+        service_ = service;
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        maxBytes_ = StoragePlugin.bytesOf(conf.get(CONF_MAX_BYTES), maxBytes_);
+        maxObjectSize_ = StoragePlugin.bytesOf(conf.get(CONF_MAX_OBJECT_SIZE), maxObjectSize_);
+        policy_ = new Policy(maxBytes_, maxObjectSize_);
+        Logger.info("storage cache configured: %s bytes, objects up to %s bytes", maxBytes_, maxObjectSize_);
+    }
+
+    public IStorageService getService() {
+        return service_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.singletonList(service_);
+    }
+
+    /**
+     * Nothing to release, the cached objects go with the service
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public ISObject get(String key) {
+        Entry e = policy_.get(key);
+        if (null != e) {
+            hits_.incrementAndGet();
+            return e.toSObject(key);
+        }
+        misses_.incrementAndGet();
+        long version = writes_.get();
+        return cache_(key, service_.get(key), version);
+    }
+
+    /**
+     * Put a small object loaded from the underline service into the cache
+     *
+     * @param version the write counter read before the object was loaded
+     * @return the object to return to the caller
+     */
+    private ISObject cache_(String key, ISObject sobj, long version) {
+        if (!SObject.exists(sobj)) {
+            // the caller tells a missing file apart, e.g. to answer 404
+            return sobj;
+        }
+        long len = sobj.getLength();
+        if (len < 0 || len > maxObjectSize_) {
+            return sobj;
+        }
+        Entry e;
+        try {
+            e = new Entry(sobj);
+        } catch (IOException ex) {
+            Logger.warn(ex, "storage cache: error loading object by key [%s]", key);
+            return sobj;
+        } catch (RuntimeException ex) {
+            Logger.warn(ex, "storage cache: error loading object by key [%s]", key);
+            return sobj;
+        }
+        if (version == writes_.get()) {
+            policy_.put(key, e);
+        }
+        return e.toSObject(key);
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        writes_.incrementAndGet();
+        policy_.remove(key);
+        try {
+            service_.put(key, stuff);
+        } finally {
+            writes_.incrementAndGet();
+            policy_.remove(key);
+        }
+    }
+
+    /**
+     * Invalidate before and after the removal, as {@link #put}: a get which
+     * loaded the object while it was being removed must not cache it
+     */
+    @Override
+    public ISObject remove(String key) {
+        writes_.incrementAndGet();
+        policy_.remove(key);
+        try {
+            return service_.remove(key);
+        } finally {
+            writes_.incrementAndGet();
+            policy_.remove(key);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        writes_.incrementAndGet();
+        policy_.remove(key);
+        try {
+            return service_.delete(key);
+        } finally {
+            writes_.incrementAndGet();
+            policy_.remove(key);
+        }
+    }
+
+    /**
+     * Serve the cached keys from memory and get the others from the
+     * underline service in one batch
+     */
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        BatchResult<ISObject> result = new BatchResult<ISObject>();
+        List<String> missed = new ArrayList<String>();
+        for (String key : keys) {
+            Entry e = policy_.get(key);
+            if (null == e) {
+                missed.add(key);
+            } else {
+                hits_.incrementAndGet();
+                result.success(key, e.toSObject(key));
+            }
+        }
+        if (missed.isEmpty()) {
+            return result;
+        }
+        misses_.addAndGet(missed.size());
+        long version = writes_.get();
+        BatchResult<ISObject> loaded = service_.getAll(missed);
+        for (Map.Entry<String, Throwable> err : loaded.getErrors().entrySet()) {
+            result.failure(err.getKey(), err.getValue());
+        }
+        for (Map.Entry<String, ISObject> o : loaded.getResults().entrySet()) {
+            result.success(o.getKey(), cache_(o.getKey(), o.getValue(), version));
+        }
+        return result;
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+        invalidate_(objects.keySet());
+        try {
+            return service_.putAll(objects);
+        } finally {
+            invalidate_(objects.keySet());
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        invalidate_(keys);
+        try {
+            return service_.removeAll(keys);
+        } finally {
+            invalidate_(keys);
+        }
+    }
+
+    private void invalidate_(Collection<String> keys) {
+        writes_.incrementAndGet();
+        for (String key : keys) {
+            policy_.remove(key);
+        }
+    }
+
+    @Override
+    public String getUrl(String key) {
+        return service_.getUrl(key);
+    }
+
+    public long getHitCount() {
+        return hits_.get();
+    }
+
+    public long getMissCount() {
+        return misses_.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions_.get();
+    }
+
+    /**
+     * @return number of bytes currently held by the cache
+     */
+    public long getWeight() {
+        return policy_.weight();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return String.format("storage cache: hits=%d misses=%d hitRatio=%.3f evictions=%d bytes=%d/%d",
+                hits, getMissCount(), total == 0 ? 0.0 : (double) hits / total, getEvictionCount(),
+                getWeight(), maxBytes_);
+    }
+
+    /**
+     * The cached content and metadata of an object
+     */
+    private static class Entry {
+        final byte[] buf;
+        final Map<String, String> attrs;
+        final String etag;
+        final long lastModified;
+
+        Entry(ISObject sobj) throws IOException {
+            buf = sobj.asByteArray();
+            attrs = sobj.getAttributes();
+            etag = sobj.getETag();
+            lastModified = sobj.getLastModified();
+        }
+
+        int weight() {
+            return buf.length;
+        }
+
+        ISObject toSObject(String key) {
+            SObject sobj = (SObject) SObject.asSObject(key, buf);
+            for (Map.Entry<String, String> attr : attrs.entrySet()) {
+                sobj.setAttribute(attr.getKey(), attr.getValue());
+            }
+            sobj.setETag(etag);
+            sobj.setLastModified(lastModified);
+            return sobj;
+        }
+    }
+
+    /**
+     * W-TinyLFU bounded by bytes. The window takes 1% of the capacity, the
+     * main space is split into a probation (20%) and a protected (80%) LRU
+     * segment
+     */
+    private class Policy {
+        private final long windowMax_;
+        private final long protectedMax_;
+        private final long mainMax_;
+
+        private final LinkedHashMap<String, Entry> window_ = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> probation_ = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protected_ = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private long windowWeight_ = 0;
+        private long probationWeight_ = 0;
+        private long protectedWeight_ = 0;
+
+        private final FrequencySketch sketch_;
+
+        Policy(long maxBytes, long maxObjectSize) {
+            windowMax_ = Math.max(maxBytes / 100, Math.min(maxObjectSize, maxBytes));
+            mainMax_ = maxBytes - windowMax_;
+            protectedMax_ = mainMax_ * 8 / 10;
+            // assume an average entry of a quarter of the object size limit
+            long entries = maxBytes / Math.max(1, maxObjectSize / 4);
+            sketch_ = new FrequencySketch((int) Math.min(Math.max(entries, 256), 1 << 24));
+        }
+
+        synchronized Entry get(String key) {
+            sketch_.increment(key);
+            Entry e = window_.get(key);
+            if (null != e) {
+                return e;
+            }
+            e = probation_.remove(key);
+            if (null != e) {
+                // promote to protected, demote protected overflow back to probation
+                probationWeight_ -= e.weight();
+                protected_.put(key, e);
+                protectedWeight_ += e.weight();
+                while (protectedWeight_ > protectedMax_) {
+                    Map.Entry<String, Entry> lru = protected_.entrySet().iterator().next();
+                    protected_.remove(lru.getKey());
+                    protectedWeight_ -= lru.getValue().weight();
+                    probation_.put(lru.getKey(), lru.getValue());
+                    probationWeight_ += lru.getValue().weight();
+                }
+                return e;
+            }
+            return protected_.get(key);
+        }
+
+        synchronized void put(String key, Entry e) {
+            remove(key);
+            window_.put(key, e);
+            windowWeight_ += e.weight();
+            while (windowWeight_ > windowMax_) {
+                Map.Entry<String, Entry> candidate = window_.entrySet().iterator().next();
+                window_.remove(candidate.getKey());
+                windowWeight_ -= candidate.getValue().weight();
+                admit_(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        /**
+         * Move a candidate leaving the window into probation, evicting
+         * probation victims as long as the candidate is used more often
+         */
+        private void admit_(String key, Entry candidate) {
+            int freq = sketch_.frequency(key);
+            Iterator<Map.Entry<String, Entry>> victims = probation_.entrySet().iterator();
+            while (mainWeight_() + candidate.weight() > mainMax_) {
+                if (!victims.hasNext()) {
+                    // everything left is protected, demote it to probation first
+                    if (protected_.isEmpty()) break;
+                    Map.Entry<String, Entry> lru = protected_.entrySet().iterator().next();
+                    protected_.remove(lru.getKey());
+                    protectedWeight_ -= lru.getValue().weight();
+                    probation_.put(lru.getKey(), lru.getValue());
+                    probationWeight_ += lru.getValue().weight();
+                    victims = probation_.entrySet().iterator();
+                    continue;
+                }
+                Map.Entry<String, Entry> victim = victims.next();
+                if (sketch_.frequency(victim.getKey()) >= freq) {
+                    evictions_.incrementAndGet();
+                    return;
+                }
+                victims.remove();
+                probationWeight_ -= victim.getValue().weight();
+                evictions_.incrementAndGet();
+            }
+            if (mainWeight_() + candidate.weight() > mainMax_) {
+                evictions_.incrementAndGet();
+                return;
+            }
+            probation_.put(key, candidate);
+            probationWeight_ += candidate.weight();
+        }
+
+        private long mainWeight_() {
+            return probationWeight_ + protectedWeight_;
+        }
+
+        synchronized void remove(String key) {
+            Entry e = window_.remove(key);
+            if (null != e) {
+                windowWeight_ -= e.weight();
+                return;
+            }
+            e = probation_.remove(key);
+            if (null != e) {
+                probationWeight_ -= e.weight();
+                return;
+            }
+            e = protected_.remove(key);
+            if (null != e) {
+                protectedWeight_ -= e.weight();
+            }
+        }
+
+        synchronized long weight() {
+            return windowWeight_ + probationWeight_ + protectedWeight_;
+        }
+    }
+
+    /**
+     * A count-min sketch with 4 rows of 4 bit counters packed into longs.
+     * All counters are halved once the number of increments reaches 10 times
+     * the width so that the frequencies follow recent history
+     */
+    static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb0d1e2f3, 0x4c3b2a19, 0x8f1e2d3c};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[][] rows_;
+        private final int mask_;
+        private final int sampleSize_;
+        private int additions_ = 0;
+
+        FrequencySketch(int width) {
+            int w = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+            // each long holds 16 counters
+            rows_ = new long[SEEDS.length][Math.max(1, w / 16)];
+            mask_ = w - 1;
+            sampleSize_ = 10 * w;
+        }
+
+        private int index_(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask_;
+        }
+
+        void increment(Object o) {
+            int hash = o.hashCode();
+            boolean added = false;
+            for (int row = 0; row < rows_.length; ++row) {
+                int i = index_(hash, row);
+                int shift = (i & 15) << 2;
+                long[] r = rows_[row];
+                if (((r[i >>> 4] >>> shift) & 0xF) != 0xF) {
+                    r[i >>> 4] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions_ >= sampleSize_) {
+                reset_();
+            }
+        }
+
+        int frequency(Object o) {
+            int hash = o.hashCode();
+            int freq = 0xF;
+            for (int row = 0; row < rows_.length; ++row) {
+                int i = index_(hash, row);
+                int c = (int) ((rows_[row][i >>> 4] >>> ((i & 15) << 2)) & 0xF);
+                freq = Math.min(freq, c);
+            }
+            return freq;
+        }
+
+        private void reset_() {
+            for (long[] r : rows_) {
+                for (int i = 0; i < r.length; ++i) {
+                    r[i] = (r[i] >>> 1) & RESET_MASK;
+                }
+            }
+            additions_ /= 2;
+        }
+    }
+}
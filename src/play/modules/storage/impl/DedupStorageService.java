@@ -0,0 +1,389 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store the content of objects once per distinct payload on another
+ * {@link IStorageService}. The content is saved as a blob keyed by its
+ * SHA-256 hash, computed while the object streams in, and every logical key
+ * is a small reference object holding the hash and the attributes of the
+ * object. A reference count is kept per blob and the blob is only removed
+ * when its last reference goes away.
+ * <p/>
+ * References are written after the count is incremented and removed before
+ * it is decremented, so a crash could leave a blob with a count too high,
+ * never too low: a referenced blob is never freed.
+ * <p/>
+ * The mode is enabled by <code>storage.dedup.enabled=true</code>
+ */
+public class DedupStorageService implements IManagedStorageService {
+
+    public static final String CONF_ENABLED = "storage.dedup.enabled";
+
+    static final String BLOB_PREFIX = "blobs/";
+    static final String REF_PREFIX = "refs/";
+    static final String COUNT_PREFIX = "counts/";
+
+    private static final int STRIPES = 64;
+
+    private IStorageService service_;
+
+    private int parallelism_ = Batch.DEF_PARALLELISM;
+
+    private final Object[] keyLocks_ = newLocks_();
+    private final Object[] blobLocks_ = newLocks_();
+
+    private AtomicLong puts_ = new AtomicLong();
+    private AtomicLong duplicates_ = new AtomicLong();
+    private AtomicLong bytesSaved_ = new AtomicLong();
+
+    public DedupStorageService(IStorageService service) {
+        if (null == service) throw new NullPointerException();
+        service_ = service;
+    }
+
+    private static Object[] newLocks_() {
+        Object[] locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private static Object lock_(Object[] locks, String s) {
+        return locks[(s.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        parallelism_ = Batch.parallelism(conf);
+        Logger.info("storage deduplication enabled");
+    }
+
+    public IStorageService getService() {
+        return service_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.singletonList(service_);
+    }
+
+    /**
+     * Nothing to release
+     */
+    @Override
+    public void close() {
+    }
+
+    static String blobKey(String hash) {
+        return BLOB_PREFIX + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+    }
+
+    /**
+     * @return the reference object of the key, or <code>null</code>
+     */
+    private ISObject ref_(String key) {
+        return find_(REF_PREFIX + key);
+    }
+
+    private ISObject find_(String key) {
+        ISObject sobj = service_.get(key);
+        return SObject.exists(sobj) ? sobj : null;
+    }
+
+    private static String hashOf_(ISObject ref) {
+        try {
+            return ref.asString().trim();
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @Override
+    public ISObject get(String key) {
+        ISObject ref = ref_(key);
+        if (null == ref) {
+            return null;
+        }
+        String hash = hashOf_(ref);
+        ISObject blob = find_(blobKey(hash));
+        if (null == blob) {
+            Logger.warn("storage dedup: blob %s referenced by [%s] not found", hash, key);
+            return null;
+        }
+        return new DedupSObject(key, hash, blob, ref.getAttributes());
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        puts_.incrementAndGet();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+        ISObject content;
+        if (stuff.isFileBacked() && stuff.getLength() <= Integer.MAX_VALUE) {
+            // hash the mapped file in place, it is replayable as it is
+            md.update(stuff.asByteBuffer());
+            content = stuff;
+        } else {
+            // buffered in memory or spilled to a temp file in the same pass
+            content = SObject.asSObject(key, new DigestInputStream(stuff.asInputStream(), md));
+            content.getLength();
+        }
+        String hash = SObject.etagOf(md.digest());
+        hash = hash.substring(1, hash.length() - 1);
+
+        synchronized (lock_(keyLocks_, key)) {
+            ISObject old = ref_(key);
+            String oldHash = null == old ? null : hashOf_(old);
+            if (!hash.equals(oldHash)) {
+                acquire_(hash, content);
+            }
+            ISObject ref = SObject.asSObject(REF_PREFIX + key, hash);
+            for (Map.Entry<String, String> e : stuff.getAttributes().entrySet()) {
+                ref.setAttribute(e.getKey(), e.getValue());
+            }
+            service_.put(REF_PREFIX + key, ref);
+            if (null != oldHash && !hash.equals(oldHash)) {
+                release_(oldHash, false);
+            }
+        }
+    }
+
+    /**
+     * Add a reference to the blob, storing the content if it is the first one
+     */
+    private void acquire_(String hash, ISObject content) throws IOException {
+        synchronized (lock_(blobLocks_, hash)) {
+            long count = count_(hash);
+            if (0 == count) {
+                service_.put(blobKey(hash), content);
+            } else {
+                duplicates_.incrementAndGet();
+                bytesSaved_.addAndGet(content.getLength());
+            }
+            service_.put(COUNT_PREFIX + hash, SObject.asSObject(COUNT_PREFIX + hash, String.valueOf(count + 1)));
+        }
+    }
+
+    /**
+     * Drop a reference to the blob and free it with the last one
+     *
+     * @return the freed blob if <code>keep</code> is set and this was the
+     * last reference, the still referenced blob if <code>keep</code> is set,
+     * <code>null</code> otherwise
+     */
+    private ISObject release_(String hash, boolean keep) {
+        synchronized (lock_(blobLocks_, hash)) {
+            long count = count_(hash) - 1;
+            if (count > 0) {
+                try {
+                    service_.put(COUNT_PREFIX + hash, SObject.asSObject(COUNT_PREFIX + hash, String.valueOf(count)));
+                } catch (IOException e) {
+                    // the count stays too high, the blob leaks but is never lost
+                    Logger.warn(e, "storage dedup: error decrementing reference count of %s", hash);
+                }
+                return keep ? service_.get(blobKey(hash)) : null;
+            }
+            ISObject blob = null;
+            if (keep) {
+                blob = service_.remove(blobKey(hash));
+            } else {
+                service_.delete(blobKey(hash));
+            }
+            service_.delete(COUNT_PREFIX + hash);
+            return blob;
+        }
+    }
+
+    private long count_(String hash) {
+        ISObject sobj = find_(COUNT_PREFIX + hash);
+        if (null == sobj) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(sobj.asString().trim());
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @Override
+    public ISObject remove(String key) {
+        synchronized (lock_(keyLocks_, key)) {
+            ISObject ref = ref_(key);
+            if (null == ref) {
+                return null;
+            }
+            String hash = hashOf_(ref);
+            service_.delete(REF_PREFIX + key);
+            ISObject blob = release_(hash, true);
+            return null == blob ? null : new DedupSObject(key, hash, blob, ref.getAttributes());
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        synchronized (lock_(keyLocks_, key)) {
+            ISObject ref = ref_(key);
+            if (null == ref) {
+                return false;
+            }
+            String hash = hashOf_(ref);
+            service_.delete(REF_PREFIX + key);
+            release_(hash, false);
+            return true;
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.singletons(objects.keySet()), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return remove(key);
+            }
+        });
+    }
+
+    /**
+     * @return the URL of the blob referenced by the key, <code>null</code>
+     * if the key is not found
+     */
+    @Override
+    public String getUrl(String key) {
+        ISObject ref = ref_(key);
+        return null == ref ? null : service_.getUrl(blobKey(hashOf_(ref)));
+    }
+
+    public long getDuplicateCount() {
+        return duplicates_.get();
+    }
+
+    /**
+     * @return number of bytes not written thanks to deduplication
+     */
+    public long getBytesSaved() {
+        return bytesSaved_.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("storage dedup: puts=%d duplicates=%d bytesSaved=%d",
+                puts_.get(), getDuplicateCount(), getBytesSaved());
+    }
+
+    /**
+     * A logical object: the key and attributes of the reference with the
+     * content of the blob. The ETag is the content hash
+     */
+    private static class DedupSObject extends SObject {
+        private ISObject blob_;
+
+        DedupSObject(String key, String hash, ISObject blob, Map<String, String> attrs) {
+            super(key);
+            blob_ = blob;
+            setETag('"' + hash + '"');
+            setLastModified(blob.getLastModified());
+            for (Map.Entry<String, String> e : attrs.entrySet()) {
+                setAttribute(e.getKey(), e.getValue());
+            }
+        }
+
+        @Override
+        public long getLength() {
+            return blob_.getLength();
+        }
+
+        @Override
+        public File asFile() throws IOException {
+            return blob_.asFile();
+        }
+
+        @Override
+        public String asString() throws IOException {
+            return blob_.asString();
+        }
+
+        @Override
+        public byte[] asByteArray() throws IOException {
+            return blob_.asByteArray();
+        }
+
+        @Override
+        public InputStream asInputStream() throws IOException {
+            return blob_.asInputStream();
+        }
+
+        @Override
+        public InputStream asInputStream(long offset, long length) throws IOException {
+            return blob_.asInputStream(offset, length);
+        }
+
+        @Override
+        public boolean isFileBacked() {
+            return blob_.isFileBacked();
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            return blob_.transferTo(target);
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            return blob_.asByteBuffer();
+        }
+
+        @Override
+        public ReadableByteChannel asChannel() throws IOException {
+            return blob_.asChannel();
+        }
+    }
+}
@@ -1,24 +1,74 @@
 package play.modules.storage.impl;
 
+import play.Logger;
 import play.Play;
-import play.libs.Files;
+import play.exceptions.ConfigurationException;
 import play.libs.IO;
+import play.modules.storage.BatchResult;
 import play.modules.storage.ISObject;
 import play.modules.storage.IStorageService;
 import play.modules.storage.StoragePlugin;
 import play.vfs.VirtualFile;
 
 import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileStorageService implements IStorageService {
 
     public static final String CONF_HOME = "storage.file.dir";
+    public static final String CONF_SYNC = "storage.file.sync";
+    public static final String CONF_SYNC_MAX_DELAY = "storage.file.sync.maxDelay";
+    public static final String CONF_ATTR_OPEN_LOGS = "storage.file.attr.openLogs";
+    public static final String CONF_ATTR_MAX_LOGS = "storage.file.attr.maxLogs";
+    public static final String CONF_ATTR_MIGRATE = "storage.file.attr.migrate";
+    public static final String CONF_TRASH_TTL = "storage.file.trash.ttl";
+
+    static final String TRASH_DIR = ".trash";
+
+    /**
+     * How writes are made durable
+     * 1. NONE, rely on the OS to flush written objects
+     * 2. PER_WRITE, every put syncs its files before they are published
+     * 3. GROUP, as PER_WRITE but the files shared by concurrent puts, i.e.
+     * the attribute log of a directory, are synced once for all the puts
+     * waiting on them, see {@link GroupCommitter}. A sync waits
+     * <code>storage.file.sync.maxDelay</code> ms (default 0) for more puts
+     * to join
+     */
+    public static enum SyncMode {
+        NONE, PER_WRITE, GROUP;
+
+        public static SyncMode valueOfIgnoreCase(String s) {
+            s = s.trim().replace('-', '_');
+            for (SyncMode m : values()) {
+                if (m.name().equalsIgnoreCase(s)) return m;
+            }
+            throw new ConfigurationException("unknown storage.file.sync mode: " + s);
+        }
+    }
 
     private VirtualFile root_ = null;
+    private File rootDir_ = null;
+    private Set<String> knownDirs_ = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private String urlRoot_ = null;
+    private int parallelism_ = Batch.DEF_PARALLELISM;
+    private SyncMode syncMode_ = SyncMode.NONE;
+    private GroupCommitter committer_ = null;
+    private AttributeStore attrs_ = null;
+    private File trash_ = null;
+    private long trashTtl_ = 600 * 1000L;
+    private ScheduledExecutorService purger_ = null;
+    private AtomicLong tmpSeq_ = new AtomicLong(System.nanoTime());
 
     public FileStorageService() {
     }
@@ -32,10 +82,58 @@ public class FileStorageService implements IStorageService {
         if (!root_.exists())
             root_.getRealFile().mkdir();
         else if (!root_.isDirectory()) throw new RuntimeException("cannot create root dir for file storage");
+        rootDir_ = root_.getRealFile();
+        knownDirs_.clear();
+
+        trash_ = new File(rootDir_, TRASH_DIR);
+        if (!trash_.mkdir() && !trash_.isDirectory()) {
+            throw new RuntimeException("cannot create trash dir for file storage");
+        }
+        String ttl = conf.get(CONF_TRASH_TTL);
+        if (null != ttl) trashTtl_ = Long.parseLong(ttl.trim()) * 1000L;
+        if (null != purger_) purger_.shutdown();
+        purger_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-trash-purge");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000L, trashTtl_ / 2);
+        purger_.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purgeTrash();
+                } catch (RuntimeException e) {
+                    Logger.error(e, "error purging storage trash");
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+
+        if (null != attrs_) attrs_.close();
+        String openLogs = conf.get(CONF_ATTR_OPEN_LOGS);
+        String maxLogs = conf.get(CONF_ATTR_MAX_LOGS);
+        attrs_ = new AttributeStore(null == openLogs ? 128 : Integer.parseInt(openLogs.trim()),
+                null == maxLogs ? 4096 : Integer.parseInt(maxLogs.trim()),
+                !"false".equalsIgnoreCase(conf.get(CONF_ATTR_MIGRATE)));
         urlRoot_ = conf.get("storage.url.root").replace('\\', '/');
         if (!urlRoot_.endsWith("/")) {
             urlRoot_ = urlRoot_ + '/';
         }
+        parallelism_ = Batch.parallelism(conf);
+
+        String sync = conf.get(CONF_SYNC);
+        syncMode_ = null == sync ? SyncMode.NONE : SyncMode.valueOfIgnoreCase(sync);
+        if (null != committer_) {
+            committer_.stop();
+            committer_ = null;
+        }
+        if (SyncMode.GROUP == syncMode_) {
+            String delay = conf.get(CONF_SYNC_MAX_DELAY);
+            committer_ = new GroupCommitter(null == delay ? 0 : Long.parseLong(delay.trim()));
+        }
     }
 
     public FileStorageService(Map<String, String> conf) {
@@ -50,67 +148,226 @@ public class FileStorageService implements IStorageService {
     @Override
     public ISObject get(String key) {
         key = key.replace('\\', '/');
-        String[] path = key.split("/");
-        int l = path.length;
-        VirtualFile vf = root_;
-        for (int i = 0; i < l; ++i) {
-            vf = vf.child(path[i]);
+        File f = resolve(key);
+        ISObject sobj = SObject.asSObject(key, f);
+        loadAttributes_(sobj, f);
+        return sobj;
+    }
+
+    private void loadAttributes_(ISObject sobj, File f) {
+        try {
+            for (Map.Entry<String, String> e : attrs_.get(f.getParentFile(), f.getName()).entrySet()) {
+                sobj.setAttribute(e.getKey(), e.getValue());
+            }
+        } catch (IOException e) {
+            Logger.error(e, "error reading attributes of [%s]", sobj.getKey());
+        }
+    }
+
+    /**
+     * Map a key to its file under the storage root without touching the
+     * file system
+     */
+    File resolve(String key) {
+        return new File(rootDir_, key.replace('\\', '/'));
+    }
+
+    /**
+     * @return the storage root folder
+     */
+    File rootDir() {
+        return rootDir_;
+    }
+
+    /**
+     * Make sure the parent directory of a file exists. Directories known to
+     * exist are remembered so that puts into the same directories, e.g. the
+     * ones of a <code>BY_DATE</code> structure, do not hit the file system;
+     * missing parents are created in one step
+     *
+     * @return the parent directory
+     */
+    File ensureParent(File f) throws IOException {
+        File dir = f.getParentFile();
+        String path = dir.getPath();
+        if (knownDirs_.contains(path)) {
+            return dir;
+        }
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("cannot store the object into storage: " + dir + " is not a directory");
         }
-        return SObject.asSObject(key, vf.getRealFile());
+        knownDirs_.add(path);
+        return dir;
+    }
+
+    /**
+     * @return the number of directories known to exist
+     */
+    int knownDirectories() {
+        return knownDirs_.size();
     }
 
     @Override
     public void put(String key, ISObject stuff) throws IOException {
-        key = key.replace('\\', '/');
-        String[] path = key.split("/");
-        int l = path.length;
-        VirtualFile vf = root_;
-        for (int i = 0; i < l - 1; ++i) {
-            vf = vf.child(path[i]);
-            if (!vf.exists()) {
-                vf.getRealFile().mkdir();
-            } else {
-                if (!vf.isDirectory()) {
-                    throw new IOException("cannot store the object into storage: " + vf.getName() + " is not a directory");
+        File target = resolve(key);
+        File dir = ensureParent(target);
+        String name = target.getName();
+
+        // write to a temporary file next to the target and publish it with
+        // a rename, so a concurrent get never sees a partially written object
+        File tmp = tmpFile_(dir, name);
+        FileOutputStream fos = null;
+        AttributeStore.Handle attrLog = null;
+        try {
+            try {
+                fos = new FileOutputStream(tmp);
+            } catch (FileNotFoundException e) {
+                // the directory might have been removed behind our back
+                knownDirs_.remove(dir.getPath());
+                ensureParent(target);
+                fos = new FileOutputStream(tmp);
+            }
+            OutputStream os = new BufferedOutputStream(fos);
+            InputStream is = new BufferedInputStream(stuff.asInputStream());
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    os.write(buf, 0, n);
                 }
+            } finally {
+                is.close();
             }
+            os.flush();
+
+            // attributes first: once the content is visible its attributes are
+            attrLog = attrs_.put(dir, name, stuff.getAttributes());
+
+            switch (syncMode_) {
+                case PER_WRITE:
+                    fos.getFD().sync();
+                    if (null != attrLog) attrLog.getFD().sync();
+                    break;
+                case GROUP:
+                    if (null == attrLog) {
+                        committer_.sync(fos.getFD());
+                    } else {
+                        committer_.sync(fos.getFD(), attrLog.getFD());
+                    }
+                    break;
+                default:
+            }
+            fos.close();
+            fos = null;
+            rename_(tmp, target);
+        } finally {
+            if (null != attrLog) attrLog.release();
+            if (null != fos) fos.close();
+            tmp.delete();
         }
-        VirtualFile vfObj = vf.child(path[l - 1]);
-        OutputStream os = new BufferedOutputStream(vfObj.outputstream());
-        IO.write(new BufferedInputStream(stuff.asInputStream()), os);
-        os.close();
-        
-        if (stuff.hasAttribute()) {
-            VirtualFile vfAttr = vf.child(path[l - 1] + ".attr");
-            os = new BufferedOutputStream(vfAttr.outputstream());
-            Properties p = new Properties();
-            p.putAll(stuff.getAttributes());
-            p.store(os, "");
-            os.close();
-        }
     }
 
+    private File tmpFile_(File dir, String name) {
+        return new File(dir, "." + name + "." + Long.toHexString(tmpSeq_.incrementAndGet()) + ".tmp");
+    }
+
+    private static void rename_(File from, File to) throws IOException {
+        if (from.renameTo(to)) return;
+        // some platforms do not replace an existing target
+        if (to.exists() && to.delete() && from.renameTo(to)) return;
+        throw new IOException("cannot rename " + from + " to " + to);
+    }
+
+    /**
+     * Move the object into the trash folder of the storage with a rename,
+     * which costs the same whatever the size of the object, and return a
+     * handle on the moved file. Trashed files are purged in the background
+     * once they are older than <code>storage.file.trash.ttl</code> seconds,
+     * callers interested in the content shall read it before
+     */
     @Override
     public ISObject remove(String key) {
         key = key.replace('\\', '/');
-        String[] path = key.split("/");
-        int l = path.length;
-        VirtualFile vf = root_;
-        for (int i = 0; i < l - 1; ++i) {
-            vf = vf.child(path[i]);
-        }
-        VirtualFile vfObj = vf.child(path[l - 1]);
-        if (!vfObj.exists()) {
+        File f = resolve(key);
+        File trashed = new File(trash_, Long.toHexString(tmpSeq_.incrementAndGet()) + "-" + f.getName());
+        if (!f.renameTo(trashed)) {
             return null;
         }
-        File tmpFile = SObject.createTempFile();
-        Files.copy(vfObj.getRealFile(), tmpFile);
-        vfObj.getRealFile().delete();
-        VirtualFile vfAttr = vf.child(path[l - 1] + ".attr");
-        if (vfAttr.exists()) {
-            vfAttr.getRealFile().delete();
+        // a rename keeps the modification time, stamp the time of removal
+        trashed.setLastModified(System.currentTimeMillis());
+        ISObject sobj = SObject.asSObject(key, trashed);
+        loadAttributes_(sobj, f);
+        removeAttributes_(key, f);
+        return sobj;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        key = key.replace('\\', '/');
+        File f = resolve(key);
+        if (!f.delete()) {
+            return false;
+        }
+        removeAttributes_(key, f);
+        return true;
+    }
+
+    private void removeAttributes_(String key, File f) {
+        try {
+            attrs_.remove(f.getParentFile(), f.getName());
+        } catch (IOException e) {
+            Logger.error(e, "error removing attributes of [%s]", key);
+        }
+    }
+
+    /**
+     * Delete the trashed files older than the ttl
+     */
+    void purgeTrash() {
+        File[] files = trash_.listFiles();
+        if (null == files) return;
+        long expire = System.currentTimeMillis() - trashTtl_;
+        for (File f : files) {
+            if (f.lastModified() < expire) {
+                f.delete();
+            }
         }
-        return SObject.asSObject(key, tmpFile);
+    }
+
+    /**
+     * Keys in the same directory are processed by the same worker, different
+     * directories in parallel
+     */
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.byDirectory(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.byDirectory(objects.keySet()), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return Batch.run(Batch.byDirectory(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return remove(key);
+            }
+        });
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,131 @@
+package play.modules.storage.impl;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Share the syncs of files written by several concurrent writers, e.g. the
+ * attribute log of a directory. Each writer syncs on its own thread, so
+ * the files of different writers are flushed concurrently. A writer asking
+ * for a file to be synced while a sync of it is in flight waits for the
+ * next one, and all writers waiting then are released by that single sync:
+ * the first of them leads it, the others follow.
+ * <p/>
+ * A leader waits <code>maxDelay</code> ms before syncing, to let more
+ * writers join
+ */
+class GroupCommitter {
+
+    /**
+     * The sync state of one file. Writers take a ticket after writing, a
+     * sync started after a ticket was taken covers it
+     */
+    private static class Ticket {
+        long requested = 0;
+        long synced = 0;
+        boolean inFlight = false;
+        int waiters = 0;
+    }
+
+    private final long maxDelayNanos_;
+    private final Map<FileDescriptor, Ticket> tickets_ = new IdentityHashMap<FileDescriptor, Ticket>();
+    private volatile boolean stopped_ = false;
+
+    private long syncs_ = 0;
+    private long requests_ = 0;
+
+    GroupCommitter(long maxDelayMillis) {
+        maxDelayNanos_ = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * Block until everything written to the files so far is synced to
+     * disk. The same file passed twice is synced once
+     */
+    void sync(FileDescriptor... fds) throws IOException {
+        if (stopped_) throw new IOException("group committer stopped");
+        for (int i = 0; i < fds.length; ++i) {
+            boolean dup = false;
+            for (int j = 0; j < i && !dup; ++j) {
+                dup = fds[j] == fds[i];
+            }
+            if (!dup) sync_(fds[i]);
+        }
+    }
+
+    void stop() {
+        stopped_ = true;
+    }
+
+    /**
+     * @return the average number of file sync requests served per sync
+     */
+    synchronized double getAverageBatchSize() {
+        return syncs_ == 0 ? 0 : (double) requests_ / syncs_;
+    }
+
+    private void sync_(FileDescriptor fd) throws IOException {
+        Ticket t;
+        long mine;
+        synchronized (tickets_) {
+            t = tickets_.get(fd);
+            if (null == t) {
+                t = new Ticket();
+                tickets_.put(fd, t);
+            }
+            t.waiters++;
+            mine = ++t.requested;
+        }
+        try {
+            while (true) {
+                long target = 0;
+                synchronized (t) {
+                    while (t.inFlight && t.synced < mine) {
+                        t.wait();
+                    }
+                    if (t.synced >= mine) {
+                        return;
+                    }
+                    t.inFlight = true;
+                }
+                boolean ok = false;
+                try {
+                    if (maxDelayNanos_ > 0) {
+                        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(maxDelayNanos_),
+                                (int) (maxDelayNanos_ % 1000000));
+                    }
+                    synchronized (tickets_) {
+                        // every ticket taken up to now is written already
+                        target = t.requested;
+                    }
+                    fd.sync();
+                    ok = true;
+                } finally {
+                    synchronized (t) {
+                        if (ok) {
+                            synchronized (this) {
+                                ++syncs_;
+                                requests_ += target - t.synced;
+                            }
+                            t.synced = target;
+                        }
+                        t.inFlight = false;
+                        t.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for sync");
+        } finally {
+            synchronized (tickets_) {
+                if (--t.waiters == 0) {
+                    tickets_.remove(fd);
+                }
+            }
+        }
+    }
+}
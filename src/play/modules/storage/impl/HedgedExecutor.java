@@ -0,0 +1,346 @@
+package play.modules.storage.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run remote reads with a deadline and hedge the slow ones: when a read has
+ * not answered after the given percentile of the recent read latencies, a
+ * second identical read is sent and the first answer wins. The other one is
+ * cancelled and its result, if any, handed to a {@link Discard} callback so
+ * that connections are released.
+ * <p/>
+ * Hedges are limited by a budget: every read earns <code>budget</code>
+ * tokens, e.g. 0.05 for at most 5% more reads, and a hedge spends one. No
+ * hedge is sent until enough latencies are known to compute the percentile.
+ */
+public class HedgedExecutor {
+
+    /**
+     * A read which may run twice at the same time
+     */
+    public static interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Release the result of a read which lost the race or came after the
+     * deadline
+     */
+    public static interface Discard<T> {
+        void discard(T result);
+    }
+
+    private static final int MIN_SAMPLES = 100;
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(60);
+    private static final double MAX_TOKENS = 10;
+
+    private static final AtomicInteger poolSeq_ = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor_;
+    private final boolean hedge_;
+    private final double percentile_;
+    private final long minDelay_;
+    private final double budget_;
+    private final long timeout_;
+
+    // attempt latencies of the current and the previous window
+    private volatile LatencyHistogram current_ = new LatencyHistogram();
+    private volatile LatencyHistogram previous_ = new LatencyHistogram();
+    private volatile long windowStart_ = System.nanoTime();
+
+    private final Object tokenLock_ = new Object();
+    private double tokens_ = 0;
+
+    private final LatencyHistogram latency_ = new LatencyHistogram();
+    private final AtomicLong reads_ = new AtomicLong();
+    private final AtomicLong hedges_ = new AtomicLong();
+    private final AtomicLong hedgeWins_ = new AtomicLong();
+    private final AtomicLong denied_ = new AtomicLong();
+    private final AtomicLong timeouts_ = new AtomicLong();
+    private final AtomicLong errors_ = new AtomicLong();
+
+    /**
+     * @param name       the thread name prefix
+     * @param threads    max number of reads in flight, reads beyond run
+     *                   on the calling thread without deadline nor hedge
+     * @param hedge      whether to hedge at all
+     * @param percentile the latency percentile after which a read is hedged
+     * @param minDelay   the min delay before a hedge, in milliseconds
+     * @param budget     the max fraction of reads hedged
+     * @param timeout    the default deadline of a read in milliseconds,
+     *                   <code>0</code> for none
+     */
+    public HedgedExecutor(final String name, int threads, boolean hedge, double percentile, long minDelay,
+                          double budget, long timeout) {
+        hedge_ = hedge;
+        percentile_ = percentile;
+        minDelay_ = TimeUnit.MILLISECONDS.toNanos(minDelay);
+        budget_ = budget;
+        timeout_ = TimeUnit.MILLISECONDS.toNanos(timeout);
+        executor_ = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + poolSeq_.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public void shutdown() {
+        executor_.shutdownNow();
+    }
+
+    /**
+     * Run the read with the default deadline
+     */
+    public <T> T execute(Call<T> call, Discard<T> discard) throws Exception {
+        return execute(call, discard, TimeUnit.NANOSECONDS.toMillis(timeout_));
+    }
+
+    /**
+     * Run the read, hedged if it is slow
+     *
+     * @param timeout the deadline in milliseconds, <code>0</code> for none
+     * @return the first answer
+     * @throws TimeoutException if no read answered before the deadline
+     * @throws Exception        the error of the read if every attempt failed
+     */
+    public <T> T execute(Call<T> call, Discard<T> discard, long timeout) throws Exception {
+        reads_.incrementAndGet();
+        earn_();
+        long start = System.nanoTime();
+        if (!hedge_ && timeout <= 0) {
+            // nothing to wait for, spare the thread hop
+            try {
+                return call.call();
+            } finally {
+                latency_.record(System.nanoTime() - start);
+            }
+        }
+        long deadline = timeout <= 0 ? Long.MAX_VALUE : start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Race_<T> race = new Race_<T>(discard);
+        if (!race.start(call, false)) {
+            // saturated: no thread to wait for the deadline
+            return call.call();
+        }
+        try {
+            long delay = hedgeDelay_();
+            if (delay > 0 && start + delay < deadline && race.await(start + delay)) {
+                if (spend_()) {
+                    if (race.start(call, true)) hedges_.incrementAndGet();
+                } else {
+                    denied_.incrementAndGet();
+                }
+            }
+            if (race.await(deadline)) {
+                timeouts_.incrementAndGet();
+                throw new TimeoutException(String.format("no answer after %sms", timeout));
+            }
+            if (race.hedgeWon()) hedgeWins_.incrementAndGet();
+            return race.result();
+        } catch (Exception e) {
+            errors_.incrementAndGet();
+            throw e;
+        } finally {
+            race.cancel();
+            latency_.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return nanoseconds to wait before hedging, <code>0</code> not to hedge
+     */
+    private long hedgeDelay_() {
+        if (!hedge_) return 0;
+        LatencyHistogram h = previous_;
+        if (h.getCount() < MIN_SAMPLES) h = current_;
+        if (h.getCount() < MIN_SAMPLES) return 0;
+        return Math.max(minDelay_, h.getValueAtPercentile(percentile_));
+    }
+
+    private void record_(long nanos) {
+        long now = System.nanoTime();
+        if (now - windowStart_ > WINDOW) {
+            synchronized (this) {
+                if (now - windowStart_ > WINDOW) {
+                    previous_ = current_;
+                    current_ = new LatencyHistogram();
+                    windowStart_ = now;
+                }
+            }
+        }
+        current_.record(nanos);
+    }
+
+    private void earn_() {
+        if (!hedge_) return;
+        synchronized (tokenLock_) {
+            tokens_ = Math.min(MAX_TOKENS, tokens_ + budget_);
+        }
+    }
+
+    private boolean spend_() {
+        synchronized (tokenLock_) {
+            if (tokens_ < 1) return false;
+            tokens_ -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * The attempts of one read
+     */
+    private class Race_<T> {
+        private final Discard<T> discard_;
+        private final Future<?>[] futures_ = new Future<?>[2];
+        private int started_ = 0;
+        private int failed_ = 0;
+        private boolean done_ = false;
+        private boolean cancelled_ = false;
+        private boolean hedgeWon_ = false;
+        private T result_ = null;
+        private Exception error_ = null;
+
+        Race_(Discard<T> discard) {
+            discard_ = discard;
+        }
+
+        /**
+         * @return <code>false</code> if no thread is available
+         */
+        boolean start(final Call<T> call, final boolean hedge) {
+            final int slot;
+            // count the attempt before it runs, it could fail at once
+            synchronized (this) {
+                slot = started_++;
+            }
+            Future<?> f;
+            try {
+                f = executor_.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        T result;
+                        try {
+                            result = call.call();
+                        } catch (Exception e) {
+                            failed_(e);
+                            return;
+                        }
+                        record_(System.nanoTime() - start);
+                        answer_(result, hedge);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    // the other attempt may have failed meanwhile
+                    if (--started_ == failed_ && started_ > 0 && !done_) {
+                        done_ = true;
+                        notifyAll();
+                    }
+                }
+                return false;
+            }
+            synchronized (this) {
+                futures_[slot] = f;
+                if (cancelled_) f.cancel(true);
+            }
+            return true;
+        }
+
+        private synchronized void answer_(T result, boolean hedge) {
+            if (done_ || cancelled_) {
+                if (null != result && null != discard_) discard_.discard(result);
+                return;
+            }
+            done_ = true;
+            result_ = result;
+            hedgeWon_ = hedge;
+            notifyAll();
+        }
+
+        private synchronized void failed_(Exception e) {
+            if (null == error_) error_ = e;
+            // wait for another attempt still running
+            if (++failed_ == started_ && !done_) {
+                done_ = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the time is up before an answer
+         */
+        synchronized boolean await(long until) throws InterruptedException {
+            while (!done_) {
+                long wait = until - System.nanoTime();
+                if (wait <= 0) return true;
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            return false;
+        }
+
+        synchronized T result() throws Exception {
+            if (null == result_ && failed_ == started_ && null != error_) throw error_;
+            return result_;
+        }
+
+        synchronized boolean hedgeWon() {
+            return hedgeWon_;
+        }
+
+        /**
+         * Interrupt the attempts still running, their late results are
+         * discarded
+         */
+        synchronized void cancel() {
+            cancelled_ = true;
+            for (Future<?> f : futures_) {
+                if (null != f) f.cancel(true);
+            }
+        }
+    }
+
+    public long getReadCount() {
+        return reads_.get();
+    }
+
+    public long getHedgeCount() {
+        return hedges_.get();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgeWins_.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts_.get();
+    }
+
+    /**
+     * @return the latency of the reads as seen by the callers
+     */
+    public LatencyHistogram getLatency() {
+        return latency_;
+    }
+
+    @Override
+    public String toString() {
+        long reads = reads_.get(), hedges = hedges_.get();
+        return String.format("reads=%d p50=%dus p99=%dus p999=%dus hedges=%d (%.2f%%) hedgeWins=%d (%.1f%%) budgetDenied=%d timeouts=%d errors=%d",
+                reads, latency_.getValueAtPercentile(50) / 1000, latency_.getValueAtPercentile(99) / 1000,
+                latency_.getValueAtPercentile(99.9) / 1000, hedges, 0 == reads ? 0 : 100.0 * hedges / reads,
+                hedgeWins_.get(), 0 == hedges ? 0 : 100.0 * hedgeWins_.get() / hedges, denied_.get(),
+                timeouts_.get(), errors_.get());
+    }
+}
@@ -0,0 +1,701 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Record the latency, throughput and errors of the calls to another
+ * {@link IStorageService}: a latency histogram, error count and in flight
+ * gauge per operation, and the bytes written and read. The metrics are
+ * shown in Play's <code>/@status</code> and exposed through JMX as
+ * <code>play.modules.storage:type=StorageMetrics,backend=...</code>.
+ * <p/>
+ * <code>GET</code> times the lookup of an object, which does not read the
+ * content of a lazily fetched one. The content reads of the objects got are
+ * recorded as <code>READ</code>: the time spent in the read calls of a
+ * stream or channel, or in a call reading the whole content, and the bytes
+ * actually read, e.g. none for an object only checked for freshness, only
+ * the span of a range.
+ * <p/>
+ * A call slower than <code>storage.metrics.slowThreshold</code> ms (default
+ * 1000) is logged with its key and backend, at most once per
+ * <code>storage.metrics.slowLogInterval</code> ms (default 1000), with the
+ * number of slow calls not logged since.
+ * <p/>
+ * Enabled by <code>storage.metrics.enabled=true</code>
+ */
+public class InstrumentedStorageService implements IManagedStorageService {
+
+    public static final String CONF_ENABLED = "storage.metrics.enabled";
+    public static final String CONF_SLOW_THRESHOLD = "storage.metrics.slowThreshold";
+    public static final String CONF_SLOW_LOG_INTERVAL = "storage.metrics.slowLogInterval";
+
+    public static enum Op {
+        GET, PUT, REMOVE, DELETE, GET_ALL, PUT_ALL, REMOVE_ALL, READ
+    }
+
+    /**
+     * The metrics of an operation
+     */
+    public static class OpMetrics {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    private IStorageService service_;
+    private String backend_;
+    private final OpMetrics[] ops_ = new OpMetrics[Op.values().length];
+    private final AtomicLong bytesIn_ = new AtomicLong();
+    private final AtomicLong bytesOut_ = new AtomicLong();
+
+    private long slowThreshold_ = 1000L * 1000 * 1000;
+    private long slowLogInterval_ = 1000L * 1000 * 1000;
+    private final AtomicLong lastSlowLog_ = new AtomicLong(System.nanoTime() - slowLogInterval_);
+    private final AtomicLong slowSkipped_ = new AtomicLong();
+    private final AtomicLong slow_ = new AtomicLong();
+
+    private ObjectName mbeanName_ = null;
+
+    public InstrumentedStorageService(IStorageService service) {
+        if (null == service) throw new NullPointerException();
+        service_ = service;
+        backend_ = service.getClass().getSimpleName();
+        for (int i = 0; i < ops_.length; ++i) {
+            ops_[i] = new OpMetrics();
+        }
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        String s = conf.get(CONF_SLOW_THRESHOLD);
+        if (null != s) slowThreshold_ = Long.parseLong(s.trim()) * 1000 * 1000;
+        s = conf.get(CONF_SLOW_LOG_INTERVAL);
+        if (null != s) slowLogInterval_ = Long.parseLong(s.trim()) * 1000 * 1000;
+        register_();
+    }
+
+    public IStorageService getService() {
+        return service_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.singletonList(service_);
+    }
+
+    public OpMetrics getMetrics(Op op) {
+        return ops_[op.ordinal()];
+    }
+
+    public long getBytesIn() {
+        return bytesIn_.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut_.get();
+    }
+
+    public long getSlowCount() {
+        return slow_.get();
+    }
+
+    private long begin_(Op op) {
+        ops_[op.ordinal()].inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param key the key, or the keys of a batch, only turned into a string
+     *            if the call is logged as slow
+     */
+    private void end_(Op op, long start, Object key, boolean failed) {
+        long t = System.nanoTime() - start;
+        OpMetrics m = ops_[op.ordinal()];
+        m.inFlight.decrementAndGet();
+        m.latency.record(t);
+        if (failed) m.errors.incrementAndGet();
+        if (t >= slowThreshold_) slow_(op, key, t);
+    }
+
+    private void slow_(Op op, Object key, long nanos) {
+        slow_.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastSlowLog_.get();
+        if (now - last < slowLogInterval_ || !lastSlowLog_.compareAndSet(last, now)) {
+            slowSkipped_.incrementAndGet();
+            return;
+        }
+        String k = key instanceof Collection ? ((Collection) key).size() + " keys" : String.valueOf(key);
+        Logger.warn("slow storage %s [%s] on %s: %sms (%s other slow calls since the last one logged)",
+                op, k, backend_, nanos / 1000000, slowSkipped_.getAndSet(0));
+    }
+
+    private static long length_(ISObject sobj) {
+        if (null == sobj) return 0;
+        long len = sobj.getLength();
+        return len < 0 ? 0 : len;
+    }
+
+    @Override
+    public ISObject get(String key) {
+        long start = begin_(Op.GET);
+        boolean failed = true;
+        try {
+            ISObject sobj = service_.get(key);
+            failed = false;
+            return null == sobj ? null : new InstrumentedSObject(sobj);
+        } finally {
+            end_(Op.GET, start, key, failed);
+        }
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        long start = begin_(Op.PUT);
+        boolean failed = true;
+        try {
+            service_.put(key, stuff);
+            // stream backed content has been buffered by the put
+            bytesIn_.addAndGet(length_(stuff));
+            failed = false;
+        } finally {
+            end_(Op.PUT, start, key, failed);
+        }
+    }
+
+    @Override
+    public ISObject remove(String key) {
+        long start = begin_(Op.REMOVE);
+        boolean failed = true;
+        try {
+            ISObject sobj = service_.remove(key);
+            failed = false;
+            return sobj;
+        } finally {
+            end_(Op.REMOVE, start, key, failed);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        long start = begin_(Op.DELETE);
+        boolean failed = true;
+        try {
+            boolean b = service_.delete(key);
+            failed = false;
+            return b;
+        } finally {
+            end_(Op.DELETE, start, key, failed);
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        long start = begin_(Op.GET_ALL);
+        boolean failed = true;
+        try {
+            BatchResult<ISObject> result = service_.getAll(keys);
+            for (Map.Entry<String, ISObject> e : result.getResults().entrySet()) {
+                if (null != e.getValue()) result.success(e.getKey(), new InstrumentedSObject(e.getValue()));
+            }
+            failed = result.hasErrors();
+            return result;
+        } finally {
+            end_(Op.GET_ALL, start, keys, failed);
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+        long start = begin_(Op.PUT_ALL);
+        boolean failed = true;
+        try {
+            BatchResult<ISObject> result = service_.putAll(objects);
+            for (ISObject sobj : result.getResults().values()) {
+                bytesIn_.addAndGet(length_(sobj));
+            }
+            failed = result.hasErrors();
+            return result;
+        } finally {
+            end_(Op.PUT_ALL, start, objects.keySet(), failed);
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        long start = begin_(Op.REMOVE_ALL);
+        boolean failed = true;
+        try {
+            BatchResult<ISObject> result = service_.removeAll(keys);
+            failed = result.hasErrors();
+            return result;
+        } finally {
+            end_(Op.REMOVE_ALL, start, keys, failed);
+        }
+    }
+
+    @Override
+    public String getUrl(String key) {
+        return service_.getUrl(key);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("storage metrics (%s): bytesIn=%d bytesOut=%d slow=%d",
+                backend_, getBytesIn(), getBytesOut(), getSlowCount()));
+        for (Op op : Op.values()) {
+            OpMetrics m = getMetrics(op);
+            LatencyHistogram h = m.latency;
+            if (h.getCount() == 0 && m.inFlight.get() == 0) continue;
+            sb.append(String.format("\n%-12s count=%d errors=%d inFlight=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                    op, h.getCount(), m.errors.get(), m.inFlight.get(), h.getMean() / 1e6,
+                    h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6));
+        }
+        return sb.toString();
+    }
+
+    private void register_() {
+        close();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("play.modules.storage:type=StorageMetrics,backend=" + backend_);
+            // a previous instance, e.g. before a reload in dev mode
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(new MBean_(), name);
+            mbeanName_ = name;
+        } catch (Exception e) {
+            Logger.warn(e, "cannot register storage metrics MBean");
+        }
+    }
+
+    /**
+     * Unregister the MBean
+     */
+    @Override
+    public void close() {
+        if (null == mbeanName_) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName_);
+        } catch (Exception e) {
+            Logger.warn(e, "cannot unregister storage metrics MBean");
+        }
+        mbeanName_ = null;
+    }
+
+    /**
+     * The content reads of an object, a stream or a channel: the time spent
+     * reading and the bytes read, recorded once at the end or on failure
+     */
+    private class Read_ {
+        private final String key_;
+        private long nanos_ = 0;
+        private boolean ended_ = false;
+
+        Read_(String key) {
+            key_ = key;
+            ops_[Op.READ.ordinal()].inFlight.incrementAndGet();
+        }
+
+        synchronized void read(long start, long n) {
+            nanos_ += System.nanoTime() - start;
+            if (n > 0) bytesOut_.addAndGet(n);
+        }
+
+        synchronized void end(boolean failed) {
+            if (ended_) return;
+            ended_ = true;
+            // as if the reads had been done in one call
+            end_(Op.READ, System.nanoTime() - nanos_, key_, failed);
+        }
+    }
+
+    /**
+     * Read the whole content through the wrapped object and record it
+     */
+    private abstract class WholeRead_<T> {
+        abstract T read() throws IOException;
+
+        abstract long length(T content) throws IOException;
+
+        T run(String key) throws IOException {
+            Read_ r = new Read_(key);
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                T content = read();
+                r.read(start, length(content));
+                failed = false;
+                return content;
+            } finally {
+                r.end(failed);
+            }
+        }
+    }
+
+    private class ReadStream_ extends FilterInputStream {
+        private final Read_ r_;
+
+        ReadStream_(InputStream is, Read_ r) {
+            super(is);
+            r_ = r;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                int b = in.read();
+                r_.read(start, b < 0 ? 0 : 1);
+                if (b < 0) r_.end(false);
+                return b;
+            } catch (IOException e) {
+                r_.end(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                int n = in.read(b, off, len);
+                r_.read(start, n);
+                if (n < 0) r_.end(false);
+                return n;
+            } catch (IOException e) {
+                r_.end(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            try {
+                long skipped = in.skip(n);
+                r_.read(start, 0);
+                return skipped;
+            } catch (IOException e) {
+                r_.end(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                r_.end(false);
+            }
+        }
+    }
+
+    private class ReadChannel_ implements ReadableByteChannel {
+        private final ReadableByteChannel ch_;
+        private final Read_ r_;
+
+        ReadChannel_(ReadableByteChannel ch, Read_ r) {
+            ch_ = ch;
+            r_ = r;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            long start = System.nanoTime();
+            try {
+                int n = ch_.read(dst);
+                r_.read(start, n);
+                if (n < 0) r_.end(false);
+                return n;
+            } catch (IOException e) {
+                r_.end(true);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return ch_.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                ch_.close();
+            } finally {
+                r_.end(false);
+            }
+        }
+    }
+
+    /**
+     * An object got from the backend, whose content reads are recorded.
+     * Metadata and attributes are those of the wrapped object
+     */
+    private class InstrumentedSObject extends SObject {
+        private final ISObject sobj_;
+
+        InstrumentedSObject(ISObject sobj) {
+            super(sobj.getKey());
+            sobj_ = sobj;
+        }
+
+        @Override
+        public long getLength() {
+            return sobj_.getLength();
+        }
+
+        @Override
+        public String getETag() {
+            return sobj_.getETag();
+        }
+
+        @Override
+        public long getLastModified() {
+            return sobj_.getLastModified();
+        }
+
+        @Override
+        public String getAttribute(String key) {
+            return sobj_.getAttribute(key);
+        }
+
+        @Override
+        public void setAttribute(String key, String val) {
+            sobj_.setAttribute(key, val);
+        }
+
+        @Override
+        public boolean hasAttribute() {
+            return sobj_.hasAttribute();
+        }
+
+        @Override
+        public Map<String, String> getAttributes() {
+            return sobj_.getAttributes();
+        }
+
+        @Override
+        public String getUrl() {
+            return sobj_.getUrl();
+        }
+
+        @Override
+        public boolean isFileBacked() {
+            return sobj_.isFileBacked();
+        }
+
+        @Override
+        public InputStream asInputStream() throws IOException {
+            return new ReadStream_(sobj_.asInputStream(), new Read_(getKey()));
+        }
+
+        @Override
+        public InputStream asInputStream(long offset, long length) throws IOException {
+            return new ReadStream_(sobj_.asInputStream(offset, length), new Read_(getKey()));
+        }
+
+        @Override
+        public ReadableByteChannel asChannel() throws IOException {
+            return new ReadChannel_(sobj_.asChannel(), new Read_(getKey()));
+        }
+
+        @Override
+        public byte[] asByteArray() throws IOException {
+            return new WholeRead_<byte[]>() {
+                @Override
+                byte[] read() throws IOException {
+                    return sobj_.asByteArray();
+                }
+
+                @Override
+                long length(byte[] content) {
+                    return content.length;
+                }
+            }.run(getKey());
+        }
+
+        @Override
+        public String asString() throws IOException {
+            return new WholeRead_<String>() {
+                @Override
+                String read() throws IOException {
+                    return sobj_.asString();
+                }
+
+                @Override
+                long length(String content) {
+                    return sobj_.getLength();
+                }
+            }.run(getKey());
+        }
+
+        /**
+         * The file of a file backed object is handed out as is, unread
+         */
+        @Override
+        public File asFile() throws IOException {
+            if (sobj_.isFileBacked()) return sobj_.asFile();
+            return new WholeRead_<File>() {
+                @Override
+                File read() throws IOException {
+                    return sobj_.asFile();
+                }
+
+                @Override
+                long length(File content) {
+                    return content.length();
+                }
+            }.run(getKey());
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            return new WholeRead_<ByteBuffer>() {
+                @Override
+                ByteBuffer read() throws IOException {
+                    return sobj_.asByteBuffer();
+                }
+
+                @Override
+                long length(ByteBuffer content) {
+                    return content.remaining();
+                }
+            }.run(getKey());
+        }
+
+        @Override
+        public long transferTo(final WritableByteChannel target) throws IOException {
+            return new WholeRead_<Long>() {
+                @Override
+                Long read() throws IOException {
+                    return sobj_.transferTo(target);
+                }
+
+                @Override
+                long length(Long n) {
+                    return n;
+                }
+            }.run(getKey());
+        }
+    }
+
+    /**
+     * Expose the metrics as read only attributes named like
+     * <code>GET.p99Micros</code>, <code>PUT.errors</code> or
+     * <code>bytesIn</code>
+     */
+    private class MBean_ implements DynamicMBean {
+        private final String[] names_;
+
+        MBean_() {
+            List<String> l = new ArrayList<String>();
+            l.add("bytesIn");
+            l.add("bytesOut");
+            l.add("slowCount");
+            for (Op op : Op.values()) {
+                for (String s : new String[]{"count", "errors", "inFlight", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"}) {
+                    l.add(op.name() + "." + s);
+                }
+            }
+            names_ = l.toArray(new String[l.size()]);
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            if ("bytesIn".equals(name)) return getBytesIn();
+            if ("bytesOut".equals(name)) return getBytesOut();
+            if ("slowCount".equals(name)) return getSlowCount();
+            int dot = name.indexOf('.');
+            if (dot > 0) {
+                OpMetrics m;
+                try {
+                    m = getMetrics(Op.valueOf(name.substring(0, dot)));
+                } catch (IllegalArgumentException e) {
+                    throw new AttributeNotFoundException(name);
+                }
+                String s = name.substring(dot + 1);
+                LatencyHistogram h = m.latency;
+                if ("count".equals(s)) return h.getCount();
+                if ("errors".equals(s)) return m.errors.get();
+                if ("inFlight".equals(s)) return (long) m.inFlight.get();
+                if ("meanMicros".equals(s)) return (long) (h.getMean() / 1000);
+                if ("p50Micros".equals(s)) return h.getValueAtPercentile(50) / 1000;
+                if ("p99Micros".equals(s)) return h.getValueAtPercentile(99) / 1000;
+                if ("p999Micros".equals(s)) return h.getValueAtPercentile(99.9) / 1000;
+                if ("maxMicros".equals(s)) return h.getMax() / 1000;
+            }
+            throw new AttributeNotFoundException(name);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList l = new AttributeList();
+            for (String name : names) {
+                try {
+                    l.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException e) {
+                    // skipped, as the contract says
+                }
+            }
+            return l;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[names_.length];
+            for (int i = 0; i < names_.length; ++i) {
+                attrs[i] = new MBeanAttributeInfo(names_[i], "java.lang.Long", names_[i], true, false, false);
+            }
+            return new MBeanInfo(InstrumentedStorageService.class.getName(), "storage metrics of " + backend_,
+                    attrs, null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package play.modules.storage.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds, in the spirit of
+ * HdrHistogram. Values are counted in log-linear buckets: every power of 2
+ * range is split into 64 linear buckets, so the value reported for a
+ * percentile is within 1.6% of the recorded one. Values from 0 up to about
+ * 18 minutes are tracked, larger ones are counted in the last bucket.
+ * <p/>
+ * Recording a value takes a few atomic increments and allocates nothing.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT >> 1;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = indexOf_(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong sum_ = new AtomicLong();
+    private final AtomicLong max_ = new AtomicLong();
+
+    private static int indexOf_(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        // shift so that v >>> shift falls in [HALF_COUNT, SUB_COUNT)
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (v >>> shift) - HALF_COUNT;
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    private static long valueOf_(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long v = Math.min(nanos, MAX_VALUE);
+        counts_.incrementAndGet(indexOf_(v));
+        count_.incrementAndGet();
+        sum_.addAndGet(nanos);
+        long max = max_.get();
+        while (nanos > max && !max_.compareAndSet(max, nanos)) {
+            max = max_.get();
+        }
+    }
+
+    public long getCount() {
+        return count_.get();
+    }
+
+    public long getMax() {
+        return max_.get();
+    }
+
+    public double getMean() {
+        long n = count_.get();
+        return n == 0 ? 0 : (double) sum_.get() / n;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the value at or below which the given percentage of the
+     * recorded values fall, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count_.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts_.get(i);
+            if (seen >= target) {
+                return Math.min(valueOf_(i), max_.get());
+            }
+        }
+        return max_.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts_.set(i, 0);
+        }
+        count_.set(0);
+        sum_.set(0);
+        max_.set(0);
+    }
+}
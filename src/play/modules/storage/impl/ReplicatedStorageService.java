@@ -0,0 +1,764 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replicate objects on several {@link IStorageService} backends. Puts,
+ * removes and deletes are sent to every replica in parallel and return once
+ * <code>storage.replicated.writeQuorum</code> replicas acknowledged them,
+ * the other replicas finishing in the background. Each replica applies the
+ * writes of a key one at a time, in the order they were issued, so that a
+ * lagging replica does not end up with an older state. Reads go to the replica
+ * with the lowest recent read latency and fall back to the others in
+ * latency order. Every {@link #PROBE_EVERY} reads, the same key is also read
+ * from another replica in the background so that the latency of every
+ * replica stays known.
+ * <p/>
+ * A replica which failed a write, or which had no copy of an object found
+ * on another replica, is repaired in the background from a replica which
+ * has the latest state of the key. A later write of the key supersedes the
+ * repair. Pending repairs are kept in memory only.
+ * <p/>
+ * Configuration:
+ * <ul>
+ * <li><code>storage.serviceImpl=play.modules.storage.impl.ReplicatedStorageService</code></li>
+ * <li><code>storage.replicated.replicas</code>, comma separated replica
+ * names, e.g. <code>disk1,disk2,s3</code></li>
+ * <li><code>storage.replicated.&lt;name&gt;.impl</code>, the implementation
+ * of the replica. Any other <code>storage.replicated.&lt;name&gt;.xxx</code>
+ * overrides <code>xxx</code> for that replica, e.g.
+ * <code>storage.replicated.disk2.storage.file.dir=/mnt/disk2</code></li>
+ * <li><code>storage.replicated.writeQuorum</code>, default a majority</li>
+ * <li><code>storage.replicated.timeout</code>, seconds a write waits for its
+ * quorum, default 30</li>
+ * <li><code>storage.replicated.threads</code>, threads sending writes to the
+ * replicas, default 8 per replica</li>
+ * <li><code>storage.replicated.repairInterval</code>, seconds between repair
+ * runs, default 5</li>
+ * </ul>
+ */
+public class ReplicatedStorageService implements IManagedStorageService {
+
+    public static final String CONF_PREFIX = "storage.replicated.";
+    public static final String CONF_REPLICAS = "storage.replicated.replicas";
+    public static final String CONF_WRITE_QUORUM = "storage.replicated.writeQuorum";
+    public static final String CONF_TIMEOUT = "storage.replicated.timeout";
+    public static final String CONF_THREADS = "storage.replicated.threads";
+    public static final String CONF_REPAIR_INTERVAL = "storage.replicated.repairInterval";
+
+    /**
+     * One read in this many probes a replica other than the fastest
+     */
+    public static final int PROBE_EVERY = 16;
+
+    private static final AtomicInteger poolSeq_ = new AtomicInteger();
+
+    private List<Replica> replicas_ = null;
+    private int writeQuorum_;
+    private long timeout_ = 30 * 1000L;
+    private int parallelism_ = Batch.DEF_PARALLELISM;
+
+    private volatile ExecutorService writers_ = null;
+    private ScheduledExecutorService repairer_ = null;
+
+    private final AtomicLong writeSeq_ = new AtomicLong();
+    private final AtomicLong reads_ = new AtomicLong();
+    private final Map<String, Repair_> repairs_ = new ConcurrentHashMap<String, Repair_>();
+
+    /**
+     * Number of writes of each key not answered by every replica yet
+     */
+    private final Map<String, Integer> writing_ = new HashMap<String, Integer>();
+
+    /**
+     * Guards the write sequence and the write queues of the replicas
+     */
+    private final Object queueLock_ = new Object();
+
+    private final AtomicLong quorumFailures_ = new AtomicLong();
+    private final AtomicLong repaired_ = new AtomicLong();
+
+    /**
+     * A backend and its read latency
+     */
+    public static class Replica {
+        public final String name;
+        public final IStorageService service;
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final AtomicLong errors = new AtomicLong();
+
+        // moving average of the read latency in nanoseconds, as double bits
+        private final AtomicLong ewma_ = new AtomicLong(Double.doubleToLongBits(0));
+
+        // writes of each key waiting for the one running, guarded by queueLock_
+        private final Map<String, LinkedList<Runnable>> queued_ = new HashMap<String, LinkedList<Runnable>>();
+
+        Replica(String name, IStorageService service) {
+            this.name = name;
+            this.service = service;
+        }
+
+        void observe(long nanos, boolean failed) {
+            latency.record(nanos);
+            if (failed) {
+                errors.incrementAndGet();
+                // a failing replica sorts last until it answers again
+                nanos = Math.max(nanos, TimeUnit.SECONDS.toNanos(1)) * 10;
+            }
+            long bits, next;
+            do {
+                bits = ewma_.get();
+                double avg = Double.longBitsToDouble(bits);
+                next = Double.doubleToLongBits(0 == avg ? nanos : avg * 0.8 + nanos * 0.2);
+            } while (!ewma_.compareAndSet(bits, next));
+        }
+
+        public double getLatencyAverage() {
+            return Double.longBitsToDouble(ewma_.get());
+        }
+    }
+
+    public ReplicatedStorageService() {
+    }
+
+    /**
+     * Replicate on the given services, named <code>r0</code>,
+     * <code>r1</code>... {@link #configure} sets the options only
+     */
+    public ReplicatedStorageService(List<IStorageService> services) {
+        if (services.isEmpty()) throw new IllegalArgumentException("no replica");
+        List<Replica> l = new ArrayList<Replica>();
+        for (IStorageService s : services) {
+            l.add(new Replica("r" + l.size(), s));
+        }
+        replicas_ = Collections.unmodifiableList(l);
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        if (null == conf) throw new NullPointerException();
+        close();
+        if (null == replicas_) {
+            replicas_ = Collections.unmodifiableList(createReplicas_(conf));
+        }
+        int n = replicas_.size();
+        String s = conf.get(CONF_WRITE_QUORUM);
+        writeQuorum_ = null == s ? n / 2 + 1 : Integer.parseInt(s.trim());
+        if (writeQuorum_ < 1 || writeQuorum_ > n) {
+            throw new RuntimeException(String.format("%s must be between 1 and %s", CONF_WRITE_QUORUM, n));
+        }
+        s = conf.get(CONF_TIMEOUT);
+        if (null != s) timeout_ = Long.parseLong(s.trim()) * 1000;
+        s = conf.get(CONF_THREADS);
+        int threads = null == s ? 8 * n : Integer.parseInt(s.trim());
+        s = conf.get(CONF_REPAIR_INTERVAL);
+        long interval = null == s ? 5 : Long.parseLong(s.trim());
+        parallelism_ = Batch.parallelism(conf);
+
+        writers_ = Executors.newFixedThreadPool(threads, daemon_("storage-replica-writer-"));
+        repairer_ = Executors.newSingleThreadScheduledExecutor(daemon_("storage-replica-repair-"));
+        repairer_.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    repair();
+                } catch (RuntimeException e) {
+                    Logger.error(e, "error repairing storage replicas");
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static List<Replica> createReplicas_(Map<String, String> conf) {
+        String names = conf.get(CONF_REPLICAS);
+        if (null == names || names.trim().length() == 0) {
+            throw new RuntimeException(CONF_REPLICAS + " not configured");
+        }
+        List<Replica> l = new ArrayList<Replica>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            String prefix = CONF_PREFIX + name + ".";
+            Map<String, String> c = new HashMap<String, String>(conf);
+            for (Map.Entry<String, String> e : conf.entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    c.put(e.getKey().substring(prefix.length()), e.getValue());
+                }
+            }
+            String impl = c.get("impl");
+            if (null == impl) throw new RuntimeException(prefix + "impl not configured");
+            IStorageService s;
+            try {
+                s = (IStorageService) Class.forName(impl.trim()).newInstance();
+            } catch (Exception e) {
+                throw new UnexpectedException(e);
+            }
+            s.configure(c);
+            l.add(new Replica(name, s));
+        }
+        return l;
+    }
+
+    private static ThreadFactory daemon_(final String prefix) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + poolSeq_.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Stop the background repairs and the writes still running on slow
+     * replicas
+     */
+    @Override
+    public void close() {
+        if (null != repairer_) {
+            repairer_.shutdownNow();
+            repairer_ = null;
+        }
+        if (null != writers_) {
+            writers_.shutdownNow();
+            writers_ = null;
+        }
+        if (null != replicas_) {
+            synchronized (queueLock_) {
+                for (Replica r : replicas_) {
+                    r.queued_.clear();
+                }
+            }
+        }
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        List<IStorageService> l = new ArrayList<IStorageService>();
+        if (null != replicas_) {
+            for (Replica r : replicas_) {
+                l.add(r.service);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * @return the replicas by increasing recent read latency
+     */
+    private List<Replica> readOrder_() {
+        List<Replica> l = new ArrayList<Replica>(replicas_);
+        Collections.sort(l, new Comparator<Replica>() {
+            @Override
+            public int compare(Replica o1, Replica o2) {
+                return Double.compare(o1.getLatencyAverage(), o2.getLatencyAverage());
+            }
+        });
+        return l;
+    }
+
+    /**
+     * Read the key from one of the slower replicas in the background to
+     * refresh its latency, once every {@link #PROBE_EVERY} reads
+     */
+    private void probe_(final String key, List<Replica> order) {
+        long n = reads_.incrementAndGet();
+        ExecutorService writers = writers_;
+        if (order.size() < 2 || n % PROBE_EVERY != 0 || null == writers) return;
+        final Replica r = order.get(1 + (int) ((n / PROBE_EVERY) % (order.size() - 1)));
+        try {
+            writers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        find_(r.service, key);
+                        r.observe(System.nanoTime() - start, false);
+                    } catch (Exception e) {
+                        r.observe(System.nanoTime() - start, true);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    private static ISObject find_(IStorageService service, String key) {
+        ISObject sobj = service.get(key);
+        return SObject.exists(sobj) ? sobj : null;
+    }
+
+    @Override
+    public ISObject get(String key) {
+        List<Replica> missing = null;
+        RuntimeException error = null;
+        List<Replica> order = readOrder_();
+        probe_(key, order);
+        for (Replica r : order) {
+            ISObject sobj;
+            long start = System.nanoTime();
+            try {
+                sobj = find_(r.service, key);
+                r.observe(System.nanoTime() - start, false);
+            } catch (Exception e) {
+                r.observe(System.nanoTime() - start, true);
+                Logger.warn(e, "storage replica %s: error reading [%s]", r.name, key);
+                error = e instanceof RuntimeException ? (RuntimeException) e : new UnexpectedException(e);
+                continue;
+            }
+            if (null != sobj) {
+                // replicas still applying a write differ for a while
+                if (null != missing && !isWriting_(key)) {
+                    scheduleReadRepair_(key, new Repair_(writeSeq_.get(), false, Collections.singleton(r), missing));
+                }
+                return sobj;
+            }
+            if (null == missing) missing = new ArrayList<Replica>();
+            missing.add(r);
+        }
+        if (null == missing && null != error) {
+            // no replica answered
+            throw error;
+        }
+        return null;
+    }
+
+    /**
+     * An operation sent to each replica
+     */
+    private static interface ReplicaOp<T> {
+        T apply(IStorageService service) throws Exception;
+    }
+
+    /**
+     * Count the answers of the replicas to a write
+     */
+    private class Ack_<T> {
+        private final String key_;
+        private final long seq_;
+        private final boolean delete_;
+        private final List<Replica> done_ = new ArrayList<Replica>();
+        private final List<Replica> failed_ = new ArrayList<Replica>();
+        private final List<T> results_ = new ArrayList<T>();
+        private Throwable error_ = null;
+
+        Ack_(String key, long seq, boolean delete) {
+            key_ = key;
+            seq_ = seq;
+            delete_ = delete;
+        }
+
+        synchronized void success(Replica r, T result) {
+            done_.add(r);
+            results_.add(result);
+            finish_();
+        }
+
+        synchronized void failure(Replica r, Throwable t) {
+            failed_.add(r);
+            error_ = t;
+            Logger.warn(t, "storage replica %s: error writing [%s]", r.name, key_);
+            finish_();
+        }
+
+        private void finish_() {
+            notifyAll();
+            if (done_.size() + failed_.size() < replicas_.size()) return;
+            if (!failed_.isEmpty() && !done_.isEmpty()) {
+                scheduleRepair_(key_, new Repair_(seq_, delete_, done_, failed_));
+            }
+            endWrite_(key_);
+        }
+
+        /**
+         * @return the results of the replicas which acknowledged the write
+         */
+        synchronized List<T> await() throws IOException {
+            long deadline = System.currentTimeMillis() + timeout_;
+            while (done_.size() < writeQuorum_) {
+                if (replicas_.size() - failed_.size() < writeQuorum_) {
+                    quorumFailures_.incrementAndGet();
+                    throw new IOException(String.format("write quorum of %s not reached for [%s]: %s replicas failed",
+                            writeQuorum_, key_, failed_.size()), error_);
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    quorumFailures_.incrementAndGet();
+                    throw new IOException(String.format("write quorum of %s not reached for [%s] in %sms",
+                            writeQuorum_, key_, timeout_));
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for the write quorum of [" + key_ + "]");
+                }
+            }
+            return new ArrayList<T>(results_);
+        }
+    }
+
+    private <T> List<T> write_(String key, boolean delete, final ReplicaOp<T> op) throws IOException {
+        final Ack_<T> ack;
+        beginWrite_(key);
+        ExecutorService writers = writers_;
+        // the sequence order is the order in which every replica applies the writes
+        synchronized (queueLock_) {
+            long seq = writeSeq_.incrementAndGet();
+            // the write brings every replica to the new state, or queues its own repair
+            Repair_ pending = repairs_.get(key);
+            if (null != pending && pending.seq < seq) repairs_.remove(key);
+            ack = new Ack_<T>(key, seq, delete);
+            for (final Replica r : replicas_) {
+                try {
+                    enqueue_(r, key, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                ack.success(r, op.apply(r.service));
+                            } catch (Throwable t) {
+                                ack.failure(r, t);
+                            }
+                        }
+                    }, writers);
+                } catch (RejectedExecutionException e) {
+                    ack.failure(r, e);
+                }
+            }
+        }
+        return ack.await();
+    }
+
+    /**
+     * Queue the write behind the writes of the key still running on the
+     * replica, or start it if there is none. Called with queueLock_ held
+     */
+    private void enqueue_(final Replica r, final String key, Runnable write, ExecutorService writers) {
+        LinkedList<Runnable> q = r.queued_.get(key);
+        if (null != q) {
+            q.add(write);
+            return;
+        }
+        q = new LinkedList<Runnable>();
+        q.add(write);
+        final LinkedList<Runnable> queue = q;
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable w;
+                    synchronized (queueLock_) {
+                        w = queue.getFirst();
+                    }
+                    w.run();
+                    synchronized (queueLock_) {
+                        queue.removeFirst();
+                        // cleared on close
+                        if (r.queued_.get(key) != queue) return;
+                        if (queue.isEmpty()) {
+                            r.queued_.remove(key);
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        r.queued_.put(key, q);
+    }
+
+    @Override
+    public void put(final String key, final ISObject stuff) throws IOException {
+        // read a streamed object once, it is replayed for every replica
+        stuff.getLength();
+        write_(key, false, new ReplicaOp<Object>() {
+            @Override
+            public Object apply(IStorageService service) throws Exception {
+                service.put(key, stuff);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ISObject remove(final String key) {
+        List<ISObject> l;
+        try {
+            l = write_(key, true, new ReplicaOp<ISObject>() {
+                @Override
+                public ISObject apply(IStorageService service) throws Exception {
+                    return service.remove(key);
+                }
+            });
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+        for (ISObject sobj : l) {
+            if (null != sobj) return sobj;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean delete(final String key) {
+        List<Boolean> l;
+        try {
+            l = write_(key, true, new ReplicaOp<Boolean>() {
+                @Override
+                public Boolean apply(IStorageService service) throws Exception {
+                    return service.delete(key);
+                }
+            });
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+        return l.contains(Boolean.TRUE);
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.singletons(objects.keySet()), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return remove(key);
+            }
+        });
+    }
+
+    /**
+     * @return the URL of the object on the first configured replica
+     */
+    @Override
+    public String getUrl(String key) {
+        return replicas_.get(0).service.getUrl(key);
+    }
+
+    /**
+     * Bring the replicas of a key to the state of the replicas which applied
+     * the latest write
+     */
+    private static class Repair_ {
+        final long seq;
+        final boolean delete;
+        final List<Replica> sources;
+        final Set<Replica> targets;
+
+        Repair_(long seq, boolean delete, Collection<Replica> sources, Collection<Replica> targets) {
+            this.seq = seq;
+            this.delete = delete;
+            this.sources = new ArrayList<Replica>(sources);
+            this.targets = Collections.synchronizedSet(new HashSet<Replica>(targets));
+        }
+    }
+
+    private void beginWrite_(String key) {
+        synchronized (writing_) {
+            Integer n = writing_.get(key);
+            writing_.put(key, null == n ? 1 : n + 1);
+        }
+    }
+
+    private void endWrite_(String key) {
+        synchronized (writing_) {
+            Integer n = writing_.get(key);
+            if (null == n || n <= 1) {
+                writing_.remove(key);
+            } else {
+                writing_.put(key, n - 1);
+            }
+        }
+    }
+
+    private boolean isWriting_(String key) {
+        synchronized (writing_) {
+            return writing_.containsKey(key);
+        }
+    }
+
+    private void scheduleRepair_(String key, Repair_ repair) {
+        synchronized (repairs_) {
+            Repair_ r = repairs_.get(key);
+            if (null == r || r.seq <= repair.seq) repairs_.put(key, repair);
+        }
+    }
+
+    /**
+     * Queue a repair found by a read, unless a write left one. The write
+     * knows the state of the key better, e.g. the copy read may be one a
+     * delete failed to remove
+     */
+    private void scheduleReadRepair_(String key, Repair_ repair) {
+        synchronized (repairs_) {
+            if (!repairs_.containsKey(key)) repairs_.put(key, repair);
+        }
+    }
+
+    /**
+     * Run the pending repairs once
+     *
+     * @return the number of keys repaired
+     */
+    public int repair() {
+        int n = 0;
+        for (Map.Entry<String, Repair_> e : repairs_.entrySet()) {
+            String key = e.getKey();
+            Repair_ r = e.getValue();
+            boolean done;
+            try {
+                done = repair_(key, r);
+            } catch (Exception x) {
+                Logger.warn(x, "storage replicated: error repairing [%s]", key);
+                continue;
+            }
+            if (done) {
+                synchronized (repairs_) {
+                    if (repairs_.get(key) == r) repairs_.remove(key);
+                }
+                repaired_.incrementAndGet();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The repair writes go through the write queues of the targets, so that
+     * a write issued after them is applied after them too
+     *
+     * @return <code>true</code> once the repair is done or obsolete
+     */
+    private boolean repair_(final String key, final Repair_ r) throws IOException {
+        if (isWriting_(key)) return false;
+        ISObject source = null;
+        boolean answered = false;
+        for (Replica s : r.sources) {
+            try {
+                source = find_(s.service, key);
+                answered = true;
+                if (null != source) break;
+            } catch (Exception e) {
+                Logger.warn(e, "storage replica %s: error reading [%s] for repair", s.name, key);
+            }
+        }
+        if (!answered) return false;
+        // a later write changed the state of the sources
+        if (r.delete != (null == source)) return true;
+        if (null != source && !source.isFileBacked()) {
+            ISObject copy = SObject.asSObject(key, source.asInputStream());
+            copy.getLength();
+            for (Map.Entry<String, String> a : source.getAttributes().entrySet()) {
+                copy.setAttribute(a.getKey(), a.getValue());
+            }
+            source = copy;
+        }
+        final ISObject stuff = source;
+        List<Replica> targets = new ArrayList<Replica>(r.targets);
+        final CountDownLatch done = new CountDownLatch(targets.size());
+        synchronized (queueLock_) {
+            ExecutorService writers = writers_;
+            if (null == writers) return false;
+            // a write issued since the sources were read supersedes the repair
+            if (repairs_.get(key) != r) return true;
+            for (final Replica t : targets) {
+                try {
+                    enqueue_(t, key, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (r.delete) {
+                                    t.service.delete(key);
+                                } else {
+                                    t.service.put(key, stuff);
+                                }
+                                r.targets.remove(t);
+                            } catch (Exception e) {
+                                Logger.warn(e, "storage replica %s: error repairing [%s]", t.name, key);
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    }, writers);
+                } catch (RejectedExecutionException e) {
+                    done.countDown();
+                }
+            }
+        }
+        try {
+            done.await(timeout_, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return r.targets.isEmpty();
+    }
+
+    public int getPendingRepairs() {
+        return repairs_.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(
+                "storage replicated: replicas=%d writeQuorum=%d quorumFailures=%d pendingRepairs=%d repaired=%d",
+                replicas_.size(), writeQuorum_, quorumFailures_.get(), getPendingRepairs(), repaired_.get()));
+        for (Replica r : replicas_) {
+            sb.append(String.format("\n  %-16s reads=%d avg=%.0fus p50=%dus p99=%dus errors=%d", r.name,
+                    r.latency.getCount(), r.getLatencyAverage() / 1000, r.latency.getValueAtPercentile(50) / 1000,
+                    r.latency.getValueAtPercentile(99) / 1000, r.errors.get()));
+        }
+        return sb.toString();
+    }
+}
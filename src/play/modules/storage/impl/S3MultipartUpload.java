@@ -0,0 +1,203 @@
+package play.modules.storage.impl;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import play.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Upload one object to S3 in parts sent concurrently on the executor of the
+ * {@link S3Service}. A failed part is retried on its own; if a part still
+ * fails, or the source cannot be read, the whole upload is aborted so that
+ * no orphan parts are left in the bucket.
+ * <p/>
+ * Parts of a file are read by the S3 client from the file at their offset.
+ * Parts of a stream are buffered, and at most
+ * <code>storage.s3.multipart.threads</code> of them are in memory at any
+ * time, which gives a fixed memory ceiling per upload
+ */
+class S3MultipartUpload {
+
+    private S3Service s3_;
+    private String key_;
+    private ObjectMetadata meta_;
+    private String uploadId_;
+    private List<Future<PartETag>> parts_ = new ArrayList<Future<PartETag>>();
+
+    S3MultipartUpload(S3Service s3, String key, ObjectMetadata meta) {
+        s3_ = s3;
+        key_ = key;
+        meta_ = meta;
+    }
+
+    void upload(final File file) throws IOException {
+        start_();
+        try {
+            long len = file.length();
+            int partNumber = 1;
+            for (long offset = 0; offset < len; offset += s3_.partSize) {
+                final long size = Math.min(s3_.partSize, len - offset);
+                final long off = offset;
+                submit_(partNumber++, new PartSource() {
+                    @Override
+                    public UploadPartRequest fill(UploadPartRequest req) {
+                        return req.withFile(file).withFileOffset(off).withPartSize(size);
+                    }
+                }, null);
+            }
+            complete_();
+        } catch (IOException e) {
+            abort_();
+            throw e;
+        } catch (RuntimeException e) {
+            abort_();
+            throw e;
+        }
+    }
+
+    void upload(InputStream is) throws IOException {
+        start_();
+        Semaphore inMemory = new Semaphore(s3_.multipartThreads);
+        try {
+            int partNumber = 1;
+            while (true) {
+                inMemory.acquire();
+                if (failed_()) {
+                    inMemory.release();
+                    break;
+                }
+                final byte[] buf = new byte[(int) s3_.partSize];
+                final int size = readFully_(is, buf);
+                if (size == 0 && partNumber > 1) {
+                    inMemory.release();
+                    break;
+                }
+                submit_(partNumber++, new PartSource() {
+                    @Override
+                    public UploadPartRequest fill(UploadPartRequest req) {
+                        return req.withInputStream(new ByteArrayInputStream(buf, 0, size)).withPartSize(size);
+                    }
+                }, inMemory);
+                if (size < buf.length) {
+                    break;
+                }
+            }
+            complete_();
+        } catch (InterruptedException e) {
+            abort_();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted uploading " + key_);
+        } catch (IOException e) {
+            abort_();
+            throw e;
+        } catch (RuntimeException e) {
+            abort_();
+            throw e;
+        }
+    }
+
+    private static int readFully_(InputStream is, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int r = is.read(buf, n, buf.length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return n;
+    }
+
+    private void start_() {
+        InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(s3_.bucket, key_, meta_)
+                .withCannedACL(CannedAccessControlList.PublicRead);
+        uploadId_ = s3_.s3.initiateMultipartUpload(req).getUploadId();
+    }
+
+    /**
+     * Fill the content of a part into the request, called once per attempt
+     */
+    private static interface PartSource {
+        UploadPartRequest fill(UploadPartRequest req);
+    }
+
+    private void submit_(final int partNumber, final PartSource source, final Semaphore permit) {
+        parts_.add(s3_.executor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    for (int attempt = 1; ; ++attempt) {
+                        UploadPartRequest req = source.fill(new UploadPartRequest()
+                                .withBucketName(s3_.bucket).withKey(key_)
+                                .withUploadId(uploadId_).withPartNumber(partNumber));
+                        try {
+                            return s3_.s3.uploadPart(req).getPartETag();
+                        } catch (RuntimeException e) {
+                            if (attempt >= s3_.multipartRetries) {
+                                throw e;
+                            }
+                            Logger.warn(e, "error uploading part %s of [%s], retrying", partNumber, key_);
+                            Thread.sleep(100L << attempt);
+                        }
+                    }
+                } finally {
+                    if (null != permit) permit.release();
+                }
+            }
+        }));
+    }
+
+    private boolean failed_() {
+        for (Future<PartETag> f : parts_) {
+            if (f.isDone()) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void complete_() throws IOException {
+        List<PartETag> etags = new ArrayList<PartETag>(parts_.size());
+        try {
+            for (Future<PartETag> f : parts_) {
+                etags.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted uploading " + key_);
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("error uploading " + key_);
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        s3_.s3.completeMultipartUpload(new CompleteMultipartUploadRequest(s3_.bucket, key_, uploadId_, etags));
+    }
+
+    private void abort_() {
+        for (Future<PartETag> f : parts_) {
+            f.cancel(true);
+        }
+        try {
+            s3_.s3.abortMultipartUpload(new AbortMultipartUploadRequest(s3_.bucket, key_, uploadId_));
+        } catch (RuntimeException e) {
+            Logger.error(e, "error aborting multipart upload of [%s]", key_);
+        }
+    }
+}
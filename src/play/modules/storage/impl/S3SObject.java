@@ -0,0 +1,92 @@
+package play.modules.storage.impl;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import play.libs.IO;
+import play.modules.storage.ISObject;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * An object stored on S3. Length, attributes and validators come from the
+ * metadata (HEAD request) the object is created with. The content is only
+ * fetched, with a streamed GET, when it is accessed
+ */
+class S3SObject extends SObject {
+    private S3Service s3_;
+
+    private long length_;
+
+    S3SObject(String key, ObjectMetadata meta, S3Service s3) {
+        super(key);
+        s3_ = s3;
+        length_ = meta.getContentLength();
+        Map<String, String> userMeta = meta.getUserMetadata();
+        if (null != userMeta) {
+            for (Map.Entry<String, String> e : userMeta.entrySet()) {
+                setAttribute(e.getKey(), e.getValue());
+            }
+        }
+        if (null == getAttribute(ISObject.ATTR_CONTENT_TYPE) && null != meta.getContentType()) {
+            setAttribute(ISObject.ATTR_CONTENT_TYPE, meta.getContentType());
+        }
+        if (null != meta.getETag()) {
+            setETag('"' + meta.getETag() + '"');
+        }
+        if (null != meta.getLastModified()) {
+            setLastModified(meta.getLastModified().getTime());
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length_;
+    }
+
+    @Override
+    public InputStream asInputStream() throws IOException {
+        return s3_.getContent(getKey(), 0, -1);
+    }
+
+    /**
+     * Fetch only the requested span with a ranged GET
+     */
+    @Override
+    public InputStream asInputStream(long offset, long length) throws IOException {
+        if (length <= 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return s3_.getContent(getKey(), offset, length);
+    }
+
+    /**
+     * Read the content into an array of the known length, without the
+     * intermediate buffers of a growing stream
+     */
+    @Override
+    public byte[] asByteArray() throws IOException {
+        if (length_ > Integer.MAX_VALUE) {
+            throw new IOException("object too large for a byte array: " + getKey());
+        }
+        byte[] buf = new byte[(int) length_];
+        InputStream is = asInputStream();
+        try {
+            new DataInputStream(is).readFully(buf);
+        } finally {
+            is.close();
+        }
+        return buf;
+    }
+
+    @Override
+    public String asString() throws IOException {
+        return new String(asByteArray(), "utf-8");
+    }
+
+    @Override
+    public File asFile() throws IOException {
+        File tmpFile = SObject.createTempFile();
+        IO.write(asInputStream(), new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        return tmpFile;
+    }
+}
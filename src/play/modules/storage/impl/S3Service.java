@@ -1,26 +1,59 @@
 package play.modules.storage.impl;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import play.exceptions.ConfigurationException;
+import play.exceptions.UnexpectedException;
 import play.libs.Codec;
 import play.libs.Crypto;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
 import play.modules.storage.ISObject;
 import play.modules.storage.IStorageService;
+import play.modules.storage.StoragePlugin;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implement {@link IStorageService} on Amazon S3
+ * <p/>
+ * Reads, i.e. the HEAD of {@link #get(String)} and the GET of the content,
+ * have a deadline of <code>storage.s3.read.timeout</code> milliseconds to
+ * get a response. With <code>storage.s3.hedge.enabled</code> a read which
+ * has not answered after the <code>storage.s3.hedge.percentile</code> of
+ * the recent read latencies is sent a second time and the first response
+ * is used, at most <code>storage.s3.hedge.budget</code> percent more reads
+ * are sent this way. See {@link HedgedExecutor}
  */
-public class S3Service implements IStorageService {
+public class S3Service implements IManagedStorageService {
 
     public static enum StorageClass {
         STANDARD, REDUCED_REDUNDANCY;
@@ -40,6 +73,40 @@ public class S3Service implements IStorageService {
     public static final String S3_DEF_STORAGE_CLASS = "storage.s3.defStorageClass";
     public static final String S3_BUCKET = "storage.s3.bucket";
     public static final String S3_STATIC_WEB_ENDPOINT = "storage.s3.staticWebEndpoint";
+    public static final String S3_MULTIPART_THRESHOLD = "storage.s3.multipart.threshold";
+    public static final String S3_MULTIPART_PART_SIZE = "storage.s3.multipart.partSize";
+    public static final String S3_MULTIPART_THREADS = "storage.s3.multipart.threads";
+    public static final String S3_MULTIPART_RETRIES = "storage.s3.multipart.retries";
+    /**
+     * Talk to an S3 compatible endpoint instead of AWS, e.g. a local fake
+     * S3 for benchmarks, with path style bucket addressing
+     */
+    public static final String S3_ENDPOINT = "storage.s3.endpoint";
+    /**
+     * Milliseconds a read waits for the response, <code>0</code> for ever
+     */
+    public static final String S3_READ_TIMEOUT = "storage.s3.read.timeout";
+    public static final String S3_READ_THREADS = "storage.s3.read.threads";
+    public static final String S3_HEDGE_ENABLED = "storage.s3.hedge.enabled";
+    public static final String S3_HEDGE_PERCENTILE = "storage.s3.hedge.percentile";
+    public static final String S3_HEDGE_MIN_DELAY = "storage.s3.hedge.minDelay";
+    public static final String S3_HEDGE_BUDGET = "storage.s3.hedge.budget";
+    /**
+     * Milliseconds of the HTTP client socket read and connect timeouts
+     */
+    public static final String S3_SOCKET_TIMEOUT = "storage.s3.socketTimeout";
+    public static final String S3_CONNECTION_TIMEOUT = "storage.s3.connectionTimeout";
+
+    /**
+     * S3 rejects parts smaller than 5MB except for the last one
+     */
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_BUFFER_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * The max number of keys of a multi-object delete request
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
 
     public static final String ATTR_STORAGE_CLASS = "storage-class";
 
@@ -49,8 +116,16 @@ public class S3Service implements IStorageService {
     StorageClass defStorageClass = StorageClass.REDUCED_REDUNDANCY;
     String bucket;
     String staticWebEndPoint = null;
+    long multipartThreshold = 16L * 1024 * 1024;
+    long partSize = 8L * 1024 * 1024;
+    int multipartThreads = 4;
+    int multipartRetries = 3;
+    ExecutorService executor;
+    int batchParallelism = Batch.DEF_PARALLELISM;
+    long readTimeout = 10 * 1000L;
+    HedgedExecutor reads;
     
-    public static AmazonS3 s3;
+    public AmazonS3 s3;
 
     @Override
     public void configure(Map<String, String> conf) { 
@@ -69,9 +144,55 @@ public class S3Service implements IStorageService {
         }
 
         staticWebEndPoint = conf.get(S3_STATIC_WEB_ENDPOINT);
+        multipartThreshold = StoragePlugin.bytesOf(conf.get(S3_MULTIPART_THRESHOLD), multipartThreshold);
+        partSize = Math.max(MIN_PART_SIZE, StoragePlugin.bytesOf(conf.get(S3_MULTIPART_PART_SIZE), partSize));
+        // parts and the head of streams are buffered in byte arrays
+        partSize = Math.min(partSize, MAX_BUFFER_SIZE);
+        multipartThreshold = Math.min(Math.max(multipartThreshold, partSize), MAX_BUFFER_SIZE);
+        String s = conf.get(S3_MULTIPART_THREADS);
+        if (null != s) multipartThreads = Math.max(1, Integer.parseInt(s.trim()));
+        s = conf.get(S3_MULTIPART_RETRIES);
+        if (null != s) multipartRetries = Math.max(1, Integer.parseInt(s.trim()));
+        batchParallelism = Batch.parallelism(conf);
+        if (null != executor) executor.shutdown();
+        executor = Executors.newFixedThreadPool(multipartThreads, new ThreadFactory() {
+            private AtomicInteger n = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-s3-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        s = conf.get(S3_READ_TIMEOUT);
+        if (null != s) readTimeout = Math.max(0, Long.parseLong(s.trim()));
+        s = conf.get(S3_READ_THREADS);
+        int readThreads = null == s ? 32 : Math.max(1, Integer.parseInt(s.trim()));
+        s = conf.get(S3_HEDGE_PERCENTILE);
+        double percentile = null == s ? 95 : Double.parseDouble(s.trim());
+        s = conf.get(S3_HEDGE_MIN_DELAY);
+        long minDelay = null == s ? 5 : Long.parseLong(s.trim());
+        s = conf.get(S3_HEDGE_BUDGET);
+        double budget = null == s ? 0.05 : Double.parseDouble(s.trim()) / 100;
+        if (null != reads) reads.shutdown();
+        reads = new HedgedExecutor("storage-s3-read", readThreads, Boolean.parseBoolean(conf.get(S3_HEDGE_ENABLED)),
+                percentile, minDelay, budget, readTimeout);
         System.setProperty("line.separator", "\n");
         AWSCredentials cred = new BasicAWSCredentials(awsKeyId, awsKeySecret);
-        s3 = new AmazonS3Client(cred);
+        ClientConfiguration cc = new ClientConfiguration();
+        s = conf.get(S3_SOCKET_TIMEOUT);
+        if (null != s) cc.setSocketTimeout(Integer.parseInt(s.trim()));
+        s = conf.get(S3_CONNECTION_TIMEOUT);
+        if (null != s) cc.setConnectionTimeout(Integer.parseInt(s.trim()));
+        // hedges double the connections of the slow reads
+        cc.setMaxConnections(Math.max(50, readThreads + multipartThreads + batchParallelism));
+        AmazonS3Client client = new AmazonS3Client(cred, cc);
+        String endpoint = conf.get(S3_ENDPOINT);
+        if (null != endpoint) {
+            client.setEndpoint(endpoint.trim());
+            client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        }
+        s3 = client;
     }
 
     String authStr(String stringToSign) {
@@ -81,33 +202,242 @@ public class S3Service implements IStorageService {
         return "AWS " + awsKeyId + ":" + ss;
     }
 
+    /**
+     * Return the object with the metadata fetched by a HEAD request. The
+     * content is fetched only when it is read
+     */
     @Override
     public ISObject get(String key) {
-        //S3Object obj = s3.getObject(new GetObjectRequest(bucket, key));
-        return SObject.getDumpObject(key);
-//        S3Action act = S3Action.get(key, this);
-//        WS.HttpResponse resp = act.doIt();
-//        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return get(key, readTimeout);
+    }
+
+    /**
+     * @param timeoutMillis the deadline of the HEAD request, <code>0</code>
+     *                      for none
+     */
+    public ISObject get(final String key, long timeoutMillis) {
+        ObjectMetadata meta;
+        try {
+            meta = reads.execute(new HedgedExecutor.Call<ObjectMetadata>() {
+                @Override
+                public ObjectMetadata call() {
+                    try {
+                        return s3.getObjectMetadata(bucket, key);
+                    } catch (AmazonServiceException e) {
+                        if (404 == e.getStatusCode()) {
+                            return null;
+                        }
+                        throw e;
+                    }
+                }
+            }, null, timeoutMillis);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnexpectedException(e);
+        } catch (Exception e) {
+            throw new UnexpectedException(e);
+        }
+        return null == meta ? null : new S3SObject(key, meta, this);
     }
 
+    /**
+     * Open a streamed GET on the content of an object
+     *
+     * @param key    the object key
+     * @param offset the position of the first byte to read
+     * @param length the number of bytes to read, or <code>-1</code> to read
+     *               to the end of the object
+     * @return the content stream, read from the HTTP connection as consumed
+     * @throws InterruptedIOException if the response headers did not come
+     *                                within <code>storage.s3.read.timeout</code>,
+     *                                the body is bound by the socket timeout
+     */
+    InputStream getContent(String key, long offset, long length) throws IOException {
+        final GetObjectRequest req = new GetObjectRequest(bucket, key);
+        if (offset > 0 || length >= 0) {
+            req.setRange(offset, length < 0 ? Long.MAX_VALUE : offset + length - 1);
+        }
+        try {
+            return reads.execute(new HedgedExecutor.Call<S3ObjectInputStream>() {
+                @Override
+                public S3ObjectInputStream call() {
+                    return s3.getObject(req).getObjectContent();
+                }
+            }, new HedgedExecutor.Discard<S3ObjectInputStream>() {
+                @Override
+                public void discard(S3ObjectInputStream is) {
+                    // drop the connection rather than reading the rest of the body
+                    is.abort();
+                }
+            });
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException(String.format("timeout reading %s: %s", key, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted reading " + key);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("error reading " + key, e);
+        }
+    }
+
+    /**
+     * Objects of at least <code>storage.s3.multipart.threshold</code> bytes
+     * are sent with a parallel multipart upload, smaller ones with a single
+     * PUT of known content length
+     */
     @Override
     public void put(String key, ISObject stuff) throws IOException {
         ObjectMetadata meta = new ObjectMetadata();
         meta.setUserMetadata(stuff.getAttributes()); 
-        
-        PutObjectRequest req = new PutObjectRequest(bucket, key, stuff.asInputStream(), meta);
-        req.withCannedAcl(CannedAccessControlList.PublicRead);
-        s3.putObject(req);
-//        S3Action act = S3Action.put(stuff, key, this);
-//        WS.HttpResponse resp = act.doIt();
+        String contentType = stuff.getAttribute(ISObject.ATTR_CONTENT_TYPE);
+        if (null != contentType) {
+            meta.setContentType(contentType);
+        }
+
+        if (stuff.isFileBacked()) {
+            File f = stuff.asFile();
+            if (f.length() >= multipartThreshold) {
+                new S3MultipartUpload(this, key, meta).upload(f);
+                return;
+            }
+            meta.setContentLength(f.length());
+            PutObjectRequest req = new PutObjectRequest(bucket, key, f).withMetadata(meta);
+            req.withCannedAcl(CannedAccessControlList.PublicRead);
+            s3.putObject(req);
+            return;
+        }
+
+        // read up to the threshold to find out if the object is small
+        InputStream is = stuff.asInputStream();
+        try {
+            byte[] head = new byte[(int) Math.min(multipartThreshold, 64 * 1024)];
+            int n = 0;
+            while (n < multipartThreshold) {
+                if (n == head.length) {
+                    byte[] buf = new byte[(int) Math.min(multipartThreshold, head.length * 2L)];
+                    System.arraycopy(head, 0, buf, 0, n);
+                    head = buf;
+                }
+                int r = is.read(head, n, head.length - n);
+                if (r < 0) break;
+                n += r;
+            }
+            if (n >= multipartThreshold) {
+                new S3MultipartUpload(this, key, meta).upload(new SequenceInputStream(new ByteArrayInputStream(head, 0, n), is));
+                return;
+            }
+            meta.setContentLength(n);
+            PutObjectRequest req = new PutObjectRequest(bucket, key, new ByteArrayInputStream(head, 0, n), meta);
+            req.withCannedAcl(CannedAccessControlList.PublicRead);
+            s3.putObject(req);
+        } finally {
+            is.close();
+        }
     }
 
+    /**
+     * Read the object, then delete it. The content of an S3 object is
+     * fetched lazily, so it is copied before the delete, buffered or
+     * spilled to a temp file
+     *
+     * @return the removed object, or <code>null</code> if there was none
+     */
     @Override
     public ISObject remove(String key) {
+        ISObject sobj = get(key);
+        ISObject copy = null;
+        if (null != sobj) {
+            try {
+                copy = SObject.asSObject(key, sobj.asInputStream());
+                copy.getLength();
+            } catch (IOException e) {
+                throw new UnexpectedException(e);
+            }
+            for (Map.Entry<String, String> e : sobj.getAttributes().entrySet()) {
+                copy.setAttribute(e.getKey(), e.getValue());
+            }
+        }
         s3.deleteObject(new DeleteObjectRequest(bucket, key));
-//        S3Action act = S3Action.delete(key, this);
-//        WS.HttpResponse resp = act.doIt();
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return copy;
+    }
+
+    /**
+     * S3 deletes are idempotent and do not tell whether the object existed,
+     * <code>true</code> is always returned
+     */
+    @Override
+    public boolean delete(String key) {
+        s3.deleteObject(new DeleteObjectRequest(bucket, key));
+        return true;
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), batchParallelism, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.singletons(objects.keySet()), batchParallelism, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    /**
+     * Remove the keys with multi-object delete requests of up to 1000 keys
+     */
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        BatchResult<ISObject> result = new BatchResult<ISObject>();
+        for (List<String> chunk : Batch.chunks(keys, MAX_DELETE_KEYS)) {
+            DeleteObjectsRequest req = new DeleteObjectsRequest(bucket)
+                    .withKeys(chunk.toArray(new String[chunk.size()])).withQuiet(true);
+            Map<String, Throwable> errors = new HashMap<String, Throwable>();
+            try {
+                s3.deleteObjects(req);
+            } catch (MultiObjectDeleteException e) {
+                for (MultiObjectDeleteException.DeleteError err : e.getErrors()) {
+                    errors.put(err.getKey(), new IOException(err.getCode() + ": " + err.getMessage()));
+                }
+            } catch (RuntimeException e) {
+                for (String key : chunk) {
+                    errors.put(key, e);
+                }
+            }
+            for (String key : chunk) {
+                Throwable t = errors.get(key);
+                if (null == t) {
+                    result.success(key, null);
+                } else {
+                    result.failure(key, t);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return none, this service stores the objects itself
+     */
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.emptyList();
     }
 
     @Override
@@ -117,4 +447,15 @@ public class S3Service implements IStorageService {
         }
         return "//" + staticWebEndPoint + "/" + key;
     }
+
+    @Override
+    public void close() {
+        if (null != executor) executor.shutdown();
+        if (null != reads) reads.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("S3Service[%s] %s", bucket, reads);
+    }
 }
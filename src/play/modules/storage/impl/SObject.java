@@ -1,5 +1,6 @@
 package play.modules.storage.impl;
 
+import play.Play;
 import play.data.parsing.TempFilePlugin;
 import play.exceptions.UnexpectedException;
 import play.libs.IO;
@@ -7,13 +8,30 @@ import play.modules.storage.ISObject;
 import play.modules.storage.StoragePlugin;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
 public abstract class SObject implements ISObject {
+
+    /**
+     * Objects read from a stream keep up to this number of bytes in memory
+     * and spill longer content to a temporary file
+     */
+    public static final String CONF_MEMORY_THRESHOLD = "storage.sobject.memoryThreshold";
+    static final long DEF_MEMORY_THRESHOLD = 256L * 1024;
+
     private String key;
     private Map<String, String> attrs = new HashMap<String, String>();
-    private SObject(String key) {
+    private String etag_ = null;
+    private long lastModified_ = 0;
+    SObject(String key) {
         if (null == key) {
             throw new NullPointerException();
         }
@@ -28,6 +46,28 @@ public abstract class SObject implements ISObject {
         return key;
     }
 
+    /**
+     * Return the ETag set by the storage service, if any. Sub classes
+     * compute one from the content when nothing has been set
+     */
+    @Override
+    public String getETag() {
+        return etag_;
+    }
+
+    void setETag(String etag) {
+        etag_ = etag;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified_;
+    }
+
+    void setLastModified(long lastModified) {
+        lastModified_ = lastModified;
+    }
+
     @Override
     public String getAttribute(String key) {
         return attrs.get(key);
@@ -57,6 +97,105 @@ public abstract class SObject implements ISObject {
         return StoragePlugin.service.getUrl(getKey());
     }
 
+    @Override
+    public boolean isFileBacked() {
+        return false;
+    }
+
+    /**
+     * Skip to the offset of the full content stream. Sub classes which can
+     * seek override this to avoid reading the skipped bytes
+     */
+    @Override
+    public InputStream asInputStream(long offset, long length) throws IOException {
+        InputStream is = asInputStream();
+        skipFully(is, offset);
+        return new LimitedInputStream(is, length);
+    }
+
+    static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    static String md5ETag(byte[] buf) {
+        try {
+            return etagOf(MessageDigest.getInstance("MD5").digest(buf));
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * @return the digest as a quoted hex string
+     */
+    static String etagOf(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2 + 2).append('"');
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Copy the content through a heap buffer. Sub classes backed by a file
+     * override this to transfer the bytes without the copy
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        ReadableByteChannel src = Channels.newChannel(asInputStream());
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            long n = 0;
+            while (src.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    n += target.write(buf);
+                }
+                buf.clear();
+            }
+            return n;
+        } finally {
+            src.close();
+        }
+    }
+
+    /**
+     * Wrap the byte array content. Sub classes with their content in a file
+     * or a buffer override this to avoid the copy
+     */
+    @Override
+    public ByteBuffer asByteBuffer() throws IOException {
+        return ByteBuffer.wrap(asByteArray()).asReadOnlyBuffer();
+    }
+
+    @Override
+    public ReadableByteChannel asChannel() throws IOException {
+        return Channels.newChannel(asInputStream());
+    }
+
+    /**
+     * A file service hands out objects for missing files too
+     *
+     * @return <code>false</code> if the object is <code>null</code> or
+     * stands for a missing file
+     */
+    public static boolean exists(ISObject sobj) {
+        try {
+            return null != sobj && (!sobj.isFileBacked() || sobj.asFile().exists());
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
     public static ISObject asSObject(String key, File f) {
         return new FileSObject(key, f);
     }
@@ -73,6 +212,14 @@ public abstract class SObject implements ISObject {
         return new ByteArraySObject(key, buf);
     }
 
+    /**
+     * Create an object on the remaining bytes of the buffer, without copying
+     * them. The buffer must not be modified afterwards
+     */
+    public static ISObject asSObject(String key, ByteBuffer buf) {
+        return new ByteBufferSObject(key, buf);
+    }
+
     static File createTempFile() {
         File tmpDir = TempFilePlugin.createTempFolder();
         try {
@@ -107,6 +254,29 @@ public abstract class SObject implements ISObject {
             return new FileInputStream(f_);
         }
 
+        @Override
+        public InputStream asInputStream(long offset, long length) throws IOException {
+            FileInputStream fis = new FileInputStream(f_);
+            fis.getChannel().position(offset);
+            return new LimitedInputStream(fis, length);
+        }
+
+        /**
+         * Derived from length and modification time so that it is stable
+         * without reading the file
+         */
+        @Override
+        public String getETag() {
+            String etag = super.getETag();
+            if (null != etag) return etag;
+            return "\"" + Long.toHexString(f_.length()) + "-" + Long.toHexString(f_.lastModified()) + "\"";
+        }
+
+        @Override
+        public long getLastModified() {
+            return f_.lastModified();
+        }
+
         @Override
         public String asString() throws IOException {
             return IO.readContentAsString(f_);
@@ -116,6 +286,54 @@ public abstract class SObject implements ISObject {
         public long getLength() {
             return f_.length();
         }
+
+        @Override
+        public boolean isFileBacked() {
+            return true;
+        }
+
+        /**
+         * Map the file read only. The mapping stays valid after the file is
+         * removed, until the buffer is garbage collected
+         */
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(f_, "r");
+            try {
+                FileChannel fc = raf.getChannel();
+                if (fc.size() > Integer.MAX_VALUE) {
+                    throw new IOException("file too large to map: " + f_);
+                }
+                return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } finally {
+                raf.close();
+            }
+        }
+
+        @Override
+        public ReadableByteChannel asChannel() throws IOException {
+            return new FileInputStream(f_).getChannel();
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            FileInputStream fis = new FileInputStream(f_);
+            try {
+                FileChannel fc = fis.getChannel();
+                long len = fc.size();
+                long pos = 0;
+                // transferTo might send less than requested, e.g. on a
+                // non-blocking socket or when the OS caps a single sendfile
+                while (pos < len) {
+                    long n = fc.transferTo(pos, len - pos, target);
+                    if (n <= 0) break;
+                    pos += n;
+                }
+                return pos;
+            } finally {
+                fis.close();
+            }
+        }
     }
 
     private static class StringSObject extends SObject {
@@ -150,14 +368,30 @@ public abstract class SObject implements ISObject {
             return s_;
         }
 
+        @Override
+        public String getETag() {
+            String etag = super.getETag();
+            return null == etag ? md5ETag(asByteArray()) : etag;
+        }
+
         @Override
         public long getLength() {
             return s_.length();
         }
     }
 
+    /**
+     * An object read from a stream. The stream is consumed once, on first
+     * access: the first <code>storage.sobject.memoryThreshold</code> bytes
+     * are kept in memory and, if the stream is longer, the whole content is
+     * spilled to a temporary file. The length and the MD5 digest are computed
+     * during that pass. All later accesses replay the buffered content, so
+     * the object could be read any number of times and large uploads never
+     * sit on the heap
+     */
     private static class InputStreamSObject extends SObject {
         private InputStream is_ = null;
+        private SObject content_ = null;
 
         InputStreamSObject(String key, InputStream is) {
             super(key);
@@ -166,33 +400,115 @@ public abstract class SObject implements ISObject {
             is_ = is;
         }
 
+        private synchronized SObject content_() throws IOException {
+            if (null != content_) {
+                return content_;
+            }
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new UnexpectedException(e);
+            }
+            long threshold = memoryThreshold_();
+            ByteArrayOutputStream mem = new ByteArrayOutputStream((int) Math.min(threshold, 8192));
+            File spill = null;
+            OutputStream os = mem;
+            byte[] buf = new byte[8192];
+            try {
+                int n;
+                long len = 0;
+                while ((n = is_.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                    len += n;
+                    if (null == spill && len > threshold) {
+                        spill = SObject.createTempFile();
+                        os = new BufferedOutputStream(new FileOutputStream(spill));
+                        mem.writeTo(os);
+                        mem = null;
+                    }
+                    os.write(buf, 0, n);
+                }
+            } finally {
+                is_.close();
+                if (null != spill) os.close();
+            }
+            is_ = null;
+            content_ = null == spill ? new ByteArraySObject(getKey(), mem.toByteArray()) : new FileSObject(getKey(), spill);
+            if (null == super.getETag()) {
+                setETag(etagOf(md.digest()));
+            }
+            return content_;
+        }
+
+        private static long memoryThreshold_() {
+            String s = null == Play.configuration ? null : Play.configuration.getProperty(CONF_MEMORY_THRESHOLD);
+            return StoragePlugin.bytesOf(s, DEF_MEMORY_THRESHOLD);
+        }
+
         @Override
         public byte[] asByteArray() throws IOException {
-            return IO.readContent(is_);
+            return content_().asByteArray();
         }
 
         @Override
         public File asFile() throws IOException {
-            File tmpFile = SObject.createTempFile();
-            IO.write(is_, new BufferedOutputStream(
-                    new FileOutputStream(tmpFile)));
-            return tmpFile;
+            return content_().asFile();
         }
 
         @Override
-        public InputStream asInputStream() {
-            return is_;
+        public InputStream asInputStream() throws IOException {
+            return content_().asInputStream();
+        }
+
+        @Override
+        public InputStream asInputStream(long offset, long length) throws IOException {
+            return content_().asInputStream(offset, length);
         }
 
         @Override
         public String asString() throws IOException {
-            return IO.readContentAsString(is_);
+            return content_().asString();
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            return content_().transferTo(target);
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            return content_().asByteBuffer();
+        }
+
+        @Override
+        public ReadableByteChannel asChannel() throws IOException {
+            return content_().asChannel();
+        }
+
+        @Override
+        public boolean isFileBacked() {
+            try {
+                return content_().isFileBacked();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String getETag() {
+            try {
+                content_();
+            } catch (IOException e) {
+                return null;
+            }
+            return super.getETag();
         }
 
         @Override
         public long getLength() {
             try {
-                return asByteArray().length;
+                return content_().getLength();
             } catch (IOException e) {
                 return -1;
             }
@@ -224,15 +540,188 @@ public abstract class SObject implements ISObject {
             return new ByteArrayInputStream(buf_);
         }
 
+        @Override
+        public InputStream asInputStream(long offset, long length) {
+            return new ByteArrayInputStream(buf_, (int) offset, (int) Math.min(length, buf_.length - offset));
+        }
+
         @Override
         public String asString() throws IOException {
             return new String(buf_, "utf-8");
         }
 
+        @Override
+        public String getETag() {
+            String etag = super.getETag();
+            return null == etag ? md5ETag(buf_) : etag;
+        }
+
         @Override
         public long getLength() {
             return buf_.length;
         }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf_).asReadOnlyBuffer();
+        }
     }
-    
+
+    /**
+     * An object on a slice of a buffer, e.g. a region of a memory mapped
+     * file. Every access works on a duplicate of the buffer so concurrent
+     * readers do not share a position
+     */
+    private static class ByteBufferSObject extends SObject {
+        private ByteBuffer buf_;
+
+        ByteBufferSObject(String key, ByteBuffer buf) {
+            super(key);
+            buf_ = buf.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return buf_.duplicate();
+        }
+
+        @Override
+        public byte[] asByteArray() {
+            byte[] b = new byte[buf_.remaining()];
+            buf_.duplicate().get(b);
+            return b;
+        }
+
+        @Override
+        public File asFile() throws IOException {
+            File tmpFile = SObject.createTempFile();
+            IO.write(asByteArray(), tmpFile);
+            return tmpFile;
+        }
+
+        @Override
+        public InputStream asInputStream() {
+            return new ByteBufferInputStream(buf_.duplicate());
+        }
+
+        @Override
+        public InputStream asInputStream(long offset, long length) {
+            ByteBuffer b = buf_.duplicate();
+            b.position((int) offset);
+            b.limit((int) Math.min(b.limit(), offset + length));
+            return new ByteBufferInputStream(b);
+        }
+
+        @Override
+        public String asString() throws IOException {
+            return new String(asByteArray(), "utf-8");
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            ByteBuffer b = buf_.duplicate();
+            long n = 0;
+            while (b.hasRemaining()) {
+                n += target.write(b);
+            }
+            return n;
+        }
+
+        @Override
+        public String getETag() {
+            String etag = super.getETag();
+            if (null != etag) return etag;
+            try {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                md.update(buf_.duplicate());
+                return etagOf(md.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+
+        @Override
+        public long getLength() {
+            return buf_.remaining();
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buf_;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            buf_ = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf_.hasRemaining() ? buf_.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf_.hasRemaining()) return -1;
+            len = Math.min(len, buf_.remaining());
+            buf_.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.min(Math.max(n, 0), buf_.remaining());
+            buf_.position(buf_.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return buf_.remaining();
+        }
+    }
+
+    /**
+     * Read at most <code>limit</code> bytes from the wrapped stream
+     */
+    static class LimitedInputStream extends FilterInputStream {
+        private long left_;
+
+        LimitedInputStream(InputStream is, long limit) {
+            super(is);
+            left_ = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left_ <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) --left_;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left_ <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, left_));
+            if (n > 0) left_ -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left_));
+            left_ -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left_);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
 }
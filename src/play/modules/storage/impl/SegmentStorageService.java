@@ -0,0 +1,853 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.StoragePlugin;
+import play.vfs.VirtualFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Store small objects like thumbnails and icons packed into large segment
+ * files instead of a file per object. Objects are appended to the active
+ * segment, which is sealed and replaced by a new one when it reaches
+ * <code>storage.segment.maxSize</code>. An in memory index maps every key to
+ * the segment, offset and length of its latest record. Reads of sealed
+ * segments are served in place from memory mapped segments, reads of the
+ * active segment are positional reads.
+ * <p/>
+ * Every record carries its key, attributes and a CRC, and a removal appends
+ * a tombstone record, so the segments are the source of truth. The index is
+ * saved to <code>index</code> periodically with the length of each segment
+ * at that time; on start the saved index is loaded and only the segment
+ * tails written after it are replayed.
+ * <p/>
+ * Space held by overwritten and removed objects is reclaimed by a background
+ * task which copies the live records of sealed segments with enough dead
+ * bytes to the active segment and deletes them. Tombstones are copied too
+ * while an older segment exists, which could still hold a record of the
+ * removed key.
+ * <p/>
+ * Configuration:
+ * <ul>
+ * <li><code>storage.segment.dir</code>, the segment folder under the
+ * application path</li>
+ * <li><code>storage.segment.maxSize</code>, default 256mb</li>
+ * <li><code>storage.segment.maxObjectSize</code>, default 64kb, larger
+ * objects are rejected</li>
+ * <li><code>storage.segment.sync</code>, sync the segment on every write,
+ * default false</li>
+ * <li><code>storage.segment.compaction.ratio</code>, the fraction of dead
+ * bytes which makes a segment compacted, default 0.5</li>
+ * <li><code>storage.segment.compaction.interval</code>, seconds between runs
+ * of the compaction and index save task, default 60</li>
+ * </ul>
+ */
+public class SegmentStorageService implements IManagedStorageService {
+
+    public static final String CONF_HOME = "storage.segment.dir";
+    public static final String CONF_MAX_SIZE = "storage.segment.maxSize";
+    public static final String CONF_MAX_OBJECT_SIZE = "storage.segment.maxObjectSize";
+    public static final String CONF_SYNC = "storage.segment.sync";
+    public static final String CONF_COMPACTION_RATIO = "storage.segment.compaction.ratio";
+    public static final String CONF_COMPACTION_INTERVAL = "storage.segment.compaction.interval";
+
+    private static final int RECORD_MAGIC = 0x53454731;
+    private static final int INDEX_MAGIC = 0x53494458;
+    private static final int HEADER_SIZE = 24;
+    private static final int TOMBSTONE = -1;
+    private static final String INDEX_FILE = "index";
+
+    private File dir_;
+    private String urlRoot_;
+    private long maxSegmentSize_ = 256L * 1024 * 1024;
+    private long maxObjectSize_ = 64L * 1024;
+    private boolean sync_ = false;
+    private double compactionRatio_ = 0.5;
+
+    private final Map<String, Entry> index_ = new ConcurrentHashMap<String, Entry>();
+    private final Map<Integer, Segment> segments_ = new ConcurrentHashMap<Integer, Segment>();
+
+    /**
+     * Guards appends, the active segment and index updates
+     */
+    private final Object writeLock_ = new Object();
+    private Segment active_;
+    private volatile boolean dirty_ = false;
+
+    private ScheduledExecutorService compactor_ = null;
+
+    private AtomicLong compactedBytes_ = new AtomicLong();
+
+    public SegmentStorageService() {
+    }
+
+    public SegmentStorageService(Map<String, String> conf) {
+        configure(conf);
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        if (null == conf) throw new NullPointerException();
+        close();
+        VirtualFile root = VirtualFile.open(Play.applicationPath).child(conf.get(CONF_HOME));
+        dir_ = root.getRealFile();
+        if (!dir_.mkdirs() && !dir_.isDirectory()) {
+            throw new RuntimeException("cannot create root dir for segment storage");
+        }
+        urlRoot_ = conf.get("storage.url.root").replace('\\', '/');
+        if (!urlRoot_.endsWith("/")) {
+            urlRoot_ = urlRoot_ + '/';
+        }
+        maxSegmentSize_ = Math.min(Integer.MAX_VALUE, StoragePlugin.bytesOf(conf.get(CONF_MAX_SIZE), maxSegmentSize_));
+        maxObjectSize_ = StoragePlugin.bytesOf(conf.get(CONF_MAX_OBJECT_SIZE), maxObjectSize_);
+        sync_ = Boolean.parseBoolean(conf.get(CONF_SYNC));
+        String s = conf.get(CONF_COMPACTION_RATIO);
+        if (null != s) compactionRatio_ = Double.parseDouble(s.trim());
+        s = conf.get(CONF_COMPACTION_INTERVAL);
+        long interval = null == s ? 60 : Long.parseLong(s.trim());
+
+        try {
+            open_();
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        compactor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-segment-compaction");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        compactor_.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                    if (dirty_) saveIndex();
+                } catch (Exception e) {
+                    Logger.error(e, "error compacting segment storage");
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return none, this service stores the objects itself
+     */
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Save the index and close the segments
+     */
+    @Override
+    public void close() {
+        if (null != compactor_) {
+            compactor_.shutdown();
+            compactor_ = null;
+        }
+        if (null == active_) {
+            return;
+        }
+        try {
+            saveIndex();
+        } catch (IOException e) {
+            Logger.error(e, "error saving segment storage index");
+        }
+        synchronized (writeLock_) {
+            for (Segment seg : segments_.values()) {
+                seg.close();
+            }
+            segments_.clear();
+            index_.clear();
+            active_ = null;
+        }
+    }
+
+    @Override
+    public String getUrl(String key) {
+        return urlRoot_ + key;
+    }
+
+    @Override
+    public ISObject get(String key) {
+        key = key.replace('\\', '/');
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            Entry e = index_.get(key);
+            if (null == e) {
+                return null;
+            }
+            Segment seg = segments_.get(e.segment);
+            if (null == seg) {
+                // compacted away meanwhile, the index points to the new copy
+                continue;
+            }
+            return toSObject_(key, e, seg.read(e.offset + e.dataOffset, e.length));
+        }
+        return null;
+    }
+
+    /**
+     * @param data the region of the mapped segment, not copied
+     */
+    private static ISObject toSObject_(String key, Entry e, ByteBuffer data) {
+        SObject sobj = (SObject) SObject.asSObject(key, data);
+        sobj.setLastModified(e.timestamp);
+        for (Map.Entry<String, String> a : e.attrs.entrySet()) {
+            sobj.setAttribute(a.getKey(), a.getValue());
+        }
+        return sobj;
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        key = key.replace('\\', '/');
+        long len = stuff.getLength();
+        if (len > maxObjectSize_) {
+            throw new IOException(String.format("object [%s] of %s bytes exceeds %s", key, len, CONF_MAX_OBJECT_SIZE));
+        }
+        byte[] data = stuff.asByteArray();
+        if (data.length > maxObjectSize_) {
+            throw new IOException(String.format("object [%s] of %s bytes exceeds %s", key, data.length, CONF_MAX_OBJECT_SIZE));
+        }
+        Map<String, String> attrs = stuff.getAttributes();
+        ByteBuffer rec = record_(key, attrs, data, System.currentTimeMillis());
+        synchronized (writeLock_) {
+            Entry e = append_(key, attrs, data.length, rec);
+            Entry old = index_.put(key, e);
+            if (null != old) dead_(old);
+            dirty_ = true;
+        }
+    }
+
+    @Override
+    public ISObject remove(String key) {
+        key = key.replace('\\', '/');
+        synchronized (writeLock_) {
+            ISObject sobj = get(key);
+            return delete_(key) ? sobj : null;
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        key = key.replace('\\', '/');
+        synchronized (writeLock_) {
+            return delete_(key);
+        }
+    }
+
+    private boolean delete_(String key) {
+        if (!index_.containsKey(key)) {
+            return false;
+        }
+        try {
+            ByteBuffer rec = record_(key, Collections.<String, String>emptyMap(), null, System.currentTimeMillis());
+            Entry tomb = append_(key, null, TOMBSTONE, rec);
+            dead_(tomb);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+        dead_(index_.remove(key));
+        dirty_ = true;
+        return true;
+    }
+
+    private void dead_(Entry e) {
+        Segment seg = segments_.get(e.segment);
+        if (null != seg) seg.dead.addAndGet(e.recordLength);
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        BatchResult<ISObject> result = new BatchResult<ISObject>();
+        for (String key : keys) {
+            try {
+                result.success(key, get(key));
+            } catch (RuntimeException e) {
+                result.failure(key, e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+        BatchResult<ISObject> result = new BatchResult<ISObject>();
+        for (Map.Entry<String, ISObject> e : objects.entrySet()) {
+            try {
+                put(e.getKey(), e.getValue());
+                result.success(e.getKey(), e.getValue());
+            } catch (Exception ex) {
+                result.failure(e.getKey(), ex);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        BatchResult<ISObject> result = new BatchResult<ISObject>();
+        for (String key : keys) {
+            try {
+                result.success(key, remove(key));
+            } catch (RuntimeException e) {
+                result.failure(key, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encode a record. A <code>null</code> data makes a tombstone
+     */
+    private static ByteBuffer record_(String key, Map<String, String> attrs, byte[] data, long timestamp) throws IOException {
+        byte[] k = key.getBytes("UTF-8");
+        ByteArrayOutputStream abuf = new ByteArrayOutputStream();
+        DataOutputStream aos = new DataOutputStream(abuf);
+        aos.writeShort(attrs.size());
+        for (Map.Entry<String, String> e : attrs.entrySet()) {
+            aos.writeUTF(e.getKey());
+            aos.writeUTF(null == e.getValue() ? "" : e.getValue());
+        }
+        aos.flush();
+        byte[] a = abuf.toByteArray();
+        int dataLen = null == data ? TOMBSTONE : data.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + k.length + a.length + Math.max(0, dataLen) + 4);
+        buf.putInt(RECORD_MAGIC).putInt(k.length).putInt(a.length).putInt(dataLen).putLong(timestamp);
+        buf.put(k).put(a);
+        if (null != data) buf.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Append an encoded record to the active segment, rolling to a new one
+     * if it is full. Must be called with the write lock
+     */
+    private Entry append_(String key, Map<String, String> attrs, int dataLen, ByteBuffer rec) throws IOException {
+        int recLen = rec.remaining();
+        if (active_.length > 0 && active_.length + recLen > maxSegmentSize_) {
+            roll_();
+        }
+        long offset = active_.append(rec);
+        if (sync_) active_.channel.force(false);
+        int dataOffset = recLen - 4 - Math.max(0, dataLen);
+        long timestamp = rec.getLong(16);
+        return new Entry(active_.id, offset, recLen, dataOffset, dataLen,
+                timestamp, null == attrs ? Collections.<String, String>emptyMap() : attrs);
+    }
+
+    private void roll_() throws IOException {
+        active_.channel.force(false);
+        active_.seal();
+        Segment seg = new Segment(active_.id + 1, segmentFile_(active_.id + 1));
+        segments_.put(seg.id, seg);
+        active_ = seg;
+    }
+
+    private File segmentFile_(int id) {
+        return new File(dir_, String.format("seg-%08x.dat", id));
+    }
+
+    /**
+     * Copy the live records of sealed segments with enough dead bytes to
+     * the active segment and delete the segments
+     */
+    public void compact() throws IOException {
+        List<Segment> victims = new ArrayList<Segment>();
+        synchronized (writeLock_) {
+            for (Segment seg : segments_.values()) {
+                if (seg != active_ && seg.length > 0 && seg.dead.get() >= seg.length * compactionRatio_) {
+                    victims.add(seg);
+                }
+            }
+        }
+        if (victims.isEmpty()) {
+            return;
+        }
+        for (Segment seg : victims) {
+            long moved = 0;
+            boolean older = false;
+            for (int id : segments_.keySet()) {
+                if (id < seg.id) older = true;
+            }
+            if (older) {
+                moved += carryTombstones_(seg);
+            }
+            for (Map.Entry<String, Entry> me : index_.entrySet()) {
+                Entry e = me.getValue();
+                if (e.segment != seg.id) continue;
+                ByteBuffer rec = seg.read(e.offset, e.recordLength);
+                synchronized (writeLock_) {
+                    // skip the records overwritten or removed meanwhile
+                    if (index_.get(me.getKey()) != e) continue;
+                    Entry copy = append_(me.getKey(), e.attrs, e.length, rec);
+                    index_.put(me.getKey(), copy);
+                    moved += e.recordLength;
+                }
+            }
+            compactedBytes_.addAndGet(seg.length - moved);
+            Logger.info("segment storage: compacted %s, reclaimed %s bytes", seg.file.getName(), seg.length - moved);
+        }
+        // the saved index must not point to the segments before they go
+        saveIndex();
+        for (Segment seg : victims) {
+            segments_.remove(seg.id);
+            seg.close();
+            if (!seg.file.delete()) {
+                Logger.warn("segment storage: cannot delete %s", seg.file);
+            }
+        }
+    }
+
+    /**
+     * Copy the tombstones of a segment to the active segment, unless the key
+     * has been put again since
+     *
+     * @return the number of bytes copied
+     */
+    private long carryTombstones_(Segment seg) throws IOException {
+        long moved = 0;
+        long pos = 0;
+        DataInputStream is = new DataInputStream(new BufferedInputStream(inputStream_(seg.channel, 0), 64 * 1024));
+        try {
+            while (pos + HEADER_SIZE + 4 <= seg.length) {
+                if (is.readInt() != RECORD_MAGIC) break;
+                int keyLen = is.readInt();
+                int attrLen = is.readInt();
+                int dataLen = is.readInt();
+                is.readLong();
+                if (keyLen < 0 || attrLen < 0 || dataLen < TOMBSTONE) break;
+                long recLen = (long) HEADER_SIZE + keyLen + attrLen + Math.max(0, dataLen) + 4;
+                if (pos + recLen > seg.length) break;
+                if (TOMBSTONE == dataLen) {
+                    byte[] k = new byte[keyLen];
+                    is.readFully(k);
+                    String key = new String(k, "UTF-8");
+                    ByteBuffer rec = seg.read(pos, (int) recLen);
+                    synchronized (writeLock_) {
+                        if (!index_.containsKey(key)) {
+                            dead_(append_(key, null, TOMBSTONE, rec));
+                            moved += recLen;
+                        }
+                    }
+                    skipFully_(is, recLen - HEADER_SIZE - keyLen);
+                } else {
+                    skipFully_(is, recLen - HEADER_SIZE);
+                }
+                pos += recLen;
+            }
+        } catch (EOFException e) {
+            // torn record
+        } finally {
+            is.close();
+        }
+        return moved;
+    }
+
+    private static void skipFully_(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Save the index with the length of each segment. Records written while
+     * the index is saved are after the saved lengths and replayed on start
+     */
+    public void saveIndex() throws IOException {
+        Map<Integer, Long> lengths = new HashMap<Integer, Long>();
+        synchronized (writeLock_) {
+            if (null == active_) return;
+            active_.channel.force(false);
+            for (Segment seg : segments_.values()) {
+                lengths.put(seg.id, seg.length);
+            }
+            dirty_ = false;
+        }
+        File tmp = new File(dir_, INDEX_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        try {
+            os.writeInt(INDEX_MAGIC);
+            os.writeInt(lengths.size());
+            for (Map.Entry<Integer, Long> e : lengths.entrySet()) {
+                os.writeInt(e.getKey());
+                os.writeLong(e.getValue());
+            }
+            for (Map.Entry<String, Entry> me : index_.entrySet()) {
+                Entry e = me.getValue();
+                if (!lengths.containsKey(e.segment)) continue;
+                os.writeBoolean(true);
+                os.writeUTF(me.getKey());
+                os.writeInt(e.segment);
+                os.writeLong(e.offset);
+                os.writeInt(e.recordLength);
+                os.writeInt(e.dataOffset);
+                os.writeInt(e.length);
+                os.writeLong(e.timestamp);
+                os.writeShort(e.attrs.size());
+                for (Map.Entry<String, String> a : e.attrs.entrySet()) {
+                    os.writeUTF(a.getKey());
+                    os.writeUTF(a.getValue());
+                }
+            }
+            os.writeBoolean(false);
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            os.close();
+        }
+        File f = new File(dir_, INDEX_FILE);
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) throw new IOException("cannot save segment storage index");
+        }
+    }
+
+    /**
+     * Open the segments, load the saved index and replay the segment tails
+     */
+    private void open_() throws IOException {
+        Map<Integer, Long> saved = loadIndex_();
+        List<Integer> ids = new ArrayList<Integer>();
+        File[] files = dir_.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith("seg-") && name.endsWith(".dat")) {
+                    ids.add(Integer.parseInt(name.substring(4, name.length() - 4), 16));
+                }
+            }
+        }
+        Collections.sort(ids);
+        synchronized (writeLock_) {
+            for (int id : ids) {
+                segments_.put(id, new Segment(id, segmentFile_(id)));
+            }
+            // drop entries of segments lost since the index was saved
+            for (Map.Entry<String, Entry> me : index_.entrySet()) {
+                if (!segments_.containsKey(me.getValue().segment)) index_.remove(me.getKey());
+            }
+            for (int i = 0; i < ids.size(); ++i) {
+                Long from = saved.get(ids.get(i));
+                replay_(segments_.get(ids.get(i)), null == from ? 0 : from, i == ids.size() - 1);
+            }
+            if (ids.isEmpty()) {
+                active_ = new Segment(0, segmentFile_(0));
+                segments_.put(0, active_);
+            } else {
+                active_ = segments_.get(ids.get(ids.size() - 1));
+                for (int i = 0; i < ids.size() - 1; ++i) {
+                    segments_.get(ids.get(i)).seal();
+                }
+            }
+            Map<Integer, Long> live = new HashMap<Integer, Long>();
+            for (Entry e : index_.values()) {
+                Long n = live.get(e.segment);
+                live.put(e.segment, (null == n ? 0 : n) + e.recordLength);
+            }
+            for (Segment seg : segments_.values()) {
+                Long n = live.get(seg.id);
+                seg.dead.set(seg.length - (null == n ? 0 : n));
+            }
+        }
+        Logger.info("segment storage: %s objects in %s segments", index_.size(), segments_.size());
+    }
+
+    private Map<Integer, Long> loadIndex_() {
+        Map<Integer, Long> lengths = new HashMap<Integer, Long>();
+        File f = new File(dir_, INDEX_FILE);
+        if (!f.exists()) {
+            return lengths;
+        }
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+            try {
+                if (is.readInt() != INDEX_MAGIC) throw new IOException("bad index magic");
+                int n = is.readInt();
+                for (int i = 0; i < n; ++i) {
+                    lengths.put(is.readInt(), is.readLong());
+                }
+                while (is.readBoolean()) {
+                    String key = is.readUTF();
+                    int seg = is.readInt();
+                    long offset = is.readLong();
+                    int recLen = is.readInt();
+                    int dataOffset = is.readInt();
+                    int len = is.readInt();
+                    long ts = is.readLong();
+                    int na = is.readShort();
+                    Map<String, String> attrs = na == 0 ? Collections.<String, String>emptyMap() : new HashMap<String, String>();
+                    for (int i = 0; i < na; ++i) {
+                        attrs.put(is.readUTF(), is.readUTF());
+                    }
+                    index_.put(key, new Entry(seg, offset, recLen, dataOffset, len, ts, attrs));
+                }
+            } finally {
+                is.close();
+            }
+            return lengths;
+        } catch (IOException e) {
+            // fall back to a full scan of the segments
+            Logger.warn(e, "segment storage: cannot load index, scanning all segments");
+            index_.clear();
+            return new HashMap<Integer, Long>();
+        }
+    }
+
+    /**
+     * Apply the records of a segment from the given offset to the index. A
+     * torn record at the end of the last segment is truncated
+     */
+    private void replay_(Segment seg, long from, boolean last) throws IOException {
+        long pos = from;
+        DataInputStream is = new DataInputStream(new BufferedInputStream(inputStream_(seg.channel, pos), 64 * 1024));
+        try {
+            while (pos + HEADER_SIZE + 4 <= seg.length) {
+                if (is.readInt() != RECORD_MAGIC) break;
+                int keyLen = is.readInt();
+                int attrLen = is.readInt();
+                int dataLen = is.readInt();
+                long ts = is.readLong();
+                if (keyLen < 0 || attrLen < 0 || dataLen < TOMBSTONE) break;
+                long recLen = (long) HEADER_SIZE + keyLen + attrLen + Math.max(0, dataLen) + 4;
+                if (pos + recLen > seg.length || recLen > Integer.MAX_VALUE) break;
+                byte[] body = new byte[(int) recLen - HEADER_SIZE - 4];
+                is.readFully(body);
+                int crc = is.readInt();
+                CRC32 c = new CRC32();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(RECORD_MAGIC).putInt(keyLen).putInt(attrLen).putInt(dataLen).putLong(ts);
+                c.update(header.array());
+                c.update(body);
+                if ((int) c.getValue() != crc) break;
+                String key = new String(body, 0, keyLen, "UTF-8");
+                if (TOMBSTONE == dataLen) {
+                    index_.remove(key);
+                } else {
+                    DataInputStream ais = new DataInputStream(new ByteArrayInputStream(body, keyLen, attrLen));
+                    int na = ais.readShort();
+                    Map<String, String> attrs = na == 0 ? Collections.<String, String>emptyMap() : new HashMap<String, String>();
+                    for (int i = 0; i < na; ++i) {
+                        attrs.put(ais.readUTF(), ais.readUTF());
+                    }
+                    index_.put(key, new Entry(seg.id, pos, (int) recLen, HEADER_SIZE + keyLen + attrLen, dataLen, ts, attrs));
+                }
+                pos += recLen;
+            }
+        } catch (EOFException e) {
+            // torn record
+        } finally {
+            is.close();
+        }
+        if (pos < seg.length) {
+            if (last) {
+                Logger.warn("segment storage: truncating torn tail of %s at %s", seg.file.getName(), pos);
+                seg.channel.truncate(pos);
+                seg.length = pos;
+            } else {
+                Logger.warn("segment storage: corrupted record in %s at %s", seg.file.getName(), pos);
+            }
+        }
+    }
+
+    public int getObjectCount() {
+        return index_.size();
+    }
+
+    public int getSegmentCount() {
+        return segments_.size();
+    }
+
+    /**
+     * @return total number of bytes reclaimed by compaction
+     */
+    public long getCompactedBytes() {
+        return compactedBytes_.get();
+    }
+
+    @Override
+    public String toString() {
+        long size = 0, dead = 0;
+        for (Segment seg : segments_.values()) {
+            size += seg.length;
+            dead += seg.dead.get();
+        }
+        return String.format("segment storage: objects=%d segments=%d bytes=%d dead=%d compacted=%d",
+                getObjectCount(), getSegmentCount(), size, dead, getCompactedBytes());
+    }
+
+    /**
+     * The location of the latest record of a key
+     */
+    private static class Entry {
+        final int segment;
+        final long offset;
+        final int recordLength;
+        final int dataOffset;
+        final int length;
+        final long timestamp;
+        final Map<String, String> attrs;
+
+        Entry(int segment, long offset, int recordLength, int dataOffset, int length, long timestamp, Map<String, String> attrs) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * A segment file. Only the active segment is appended to and is read with
+     * positional reads; a sealed segment no longer changes and is mapped
+     * once, on its first read
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        volatile long length;
+        final AtomicLong dead = new AtomicLong();
+        private volatile boolean sealed_ = false;
+        private volatile MappedByteBuffer map_;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            length = channel.size();
+        }
+
+        long append(ByteBuffer rec) throws IOException {
+            long offset = length;
+            long pos = offset;
+            while (rec.hasRemaining()) {
+                pos += channel.write(rec, pos);
+            }
+            length = pos;
+            return offset;
+        }
+
+        /**
+         * Mark the segment as no longer appended to
+         */
+        void seal() {
+            sealed_ = true;
+        }
+
+        /**
+         * @return a read only slice of the mapped segment if it is sealed,
+         * otherwise a copy of the region
+         */
+        ByteBuffer read(long offset, int len) {
+            if (!sealed_) {
+                return readAt_(offset, len);
+            }
+            MappedByteBuffer map = map_;
+            if (null == map) {
+                map = mapOnce_();
+            }
+            ByteBuffer buf = map.duplicate();
+            buf.position((int) offset);
+            buf.limit((int) offset + len);
+            return buf.slice();
+        }
+
+        private ByteBuffer readAt_(long offset, int len) {
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            try {
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, offset + buf.position()) < 0) {
+                        throw new EOFException("read past the end of " + file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UnexpectedException(e);
+            }
+            buf.flip();
+            return buf;
+        }
+
+        private synchronized MappedByteBuffer mapOnce_() {
+            if (null == map_) {
+                try {
+                    map_ = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                } catch (IOException e) {
+                    throw new UnexpectedException(e);
+                }
+            }
+            return map_;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Logger.warn(e, "error closing segment %s", file);
+            }
+        }
+    }
+
+    /**
+     * Read a file channel from a position without moving the channel
+     */
+    private static InputStream inputStream_(final FileChannel ch, final long from) {
+        return new InputStream() {
+            private long pos_ = from;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = ch.read(ByteBuffer.wrap(b, off, len), pos_);
+                if (n > 0) pos_ += n;
+                return n;
+            }
+        };
+    }
+}
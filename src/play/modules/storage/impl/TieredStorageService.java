@@ -0,0 +1,492 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.exceptions.UnexpectedException;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keep recent objects on local disk and older ones in a cold store like S3.
+ * New objects are written to the hot tier, a {@link FileStorageService}, and
+ * a background sweep moves the objects neither written nor read for
+ * <code>storage.tiered.maxAge</code> seconds to the cold tier. Folders of a
+ * <code>BY_DATE</code> key structure too recent to hold such objects are
+ * skipped without being listed.
+ * <p/>
+ * Reads try the hot tier first and fall through to the cold one. With
+ * <code>storage.tiered.promote=true</code> an object read from the cold tier
+ * is copied back to the hot tier in the background.
+ * <p/>
+ * Configuration:
+ * <ul>
+ * <li><code>storage.serviceImpl=play.modules.storage.impl.TieredStorageService</code></li>
+ * <li><code>storage.tiered.cold</code>, the cold tier implementation,
+ * default {@link S3Service}. The hot tier is configured by the
+ * <code>storage.file.*</code> settings, the cold one by its own</li>
+ * <li><code>storage.tiered.maxAge</code>, default 604800 (7 days)</li>
+ * <li><code>storage.tiered.sweepInterval</code>, seconds between sweeps,
+ * default 3600</li>
+ * <li><code>storage.tiered.promote</code>, default false</li>
+ * <li><code>storage.tiered.threads</code>, threads moving objects between
+ * tiers, default 2</li>
+ * </ul>
+ */
+public class TieredStorageService implements IManagedStorageService {
+
+    public static final String CONF_COLD = "storage.tiered.cold";
+    public static final String CONF_MAX_AGE = "storage.tiered.maxAge";
+    public static final String CONF_SWEEP_INTERVAL = "storage.tiered.sweepInterval";
+    public static final String CONF_PROMOTE = "storage.tiered.promote";
+    public static final String CONF_THREADS = "storage.tiered.threads";
+
+    private static final int STRIPES = 64;
+    private static final int SWEEP_BATCH = 256;
+
+    // the yyyy/mm/dd folders of BY_DATE keys
+    private static final Pattern DATE_DIR_ = Pattern.compile("(?:^|/)(\\d{4})/(\\d{2})/(\\d{2})/$");
+
+    private static final AtomicInteger poolSeq_ = new AtomicInteger();
+
+    private FileStorageService hot_;
+    private IStorageService cold_;
+    private long maxAge_ = 7 * 24 * 3600 * 1000L;
+    private boolean promote_ = false;
+    private int parallelism_ = Batch.DEF_PARALLELISM;
+
+    private final Object[] keyLocks_ = new Object[STRIPES];
+
+    /**
+     * Removals per lock stripe, guarded by the stripe lock. A move started
+     * before a removal of its key must not copy the object back
+     */
+    private final long[] removals_ = new long[STRIPES];
+
+    /**
+     * Last read of hot objects since the start, the sweep takes the most
+     * recent of this and the modification time
+     */
+    private final Map<String, Long> lastAccess_ = new ConcurrentHashMap<String, Long>();
+    private final Set<String> promoting_ = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ScheduledExecutorService sweeper_ = null;
+    private volatile ExecutorService movers_ = null;
+
+    private final AtomicLong hotHits_ = new AtomicLong();
+    private final AtomicLong coldHits_ = new AtomicLong();
+    private final AtomicLong misses_ = new AtomicLong();
+    private final AtomicLong demoted_ = new AtomicLong();
+    private final AtomicLong demotedBytes_ = new AtomicLong();
+    private final AtomicLong promoted_ = new AtomicLong();
+    private final AtomicLong moveErrors_ = new AtomicLong();
+    private volatile long lastSweep_ = 0;
+
+    public TieredStorageService() {
+        for (int i = 0; i < STRIPES; ++i) {
+            keyLocks_[i] = new Object();
+        }
+    }
+
+    /**
+     * Tier the given services, {@link #configure} sets the options only
+     */
+    public TieredStorageService(FileStorageService hot, IStorageService cold) {
+        this();
+        if (null == hot || null == cold) throw new NullPointerException();
+        hot_ = hot;
+        cold_ = cold;
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        if (null == conf) throw new NullPointerException();
+        close();
+        if (null == hot_) {
+            hot_ = new FileStorageService(conf);
+            String cold = conf.get(CONF_COLD);
+            try {
+                cold_ = (IStorageService) Class.forName(null == cold ? S3Service.class.getName() : cold.trim()).newInstance();
+            } catch (Exception e) {
+                throw new UnexpectedException(e);
+            }
+            cold_.configure(conf);
+        }
+        String s = conf.get(CONF_MAX_AGE);
+        if (null != s) maxAge_ = Long.parseLong(s.trim()) * 1000;
+        promote_ = Boolean.parseBoolean(conf.get(CONF_PROMOTE));
+        s = conf.get(CONF_THREADS);
+        int threads = null == s ? 2 : Integer.parseInt(s.trim());
+        s = conf.get(CONF_SWEEP_INTERVAL);
+        long interval = null == s ? 3600 : Long.parseLong(s.trim());
+        parallelism_ = Batch.parallelism(conf);
+
+        movers_ = Executors.newFixedThreadPool(threads, daemon_("storage-tier-mover-"));
+        sweeper_ = Executors.newSingleThreadScheduledExecutor(daemon_("storage-tier-sweep-"));
+        sweeper_.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    Logger.error(e, "error sweeping storage hot tier");
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static ThreadFactory daemon_(final String prefix) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + poolSeq_.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        if (null != sweeper_) {
+            sweeper_.shutdownNow();
+            sweeper_ = null;
+        }
+        if (null != movers_) {
+            movers_.shutdownNow();
+            movers_ = null;
+        }
+    }
+
+    public FileStorageService getHotTier() {
+        return hot_;
+    }
+
+    public IStorageService getColdTier() {
+        return cold_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        return Arrays.<IStorageService>asList(hot_, cold_);
+    }
+
+    private static int stripe_(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private Object keyLock_(String key) {
+        return keyLocks_[stripe_(key)];
+    }
+
+    private long removals_(String key) {
+        synchronized (keyLock_(key)) {
+            return removals_[stripe_(key)];
+        }
+    }
+
+    private static String normalize_(String key) {
+        return key.replace('\\', '/');
+    }
+
+    private boolean isHot_(String key) {
+        return hot_.resolve(key).exists();
+    }
+
+    @Override
+    public ISObject get(String key) {
+        key = normalize_(key);
+        if (isHot_(key)) {
+            hotHits_.incrementAndGet();
+            lastAccess_.put(key, System.currentTimeMillis());
+            return hot_.get(key);
+        }
+        long removals = promote_ ? removals_(key) : 0;
+        ISObject sobj = cold_.get(key);
+        if (!SObject.exists(sobj)) {
+            misses_.incrementAndGet();
+            return null;
+        }
+        coldHits_.incrementAndGet();
+        if (promote_) {
+            promote_(key, sobj, removals);
+        }
+        return sobj;
+    }
+
+    /**
+     * Copy a cold object back to the hot tier in the background, unless the
+     * key has been written to the hot tier or removed meanwhile
+     *
+     * @param removals the removals of the key stripe before the cold read
+     */
+    private void promote_(final String key, final ISObject sobj, final long removals) {
+        ExecutorService movers = movers_;
+        if (null == movers || !promoting_.add(key)) return;
+        try {
+            movers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // fetched outside the lock, buffered or spilled to a temp file
+                        ISObject copy = SObject.asSObject(key, sobj.asInputStream());
+                        copy.getLength();
+                        for (Map.Entry<String, String> e : sobj.getAttributes().entrySet()) {
+                            copy.setAttribute(e.getKey(), e.getValue());
+                        }
+                        synchronized (keyLock_(key)) {
+                            if (!isHot_(key) && removals_[stripe_(key)] == removals) {
+                                hot_.put(key, copy);
+                                lastAccess_.put(key, System.currentTimeMillis());
+                                promoted_.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        moveErrors_.incrementAndGet();
+                        Logger.warn(e, "storage tiered: error promoting [%s]", key);
+                    } finally {
+                        promoting_.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promoting_.remove(key);
+        }
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        key = normalize_(key);
+        synchronized (keyLock_(key)) {
+            hot_.put(key, stuff);
+        }
+        lastAccess_.remove(key);
+    }
+
+    /**
+     * Remove the object from both tiers
+     *
+     * @return the object removed from the hot tier, or the one removed from
+     * the cold tier if it was not hot
+     */
+    @Override
+    public ISObject remove(String key) {
+        key = normalize_(key);
+        synchronized (keyLock_(key)) {
+            removals_[stripe_(key)]++;
+            lastAccess_.remove(key);
+            ISObject sobj = isHot_(key) ? hot_.remove(key) : null;
+            ISObject cold = cold_.remove(key);
+            return null == sobj ? cold : sobj;
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        key = normalize_(key);
+        synchronized (keyLock_(key)) {
+            removals_[stripe_(key)]++;
+            lastAccess_.remove(key);
+            boolean hot = hot_.delete(key);
+            return cold_.delete(key) || hot;
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.singletons(objects.keySet()), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return remove(key);
+            }
+        });
+    }
+
+    @Override
+    public String getUrl(String key) {
+        return isHot_(normalize_(key)) ? hot_.getUrl(key) : cold_.getUrl(key);
+    }
+
+    /**
+     * Move the hot objects idle for longer than the max age to the cold tier
+     *
+     * @return the number of objects moved
+     */
+    public int sweep() {
+        ExecutorService movers = movers_;
+        if (null == movers) return 0;
+        long cutoff = System.currentTimeMillis() - maxAge_;
+        List<Future<Boolean>> batch = new ArrayList<Future<Boolean>>();
+        int n = walk_(hot_.rootDir(), "", cutoff, movers, batch);
+        n += await_(batch);
+        lastSweep_ = System.currentTimeMillis();
+        if (n > 0) Logger.info("storage tiered: %s objects moved to the cold tier", n);
+        return n;
+    }
+
+    private int walk_(File dir, String prefix, long cutoff, ExecutorService movers, List<Future<Boolean>> batch) {
+        File[] files = dir.listFiles();
+        if (null == files) return 0;
+        int n = 0;
+        for (final File f : files) {
+            String name = f.getName();
+            // trash, temporary files and attribute logs
+            if (name.startsWith(".") || name.endsWith(AttributeStore.LEGACY_SUFFIX)) continue;
+            if (f.isDirectory()) {
+                String path = prefix + name + "/";
+                if (!olderDay_(path, cutoff)) continue;
+                n += walk_(f, path, cutoff, movers, batch);
+                continue;
+            }
+            final String key = prefix + name;
+            Long accessed = lastAccess_.get(key);
+            if (Math.max(f.lastModified(), null == accessed ? 0 : accessed) >= cutoff) continue;
+            batch.add(movers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return demote_(key, f);
+                }
+            }));
+            if (batch.size() >= SWEEP_BATCH) {
+                n += await_(batch);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return <code>false</code> if the path is a day folder of a
+     * <code>BY_DATE</code> structure which started after the cutoff: every
+     * object in it was written after the cutoff
+     */
+    private static boolean olderDay_(String path, long cutoff) {
+        Matcher m = DATE_DIR_.matcher(path);
+        if (!m.find()) return true;
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1, Integer.parseInt(m.group(3)));
+        return c.getTimeInMillis() < cutoff;
+    }
+
+    private int await_(List<Future<Boolean>> batch) {
+        int n = 0;
+        try {
+            for (Future<Boolean> f : batch) {
+                if (f.get()) n++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.error(e.getCause(), "error moving objects to the cold tier");
+        }
+        batch.clear();
+        return n;
+    }
+
+    /**
+     * Copy the object to the cold tier, then delete it from the hot tier if
+     * it has not been written meanwhile. If it has been removed meanwhile,
+     * the cold copy is deleted again
+     */
+    private boolean demote_(String key, File f) {
+        long removals = removals_(key);
+        long modified = f.lastModified();
+        long length = f.length();
+        try {
+            cold_.put(key, hot_.get(key));
+        } catch (Exception e) {
+            moveErrors_.incrementAndGet();
+            Logger.warn(e, "storage tiered: error moving [%s] to the cold tier", key);
+            return false;
+        }
+        synchronized (keyLock_(key)) {
+            if (removals_[stripe_(key)] != removals) {
+                // maybe another key of the stripe, then the hot copy is kept
+                cold_.delete(key);
+                return false;
+            }
+            if (f.lastModified() != modified || f.length() != length) {
+                // rewritten, the hot copy shadows the cold one
+                return false;
+            }
+            hot_.delete(key);
+            lastAccess_.remove(key);
+        }
+        demoted_.incrementAndGet();
+        demotedBytes_.addAndGet(length);
+        return true;
+    }
+
+    /**
+     * @return the fraction of the reads served by the hot tier
+     */
+    public double getHotHitRatio() {
+        return ratio_(hotHits_.get());
+    }
+
+    /**
+     * @return the fraction of the reads served by the cold tier
+     */
+    public double getColdHitRatio() {
+        return ratio_(coldHits_.get());
+    }
+
+    private double ratio_(long hits) {
+        long reads = hotHits_.get() + coldHits_.get() + misses_.get();
+        return 0 == reads ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("storage tiered: hot=%d (%.1f%%) cold=%d (%.1f%%) misses=%d demoted=%d (%d bytes) promoted=%d errors=%d lastSweep=%tF %<tT",
+                hotHits_.get(), getHotHitRatio() * 100, coldHits_.get(), getColdHitRatio() * 100, misses_.get(),
+                demoted_.get(), demotedBytes_.get(), promoted_.get(), moveErrors_.get(), lastSweep_);
+    }
+}
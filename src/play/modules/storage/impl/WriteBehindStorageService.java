@@ -0,0 +1,695 @@
+package play.modules.storage.impl;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.modules.storage.BatchResult;
+import play.modules.storage.IManagedStorageService;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.StoragePlugin;
+import play.vfs.VirtualFile;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acknowledge puts once the object is staged on local disk and upload it to
+ * another {@link IStorageService} in the background. The staging folder is
+ * the queue: every pending put is a data file and a small meta file holding
+ * the key and attributes, written in that order, so pending uploads are
+ * found again and resumed on start. Failed uploads are retried with a
+ * growing delay.
+ * <p/>
+ * Reads of a key with a pending upload are served from the staged copy.
+ * A later put of the key supersedes a pending one, which is then skipped,
+ * and a remove or delete cancels it.
+ * <p/>
+ * The queue is bounded in number of uploads and bytes. A put finding it full
+ * waits for room, and fails with an <code>IOException</code> after
+ * <code>storage.writeBehind.offerTimeout</code> seconds.
+ * <p/>
+ * Configuration:
+ * <ul>
+ * <li><code>storage.writeBehind.enabled</code></li>
+ * <li><code>storage.writeBehind.dir</code>, the staging folder under the
+ * application path, default <code>storage-queue</code></li>
+ * <li><code>storage.writeBehind.maxPending</code>, default 1000</li>
+ * <li><code>storage.writeBehind.maxBytes</code>, default 256mb</li>
+ * <li><code>storage.writeBehind.threads</code>, uploading threads, default 4</li>
+ * <li><code>storage.writeBehind.offerTimeout</code>, default 30</li>
+ * <li><code>storage.writeBehind.sync</code>, sync staged files before
+ * acknowledging the put, default true</li>
+ * </ul>
+ */
+public class WriteBehindStorageService implements IManagedStorageService {
+
+    public static final String CONF_ENABLED = "storage.writeBehind.enabled";
+    public static final String CONF_HOME = "storage.writeBehind.dir";
+    public static final String CONF_MAX_PENDING = "storage.writeBehind.maxPending";
+    public static final String CONF_MAX_BYTES = "storage.writeBehind.maxBytes";
+    public static final String CONF_THREADS = "storage.writeBehind.threads";
+    public static final String CONF_OFFER_TIMEOUT = "storage.writeBehind.offerTimeout";
+    public static final String CONF_SYNC = "storage.writeBehind.sync";
+
+    private static final String DATA = ".data";
+    private static final String META = ".meta";
+    private static final String TMP = ".tmp";
+
+    private static final int STRIPES = 64;
+    private static final int MAX_RETRY_DELAY = 60;
+
+    /**
+     * Seconds a staged file stays after its upload, for the readers which
+     * got it just before
+     */
+    private static final int READ_GRACE = 10;
+
+    private static final AtomicInteger poolSeq_ = new AtomicInteger();
+
+    private IStorageService service_;
+    private File dir_;
+    private int maxPending_ = 1000;
+    private long maxBytes_ = 256L * 1024 * 1024;
+    private long offerTimeout_ = 30 * 1000L;
+    private boolean sync_ = true;
+    private int parallelism_ = Batch.DEF_PARALLELISM;
+
+    /**
+     * The latest pending upload of each key
+     */
+    private final ConcurrentMap<String, Entry> pending_ = new ConcurrentHashMap<String, Entry>();
+    private final Object[] keyLocks_ = new Object[STRIPES];
+
+    /**
+     * Keys with a backend call running, an upload, remove or delete. The
+     * next upload of such a key is parked until the call is done, so that
+     * the calls of a key reach the backend in order. Both are changed
+     * under the lock of the key, which is not held during the calls
+     */
+    private final Set<String> busy_ = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, Upload_> parked_ = new ConcurrentHashMap<String, Upload_>();
+    private final AtomicLong seq_ = new AtomicLong();
+
+    /**
+     * Guards the queue size
+     */
+    private final Object queueLock_ = new Object();
+    private int count_ = 0;
+    private long bytes_ = 0;
+
+    private volatile ScheduledThreadPoolExecutor workers_ = null;
+
+    private final AtomicLong uploaded_ = new AtomicLong();
+    private final AtomicLong failures_ = new AtomicLong();
+    private final AtomicLong rejected_ = new AtomicLong();
+
+    // uploads per second over the last minute
+    private final long[] drainSecond_ = new long[60];
+    private final long[] drainCount_ = new long[60];
+
+    public WriteBehindStorageService(IStorageService service) {
+        if (null == service) throw new NullPointerException();
+        service_ = service;
+        for (int i = 0; i < STRIPES; ++i) {
+            keyLocks_[i] = new Object();
+        }
+    }
+
+    @Override
+    public void configure(Map<String, String> conf) {
+        if (null == conf) throw new NullPointerException();
+        close();
+        String home = conf.get(CONF_HOME);
+        dir_ = VirtualFile.open(Play.applicationPath).child(null == home ? "storage-queue" : home).getRealFile();
+        if (!dir_.mkdirs() && !dir_.isDirectory()) {
+            throw new RuntimeException("cannot create write behind staging dir");
+        }
+        String s = conf.get(CONF_MAX_PENDING);
+        if (null != s) maxPending_ = Integer.parseInt(s.trim());
+        maxBytes_ = StoragePlugin.bytesOf(conf.get(CONF_MAX_BYTES), maxBytes_);
+        s = conf.get(CONF_OFFER_TIMEOUT);
+        if (null != s) offerTimeout_ = Long.parseLong(s.trim()) * 1000;
+        s = conf.get(CONF_SYNC);
+        if (null != s) sync_ = Boolean.parseBoolean(s.trim());
+        s = conf.get(CONF_THREADS);
+        int threads = null == s ? 4 : Integer.parseInt(s.trim());
+        parallelism_ = Batch.parallelism(conf);
+
+        workers_ = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "storage-write-behind-" + poolSeq_.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // retries waiting for their delay stay staged for the next start
+        workers_.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        recover_();
+    }
+
+    public IStorageService getService() {
+        return service_;
+    }
+
+    @Override
+    public List<IStorageService> getServices() {
+        return Collections.singletonList(service_);
+    }
+
+    /**
+     * Stop uploading. Uploads not done within a few seconds stay staged and
+     * are resumed on the next start
+     */
+    @Override
+    public void close() {
+        if (null == workers_) return;
+        workers_.shutdown();
+        try {
+            if (!workers_.awaitTermination(5, TimeUnit.SECONDS)) {
+                workers_.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers_.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        workers_ = null;
+        pending_.clear();
+        busy_.clear();
+        parked_.clear();
+        synchronized (queueLock_) {
+            count_ = 0;
+            bytes_ = 0;
+            queueLock_.notifyAll();
+        }
+    }
+
+    /**
+     * Queue the uploads staged before a restart, in the order they were put
+     */
+    private void recover_() {
+        String[] names = dir_.list();
+        if (null == names) return;
+        Arrays.sort(names);
+        int n = 0;
+        for (String name : names) {
+            File f = new File(dir_, name);
+            if (name.endsWith(TMP)) {
+                f.delete();
+                continue;
+            }
+            if (name.endsWith(DATA)) {
+                // either uploaded or never acknowledged
+                if (!new File(dir_, base_(name) + META).exists()) f.delete();
+                continue;
+            }
+            if (!name.endsWith(META)) continue;
+            try {
+                Entry e = readMeta_(f);
+                seq_.set(Math.max(seq_.get(), e.seq));
+                synchronized (queueLock_) {
+                    count_++;
+                    bytes_ += e.length;
+                }
+                if (register_(e)) {
+                    workers_.execute(new Upload_(e));
+                } else {
+                    done_(e);
+                }
+                n++;
+            } catch (IOException e) {
+                Logger.warn(e, "storage write behind: cannot read staged upload %s, dropped", name);
+                f.delete();
+                new File(dir_, base_(name) + DATA).delete();
+            }
+        }
+        if (n > 0) Logger.info("storage write behind: %s pending uploads resumed", n);
+    }
+
+    private static String base_(String name) {
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private Object keyLock_(String key) {
+        return keyLocks_[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    @Override
+    public ISObject get(String key) {
+        Entry e = pending_.get(key);
+        return null == e ? service_.get(key) : e.sobject();
+    }
+
+    @Override
+    public void put(String key, ISObject stuff) throws IOException {
+        long len = stuff.getLength();
+        admit_(len);
+        Entry e = null;
+        try {
+            e = stage_(key, stuff, len);
+        } finally {
+            if (null == e) release_(len);
+        }
+        if (!register_(e)) {
+            // a put of the key staged after this one got registered first
+            done_(e);
+            return;
+        }
+        execute_(new Upload_(e));
+    }
+
+    private void execute_(Upload_ upload) {
+        ScheduledThreadPoolExecutor workers = workers_;
+        if (null == workers) return;
+        try {
+            workers.execute(upload);
+        } catch (RejectedExecutionException x) {
+            // stopping, the staged object is uploaded after the restart
+        }
+    }
+
+    /**
+     * Make the entry the pending upload of its key, unless a later put of
+     * the key is pending already. The meta file of the entry replaced is
+     * deleted so that a restart does not upload it
+     *
+     * @return <code>false</code> if the entry is older than the pending one
+     */
+    private boolean register_(Entry e) {
+        synchronized (keyLock_(e.key)) {
+            Entry old = pending_.get(e.key);
+            if (null != old && old.seq > e.seq) {
+                return false;
+            }
+            pending_.put(e.key, e);
+            if (null != old) old.meta().delete();
+            return true;
+        }
+    }
+
+    /**
+     * Wait for room in the queue and count the object in
+     */
+    private void admit_(long len) throws IOException {
+        long deadline = System.currentTimeMillis() + offerTimeout_;
+        synchronized (queueLock_) {
+            // an object larger than the byte limit gets in when the queue is empty
+            while (count_ > 0 && (count_ >= maxPending_ || bytes_ + len > maxBytes_)) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    rejected_.incrementAndGet();
+                    throw new IOException(String.format("storage write behind queue full: %s uploads, %s bytes pending", count_, bytes_));
+                }
+                try {
+                    queueLock_.wait(wait);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the write behind queue");
+                }
+            }
+            count_++;
+            bytes_ += len;
+        }
+    }
+
+    private void release_(long len) {
+        synchronized (queueLock_) {
+            count_--;
+            bytes_ -= len;
+            queueLock_.notifyAll();
+        }
+    }
+
+    /**
+     * Write the data file then the meta file, the meta file makes the upload
+     * visible to a restart
+     */
+    private Entry stage_(String key, ISObject stuff, long len) throws IOException {
+        String base = String.format("%016x", seq_.incrementAndGet());
+        File data = new File(dir_, base + DATA);
+        FileOutputStream fos = new FileOutputStream(data);
+        try {
+            stuff.transferTo(fos.getChannel());
+            if (sync_) fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Entry e = new Entry(Long.parseLong(base, 16), key, data, len, System.currentTimeMillis(),
+                new HashMap<String, String>(stuff.getAttributes()));
+        File tmp = new File(dir_, base + TMP);
+        fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos));
+            os.writeUTF(key);
+            os.writeLong(len);
+            os.writeLong(e.enqueued);
+            os.writeShort(e.attrs.size());
+            for (Map.Entry<String, String> a : e.attrs.entrySet()) {
+                os.writeUTF(a.getKey());
+                os.writeUTF(null == a.getValue() ? "" : a.getValue());
+            }
+            os.flush();
+            if (sync_) fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(e.meta())) {
+            tmp.delete();
+            data.delete();
+            throw new IOException("cannot stage " + key);
+        }
+        return e;
+    }
+
+    private Entry readMeta_(File meta) throws IOException {
+        String base = base_(meta.getName());
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+        try {
+            String key = is.readUTF();
+            long len = is.readLong();
+            long enqueued = is.readLong();
+            int n = is.readUnsignedShort();
+            Map<String, String> attrs = new HashMap<String, String>();
+            for (int i = 0; i < n; ++i) {
+                attrs.put(is.readUTF(), is.readUTF());
+            }
+            File data = new File(dir_, base + DATA);
+            if (!data.exists()) throw new FileNotFoundException(data.getPath());
+            return new Entry(Long.parseLong(base, 16), key, data, len, enqueued, attrs);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Upload a staged object, unless a later put or a remove has superseded
+     * it. Uploads of a key are serialized so that an older one never
+     * overwrites a newer one
+     */
+    private class Upload_ implements Runnable {
+        private final Entry e_;
+        private int attempts_ = 0;
+
+        Upload_(Entry e) {
+            e_ = e;
+        }
+
+        @Override
+        public void run() {
+            String key = e_.key;
+            Upload_ superseded = null;
+            boolean start = false;
+            synchronized (keyLock_(key)) {
+                if (pending_.get(key) != e_) {
+                    superseded = this;
+                } else if (busy_.add(key)) {
+                    start = true;
+                } else {
+                    // runs when the call in progress is done, in place of
+                    // the older upload parked
+                    superseded = parked_.put(key, this);
+                }
+            }
+            if (null != superseded) done_(superseded.e_);
+            if (!start) return;
+            int delay = 0;
+            try {
+                service_.put(key, e_.sobject());
+            } catch (Exception x) {
+                failures_.incrementAndGet();
+                delay = Math.min(MAX_RETRY_DELAY, 1 << Math.min(++attempts_, 6));
+                Logger.warn(x, "storage write behind: error uploading [%s], attempt %s, retry in %ss", key, attempts_, delay);
+            }
+            boolean retry = false;
+            synchronized (keyLock_(key)) {
+                if (delay > 0) {
+                    retry = pending_.get(key) == e_;
+                } else if (pending_.remove(key, e_)) {
+                    uploaded_.incrementAndGet();
+                    drained_();
+                }
+            }
+            if (retry) {
+                schedule_(this, delay);
+            } else {
+                done_(e_);
+            }
+            idle_(key);
+        }
+    }
+
+    /**
+     * End the backend call of the key and start the upload parked meanwhile
+     */
+    private void idle_(String key) {
+        Upload_ next;
+        Object lock = keyLock_(key);
+        synchronized (lock) {
+            busy_.remove(key);
+            next = parked_.remove(key);
+            lock.notifyAll();
+        }
+        if (null != next) execute_(next);
+    }
+
+    /**
+     * Cancel the pending upload of the key and wait for the backend call of
+     * the key in progress, if any
+     *
+     * @return the entry cancelled, <code>null</code> if none
+     */
+    private Entry cancel_(String key) {
+        Object lock = keyLock_(key);
+        synchronized (lock) {
+            Entry e = pending_.remove(key);
+            if (null != e) e.meta().delete();
+            while (!busy_.add(key)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new UnexpectedException(x);
+                }
+            }
+            return e;
+        }
+    }
+
+    private void done_(final Entry e) {
+        e.meta().delete();
+        release_(e.length);
+        // if stopping, the data file without meta file is deleted on the next start
+        schedule_(new Runnable() {
+            @Override
+            public void run() {
+                e.data.delete();
+            }
+        }, READ_GRACE);
+    }
+
+    /**
+     * Run the task later unless stopping, a stopped upload is resumed on the
+     * next start
+     */
+    private void schedule_(Runnable task, int seconds) {
+        ScheduledThreadPoolExecutor workers = workers_;
+        if (null == workers) return;
+        try {
+            workers.schedule(task, seconds, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException x) {
+            // stopping
+        }
+    }
+
+    /**
+     * Remove the key from the backend and cancel its pending upload. The
+     * staged meta file is deleted at once, the upload itself is dropped
+     * when it comes to run, which could be never if stopping
+     *
+     * @return the staged object if an upload was pending, the object removed
+     * from the backend otherwise
+     */
+    @Override
+    public ISObject remove(String key) {
+        Entry e = cancel_(key);
+        try {
+            ISObject sobj = service_.remove(key);
+            return null == e ? sobj : e.sobject();
+        } finally {
+            idle_(key);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        Entry e = cancel_(key);
+        try {
+            return service_.delete(key) || null != e;
+        } finally {
+            idle_(key);
+        }
+    }
+
+    @Override
+    public BatchResult<ISObject> getAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return get(key);
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> putAll(final Map<String, ISObject> objects) {
+        return Batch.run(Batch.singletons(objects.keySet()), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) throws IOException {
+                ISObject stuff = objects.get(key);
+                put(key, stuff);
+                return stuff;
+            }
+        });
+    }
+
+    @Override
+    public BatchResult<ISObject> removeAll(Collection<String> keys) {
+        return Batch.run(Batch.singletons(keys), parallelism_, new Batch.KeyOp<ISObject>() {
+            @Override
+            public ISObject apply(String key) {
+                return remove(key);
+            }
+        });
+    }
+
+    /**
+     * @return the URL of the object in the backend, which only serves it
+     * once its upload is done
+     */
+    @Override
+    public String getUrl(String key) {
+        return service_.getUrl(key);
+    }
+
+    /**
+     * Wait until every upload queued so far is done or given up
+     *
+     * @return <code>true</code> if the queue was drained in time
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (queueLock_) {
+            while (count_ > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                queueLock_.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        synchronized (queueLock_) {
+            return count_;
+        }
+    }
+
+    public long getPendingBytes() {
+        synchronized (queueLock_) {
+            return bytes_;
+        }
+    }
+
+    /**
+     * @return milliseconds since the oldest pending upload was put, 0 if
+     * none is pending
+     */
+    public long getOldestAge() {
+        long oldest = Long.MAX_VALUE;
+        for (Entry e : pending_.values()) {
+            oldest = Math.min(oldest, e.enqueued);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    private void drained_() {
+        long s = System.currentTimeMillis() / 1000;
+        int i = (int) (s % drainSecond_.length);
+        synchronized (drainCount_) {
+            if (drainSecond_[i] != s) {
+                drainSecond_[i] = s;
+                drainCount_[i] = 0;
+            }
+            drainCount_[i]++;
+        }
+    }
+
+    /**
+     * @return uploads per second over the last minute
+     */
+    public double getDrainRate() {
+        long s = System.currentTimeMillis() / 1000;
+        long n = 0;
+        synchronized (drainCount_) {
+            for (int i = 0; i < drainSecond_.length; ++i) {
+                if (s - drainSecond_[i] < drainSecond_.length) n += drainCount_[i];
+            }
+        }
+        return (double) n / drainSecond_.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("storage write behind: pending=%d (%d bytes) oldest=%dms drain=%.1f/s uploaded=%d failures=%d rejected=%d",
+                getPendingCount(), getPendingBytes(), getOldestAge(), getDrainRate(),
+                uploaded_.get(), failures_.get(), rejected_.get());
+    }
+
+    /**
+     * A staged put
+     */
+    private static class Entry {
+        final long seq;
+        final String key;
+        final File data;
+        final long length;
+        final long enqueued;
+        final Map<String, String> attrs;
+
+        Entry(long seq, String key, File data, long length, long enqueued, Map<String, String> attrs) {
+            this.seq = seq;
+            this.key = key;
+            this.data = data;
+            this.length = length;
+            this.enqueued = enqueued;
+            this.attrs = attrs;
+        }
+
+        File meta() {
+            return new File(data.getParentFile(), String.format("%016x", seq) + META);
+        }
+
+        ISObject sobject() {
+            ISObject sobj = SObject.asSObject(key, data);
+            for (Map.Entry<String, String> e : attrs.entrySet()) {
+                sobj.setAttribute(e.getKey(), e.getValue());
+            }
+            return sobj;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package play.modules.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.storage.bench.Bench;
+import play.modules.storage.impl.CachingStorageService;
+import play.modules.storage.impl.FileStorageService;
+import play.modules.storage.impl.ReplicatedStorageService;
+import play.modules.storage.impl.TieredStorageService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The plugin closes and reports every managed service of the chain, those
+ * under a tiered or replicated service too
+ */
+public class StoragePluginTest {
+
+    private File root_;
+    private final List<String> closed_ = new ArrayList<String>();
+
+    /**
+     * A managed service storing nothing, which records its close
+     */
+    class Closing implements IManagedStorageService {
+        private final String name_;
+
+        Closing(String name) {
+            name_ = name;
+        }
+
+        @Override
+        public List<IStorageService> getServices() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void close() {
+            closed_.add(name_);
+        }
+
+        @Override
+        public void configure(Map<String, String> conf) {
+        }
+
+        @Override
+        public ISObject get(String key) {
+            return null;
+        }
+
+        @Override
+        public void put(String key, ISObject stuff) {
+        }
+
+        @Override
+        public ISObject remove(String key) {
+            return null;
+        }
+
+        @Override
+        public boolean delete(String key) {
+            return false;
+        }
+
+        @Override
+        public BatchResult<ISObject> getAll(Collection<String> keys) {
+            return new BatchResult<ISObject>();
+        }
+
+        @Override
+        public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+            return new BatchResult<ISObject>();
+        }
+
+        @Override
+        public BatchResult<ISObject> removeAll(Collection<String> keys) {
+            return new BatchResult<ISObject>();
+        }
+
+        @Override
+        public String getUrl(String key) {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "closing " + name_;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root_ = Bench.tempDir("storage_test");
+        Play.applicationPath = root_;
+        Play.tmpDir = root_;
+    }
+
+    @After
+    public void tearDown() {
+        StoragePlugin.service = null;
+        delete_(root_);
+    }
+
+    private static void delete_(File f) {
+        File[] l = f.listFiles();
+        if (null != l) {
+            for (File c : l) {
+                delete_(c);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    public void stopClosesTheServicesOfTheWholeTree() {
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "hot");
+        conf.put("storage.url.root", "/hot");
+        Closing shared = new Closing("shared");
+        ReplicatedStorageService replicated = new ReplicatedStorageService(
+                Arrays.<IStorageService>asList(new Closing("r0"), shared, shared));
+        TieredStorageService tiered = new TieredStorageService(new FileStorageService(conf), replicated);
+        CachingStorageService caching = new CachingStorageService(tiered);
+        caching.configure(conf);
+        StoragePlugin.service = caching;
+
+        String status = new StoragePlugin().getStatus();
+        assertTrue(status, status.contains("storage cache"));
+        assertTrue(status, status.contains("storage replicated"));
+        assertTrue(status, status.contains("closing r0"));
+
+        new StoragePlugin().onApplicationStop();
+        assertEquals(Arrays.asList("r0", "shared"), closed_);
+    }
+}
@@ -0,0 +1,110 @@
+package play.modules.storage.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.bench.Bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The content reads of the objects got from {@link InstrumentedStorageService}
+ * are recorded as they happen, with the bytes actually read
+ */
+public class InstrumentedStorageServiceTest {
+
+    private static final int SIZE = 100000;
+
+    private File root_;
+    private InstrumentedStorageService service_;
+
+    @Before
+    public void setUp() throws IOException {
+        root_ = Bench.tempDir("storage_test");
+        Play.applicationPath = root_;
+        Play.tmpDir = root_;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "files");
+        conf.put("storage.url.root", "/files");
+        service_ = new InstrumentedStorageService(new FileStorageService(conf));
+        service_.configure(conf);
+        service_.put("k", SObject.asSObject("k", new byte[SIZE]));
+    }
+
+    @After
+    public void tearDown() {
+        service_.close();
+        delete_(root_);
+    }
+
+    private static void delete_(File f) {
+        File[] l = f.listFiles();
+        if (null != l) {
+            for (File c : l) {
+                delete_(c);
+            }
+        }
+        f.delete();
+    }
+
+    private long reads_() {
+        return service_.getMetrics(InstrumentedStorageService.Op.READ).latency.getCount();
+    }
+
+    @Test
+    public void metadataReadsNoContent() throws Exception {
+        ISObject sobj = service_.get("k");
+        assertEquals(SIZE, sobj.getLength());
+        assertNotNull(sobj.getETag());
+        assertTrue(sobj.getLastModified() > 0);
+        assertTrue(SObject.exists(sobj));
+        assertEquals(1, service_.getMetrics(InstrumentedStorageService.Op.GET).latency.getCount());
+        assertEquals(0, reads_());
+        assertEquals(0, service_.getBytesOut());
+    }
+
+    @Test
+    public void rangeCountsOnlyItsBytes() throws Exception {
+        InputStream is = service_.get("k").asInputStream(1000, 100);
+        try {
+            while (is.read() >= 0) {
+                // all of the range
+            }
+        } finally {
+            is.close();
+        }
+        assertEquals(100, service_.getBytesOut());
+        assertEquals(1, reads_());
+        assertEquals(0, service_.getMetrics(InstrumentedStorageService.Op.READ).inFlight.get());
+    }
+
+    @Test
+    public void streamClosedEarlyCountsTheBytesRead() throws Exception {
+        InputStream is = service_.get("k").asInputStream();
+        byte[] buf = new byte[10];
+        int n = is.read(buf);
+        is.close();
+        assertEquals(n, service_.getBytesOut());
+        assertEquals(1, reads_());
+    }
+
+    @Test
+    public void wholeContentReadsCountTheLength() throws Exception {
+        ISObject sobj = service_.get("k");
+        assertEquals(SIZE, sobj.asByteArray().length);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(SIZE, sobj.transferTo(Channels.newChannel(os)));
+        assertEquals(2L * SIZE, service_.getBytesOut());
+        assertEquals(2, reads_());
+    }
+}
@@ -0,0 +1,367 @@
+package play.modules.storage.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.storage.BatchResult;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.bench.Bench;
+import play.modules.storage.bench.FakeS3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Quorum writes, write ordering and repairs of {@link ReplicatedStorageService}
+ * on file replicas in a temp folder, and with an S3 replica served by
+ * {@link FakeS3}
+ */
+public class ReplicatedStorageServiceTest {
+
+    private static final long SETTLE_MILLIS = 5000;
+
+    private File root_;
+    private List<Faulty> replicas_;
+    private ReplicatedStorageService service_;
+
+    /**
+     * A file replica which can be taken down, fail its deletes, or hold its
+     * writes until released
+     */
+    static class Faulty implements IStorageService {
+        final IStorageService service;
+        volatile boolean down = false;
+        volatile boolean failDeletes = false;
+        private volatile CountDownLatch held_ = null;
+        private final AtomicInteger inFlight_ = new AtomicInteger();
+        private int maxInFlight_ = 0;
+
+        Faulty(IStorageService service) {
+            this.service = service;
+        }
+
+        void hold() {
+            held_ = new CountDownLatch(1);
+        }
+
+        void release() {
+            CountDownLatch l = held_;
+            held_ = null;
+            if (null != l) l.countDown();
+        }
+
+        /**
+         * @return the max number of writes seen running at the same time
+         */
+        synchronized int getMaxInFlight() {
+            return maxInFlight_;
+        }
+
+        private void begin_() {
+            if (down) throw new IllegalStateException("replica down");
+            int n = inFlight_.incrementAndGet();
+            synchronized (this) {
+                maxInFlight_ = Math.max(maxInFlight_, n);
+            }
+            CountDownLatch l = held_;
+            try {
+                if (null != l) l.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void configure(Map<String, String> conf) {
+        }
+
+        @Override
+        public ISObject get(String key) {
+            if (down) throw new IllegalStateException("replica down");
+            return service.get(key);
+        }
+
+        @Override
+        public void put(String key, ISObject stuff) throws IOException {
+            begin_();
+            try {
+                service.put(key, stuff);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public ISObject remove(String key) {
+            begin_();
+            try {
+                if (failDeletes) throw new IllegalStateException("delete failed");
+                return service.remove(key);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean delete(String key) {
+            begin_();
+            try {
+                if (failDeletes) throw new IllegalStateException("delete failed");
+                return service.delete(key);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public BatchResult<ISObject> getAll(Collection<String> keys) {
+            return service.getAll(keys);
+        }
+
+        @Override
+        public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+            return service.putAll(objects);
+        }
+
+        @Override
+        public BatchResult<ISObject> removeAll(Collection<String> keys) {
+            return service.removeAll(keys);
+        }
+
+        @Override
+        public String getUrl(String key) {
+            return service.getUrl(key);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root_ = Bench.tempDir("storage_test");
+        Play.applicationPath = root_;
+        Play.tmpDir = root_;
+        replicas_ = new ArrayList<Faulty>();
+        for (int i = 0; i < 3; ++i) {
+            Map<String, String> conf = new HashMap<String, String>();
+            conf.put(FileStorageService.CONF_HOME, "r" + i);
+            conf.put("storage.url.root", "/r" + i);
+            replicas_.add(new Faulty(new FileStorageService(conf)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (null != service_) service_.close();
+        for (Faulty r : replicas_) {
+            r.release();
+        }
+        delete_(root_);
+    }
+
+    private static void delete_(File f) {
+        File[] l = f.listFiles();
+        if (null != l) {
+            for (File c : l) {
+                delete_(c);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Replicate on the file replicas, repairs run only when called
+     */
+    private void start_(int quorum) {
+        service_ = new ReplicatedStorageService(new ArrayList<IStorageService>(replicas_));
+        service_.configure(conf_(quorum));
+    }
+
+    private static Map<String, String> conf_(int quorum) {
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(ReplicatedStorageService.CONF_WRITE_QUORUM, String.valueOf(quorum));
+        conf.put(ReplicatedStorageService.CONF_TIMEOUT, "5");
+        conf.put(ReplicatedStorageService.CONF_REPAIR_INTERVAL, "3600");
+        return conf;
+    }
+
+    private void put_(String key, String content) throws IOException {
+        service_.put(key, SObject.asSObject(key, content));
+    }
+
+    /**
+     * @return the content of the key on the replica, <code>null</code> if
+     * it has none
+     */
+    private static String content_(IStorageService r, String key) throws IOException {
+        ISObject sobj = r.get(key);
+        return SObject.exists(sobj) ? sobj.asString() : null;
+    }
+
+    /**
+     * Wait for the replica to reach the expected content of the key
+     */
+    private static void assertSettles_(IStorageService r, String key, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        String content = content_(r, key);
+        while ((null == expected ? null != content : !expected.equals(content))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            content = content_(r, key);
+        }
+        assertEquals(expected, content);
+    }
+
+    private void awaitRepairs_(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (service_.getPendingRepairs() != n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, service_.getPendingRepairs());
+    }
+
+    @Test
+    public void putReturnsAtQuorumAndTheLaggingReplicaCatchesUp() throws Exception {
+        start_(2);
+        Faulty slow = replicas_.get(2);
+        slow.hold();
+        put_("k", "v1");
+        assertEquals("v1", content_(replicas_.get(0), "k"));
+        assertEquals("v1", content_(replicas_.get(1), "k"));
+        assertNull(content_(slow, "k"));
+        slow.release();
+        assertSettles_(slow, "k", "v1");
+        assertEquals(0, service_.getPendingRepairs());
+    }
+
+    @Test
+    public void putFailsWithoutQuorum() throws Exception {
+        start_(2);
+        replicas_.get(1).down = true;
+        replicas_.get(2).down = true;
+        try {
+            put_("k", "v1");
+            fail("put acknowledged by one replica out of a quorum of 2");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void laggingReplicaAppliesTheWritesOfAKeyInOrder() throws Exception {
+        start_(1);
+        Faulty slow = replicas_.get(2);
+        slow.hold();
+        for (int i = 0; i < 10; ++i) {
+            put_("k", "v" + i);
+        }
+        service_.remove("k");
+        put_("k", "last");
+        put_("gone", "v1");
+        service_.delete("gone");
+        slow.release();
+        assertSettles_(slow, "k", "last");
+        assertSettles_(slow, "gone", null);
+        // the other writes of the key waited for the held one
+        assertEquals(2, slow.getMaxInFlight());
+    }
+
+    @Test
+    public void failedWriteIsRepaired() throws Exception {
+        start_(2);
+        Faulty r2 = replicas_.get(2);
+        r2.down = true;
+        put_("k", "v1");
+        awaitRepairs_(1);
+        r2.down = false;
+        assertNull(content_(r2, "k"));
+        assertEquals(1, service_.repair());
+        assertEquals("v1", content_(r2, "k"));
+        assertEquals(0, service_.getPendingRepairs());
+    }
+
+    @Test
+    public void readRepairDoesNotUndoAFailedDelete() throws Exception {
+        start_(2);
+        Faulty r2 = replicas_.get(2);
+        put_("k", "v1");
+        assertSettles_(r2, "k", "v1");
+        r2.failDeletes = true;
+        assertTrue(service_.delete("k"));
+        awaitRepairs_(1);
+        // the copy left on r2 is found after r0 and r1 missed it
+        assertEquals("v1", service_.get("k").asString());
+        r2.failDeletes = false;
+        assertEquals(1, service_.repair());
+        for (Faulty r : replicas_) {
+            assertNull(content_(r, "k"));
+        }
+        assertNull(service_.get("k"));
+    }
+
+    @Test
+    public void repairIsOrderedBeforeALaterWrite() throws Exception {
+        start_(2);
+        Faulty r2 = replicas_.get(2);
+        r2.down = true;
+        put_("k", "v1");
+        awaitRepairs_(1);
+        r2.down = false;
+        r2.hold();
+        Thread repair = new Thread() {
+            @Override
+            public void run() {
+                service_.repair();
+            }
+        };
+        repair.start();
+        // the repair read the sources and holds on r2 with v1
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (r2.getMaxInFlight() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        put_("k", "v2");
+        // time for a write not queued behind the repair to reach r2
+        Thread.sleep(100);
+        r2.release();
+        repair.join(SETTLE_MILLIS);
+        assertSettles_(r2, "k", "v2");
+        assertEquals(1, r2.getMaxInFlight());
+    }
+
+    @Test
+    public void replicatesOnFileAndS3Replicas() throws Exception {
+        FakeS3 fake = new FakeS3();
+        S3Service s3 = new S3Service();
+        try {
+            Map<String, String> conf = conf_(3);
+            conf.put(S3Service.S3_KEY_ID, "test");
+            conf.put(S3Service.S3_KEY_SECRET, "test");
+            conf.put(S3Service.S3_BUCKET, "test");
+            conf.put(S3Service.S3_ENDPOINT, fake.getEndpoint());
+            s3.configure(conf);
+            service_ = new ReplicatedStorageService(Arrays.<IStorageService>asList(replicas_.get(0), replicas_.get(1), s3));
+            service_.configure(conf);
+            put_("k", "v1");
+            assertEquals("v1", content_(replicas_.get(0), "k"));
+            assertEquals("v1", content_(replicas_.get(1), "k"));
+            assertEquals("v1", content_(s3, "k"));
+            assertEquals("v1", service_.remove("k").asString());
+            assertNull(content_(s3, "k"));
+            assertNull(service_.get("k"));
+        } finally {
+            s3.close();
+            fake.stop();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package play.modules.storage.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.storage.ISObject;
+import play.modules.storage.bench.Bench;
+import play.modules.storage.bench.FakeS3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads of {@link S3Service} on {@link FakeS3}: the metadata comes with the
+ * HEAD request of {@link S3Service#get(String)}, the content only with a
+ * streamed GET when it is read
+ */
+public class S3ServiceTest {
+
+    private static final int SIZE = 16 * 1024 * 1024;
+
+    private File root_;
+    private FakeS3 fake_;
+    private S3Service s3_;
+    private byte[] data_;
+
+    @Before
+    public void setUp() throws IOException {
+        root_ = Bench.tempDir("storage_test");
+        Play.applicationPath = root_;
+        Play.tmpDir = root_;
+        fake_ = new FakeS3();
+        s3_ = new S3Service();
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(S3Service.S3_KEY_ID, "test");
+        conf.put(S3Service.S3_KEY_SECRET, "test");
+        conf.put(S3Service.S3_BUCKET, "test");
+        conf.put(S3Service.S3_ENDPOINT, fake_.getEndpoint());
+        s3_.configure(conf);
+        data_ = new byte[SIZE];
+        new Random(1).nextBytes(data_);
+        ISObject sobj = SObject.asSObject("big", data_);
+        sobj.setAttribute(ISObject.ATTR_CONTENT_TYPE, "application/octet-stream");
+        sobj.setAttribute("owner", "test");
+        s3_.put("big", sobj);
+    }
+
+    @After
+    public void tearDown() {
+        s3_.close();
+        fake_.stop();
+        delete_(root_);
+    }
+
+    private static void delete_(File f) {
+        File[] l = f.listFiles();
+        if (null != l) {
+            for (File c : l) {
+                delete_(c);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    public void getAndMetadataTransferNoContent() throws Exception {
+        ISObject sobj = s3_.get("big");
+        assertNotNull(sobj);
+        assertEquals(SIZE, sobj.getLength());
+        assertNotNull(sobj.getETag());
+        assertTrue(sobj.getLastModified() > 0);
+        assertEquals("test", sobj.getAttribute("owner"));
+        assertEquals("application/octet-stream", sobj.getAttribute(ISObject.ATTR_CONTENT_TYPE));
+        assertEquals(0, fake_.getGets());
+        assertEquals(0, fake_.getBodyBytesSent());
+        assertNull(s3_.get("missing"));
+    }
+
+    @Test
+    public void asInputStreamStreamsTheContent() throws Exception {
+        ISObject sobj = s3_.get("big");
+        InputStream is = sobj.asInputStream();
+        try {
+            byte[] head = new byte[1024];
+            int n = 0;
+            while (n < head.length) {
+                n += is.read(head, n, head.length - n);
+            }
+            assertArrayEquals(Arrays.copyOf(data_, head.length), head);
+            // the rest of the content waits for the reader
+            Thread.sleep(100);
+            assertEquals(1, fake_.getGets());
+            assertTrue(fake_.getBodyBytesSent() + " bytes sent before they were read",
+                    fake_.getBodyBytesSent() < SIZE);
+        } finally {
+            is.close();
+        }
+        assertArrayEquals(data_, sobj.asByteArray());
+    }
+
+    @Test
+    public void rangeReadsTransferOnlyTheRange() throws Exception {
+        ISObject sobj = s3_.get("big");
+        InputStream is = sobj.asInputStream(1000, 100);
+        byte[] buf = new byte[100];
+        try {
+            int n = 0;
+            while (n < buf.length) {
+                n += is.read(buf, n, buf.length - n);
+            }
+            assertEquals(-1, is.read());
+        } finally {
+            is.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(data_, 1000, 1100), buf);
+        assertEquals(100, fake_.getBodyBytesSent());
+    }
+}
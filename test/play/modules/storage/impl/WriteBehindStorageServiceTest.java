@@ -0,0 +1,327 @@
+package play.modules.storage.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.modules.storage.BatchResult;
+import play.modules.storage.ISObject;
+import play.modules.storage.IStorageService;
+import play.modules.storage.bench.Bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads of {@link WriteBehindStorageService} to a backend whose calls can
+ * be held: a slow upload blocks neither the callers nor the uploads of
+ * other keys, and the calls of a key reach the backend in order
+ */
+public class WriteBehindStorageServiceTest {
+
+    private static final long SETTLE_MILLIS = 5000;
+
+    /**
+     * Puts and removes blocked by a held upload fail the test at this
+     */
+    private static final long TEST_MILLIS = 10000;
+
+    private File root_;
+    private Held backend_;
+    private WriteBehindStorageService service_;
+
+    /**
+     * A file storage whose calls wait while the key is held, and which logs
+     * the calls it gets
+     */
+    static class Held implements IStorageService {
+        final IStorageService service;
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        private final Map<String, CountDownLatch> held_ = new HashMap<String, CountDownLatch>();
+        private final AtomicInteger inFlight_ = new AtomicInteger();
+        private int maxInFlight_ = 0;
+
+        Held(IStorageService service) {
+            this.service = service;
+        }
+
+        synchronized void hold(String key) {
+            held_.put(key, new CountDownLatch(1));
+        }
+
+        synchronized void release(String key) {
+            CountDownLatch l = held_.remove(key);
+            if (null != l) l.countDown();
+        }
+
+        synchronized void releaseAll() {
+            for (CountDownLatch l : held_.values()) {
+                l.countDown();
+            }
+            held_.clear();
+        }
+
+        synchronized int getMaxInFlight() {
+            return maxInFlight_;
+        }
+
+        private void begin_(String call) {
+            calls.add(call);
+            int n = inFlight_.incrementAndGet();
+            CountDownLatch l;
+            synchronized (this) {
+                maxInFlight_ = Math.max(maxInFlight_, n);
+                l = held_.get(call.substring(call.indexOf(' ') + 1));
+            }
+            try {
+                if (null != l) l.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void configure(Map<String, String> conf) {
+        }
+
+        @Override
+        public ISObject get(String key) {
+            return service.get(key);
+        }
+
+        @Override
+        public void put(String key, ISObject stuff) throws IOException {
+            begin_("put " + key);
+            try {
+                service.put(key, stuff);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public ISObject remove(String key) {
+            begin_("remove " + key);
+            try {
+                return service.remove(key);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean delete(String key) {
+            begin_("delete " + key);
+            try {
+                return service.delete(key);
+            } finally {
+                inFlight_.decrementAndGet();
+            }
+        }
+
+        @Override
+        public BatchResult<ISObject> getAll(Collection<String> keys) {
+            return service.getAll(keys);
+        }
+
+        @Override
+        public BatchResult<ISObject> putAll(Map<String, ISObject> objects) {
+            return service.putAll(objects);
+        }
+
+        @Override
+        public BatchResult<ISObject> removeAll(Collection<String> keys) {
+            return service.removeAll(keys);
+        }
+
+        @Override
+        public String getUrl(String key) {
+            return service.getUrl(key);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root_ = Bench.tempDir("storage_test");
+        Play.applicationPath = root_;
+        Play.tmpDir = root_;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(FileStorageService.CONF_HOME, "backend");
+        conf.put("storage.url.root", "/backend");
+        backend_ = new Held(new FileStorageService(conf));
+        service_ = new WriteBehindStorageService(backend_);
+        conf = new HashMap<String, String>();
+        conf.put(WriteBehindStorageService.CONF_HOME, "queue");
+        conf.put(WriteBehindStorageService.CONF_THREADS, "4");
+        conf.put(WriteBehindStorageService.CONF_SYNC, "false");
+        service_.configure(conf);
+    }
+
+    @After
+    public void tearDown() {
+        backend_.releaseAll();
+        service_.close();
+        delete_(root_);
+    }
+
+    private static void delete_(File f) {
+        File[] l = f.listFiles();
+        if (null != l) {
+            for (File c : l) {
+                delete_(c);
+            }
+        }
+        f.delete();
+    }
+
+    private void put_(String key, String content) throws IOException {
+        service_.put(key, SObject.asSObject(key, content));
+    }
+
+    private String backendContent_(String key) throws IOException {
+        ISObject sobj = backend_.service.get(key);
+        return SObject.exists(sobj) ? sobj.asString() : null;
+    }
+
+    private void awaitCall_(String call) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (!backend_.calls.contains(call) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(call + " never reached the backend", backend_.calls.contains(call));
+    }
+
+    /**
+     * Run the call on another thread
+     */
+    private static Thread start_(Runnable call) {
+        Thread t = new Thread(call);
+        t.start();
+        return t;
+    }
+
+    @Test(timeout = TEST_MILLIS)
+    public void slowUploadBlocksNeitherPutsNorOtherKeys() throws Exception {
+        backend_.hold("k");
+        put_("k", "v1");
+        awaitCall_("put k");
+        // keys of every lock stripe, the held key among them
+        put_("k", "v2");
+        for (int i = 0; i < 200; ++i) {
+            put_("other" + i, "v" + i);
+        }
+        assertEquals("v2", service_.get("k").asString());
+        // left: the held upload and the one waiting for it
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (service_.getPendingCount() > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, service_.getPendingCount());
+        assertEquals("v199", backendContent_("other199"));
+        assertNull(backendContent_("k"));
+        backend_.release("k");
+        assertTrue(service_.flush(SETTLE_MILLIS));
+        assertEquals("v2", backendContent_("k"));
+    }
+
+    @Test(timeout = TEST_MILLIS)
+    public void uploadsOfAKeyRunOneAtATimeInOrder() throws Exception {
+        backend_.hold("k");
+        put_("k", "v1");
+        awaitCall_("put k");
+        for (int i = 2; i <= 10; ++i) {
+            put_("k", "v" + i);
+        }
+        // the later puts wait for the held one, only the last is uploaded
+        Thread.sleep(100);
+        assertEquals(1, backend_.getMaxInFlight());
+        backend_.release("k");
+        assertTrue(service_.flush(SETTLE_MILLIS));
+        assertEquals("v10", backendContent_("k"));
+        assertEquals(2, backend_.calls.size());
+        assertEquals(1, backend_.getMaxInFlight());
+    }
+
+    @Test(timeout = TEST_MILLIS)
+    public void removeWaitsForTheUploadInProgress() throws Exception {
+        backend_.hold("k");
+        put_("k", "v1");
+        awaitCall_("put k");
+        Thread remove = start_(new Runnable() {
+            @Override
+            public void run() {
+                service_.remove("k");
+            }
+        });
+        Thread.sleep(100);
+        // the remove is not sent while the upload runs
+        assertEquals(1, backend_.calls.size());
+        assertTrue(remove.isAlive());
+        backend_.release("k");
+        remove.join(SETTLE_MILLIS);
+        assertFalse(remove.isAlive());
+        assertEquals("remove k", backend_.calls.get(1));
+        assertNull(backendContent_("k"));
+        assertFalse(SObject.exists(service_.get("k")));
+        assertTrue(service_.flush(SETTLE_MILLIS));
+    }
+
+    @Test(timeout = TEST_MILLIS)
+    public void putAfterARemoveIsUploadedAfterIt() throws Exception {
+        put_("k", "v1");
+        assertTrue(service_.flush(SETTLE_MILLIS));
+        backend_.hold("k");
+        Thread delete = start_(new Runnable() {
+            @Override
+            public void run() {
+                service_.delete("k");
+            }
+        });
+        awaitCall_("delete k");
+        put_("k", "v2");
+        Thread.sleep(100);
+        assertEquals(1, backend_.getMaxInFlight());
+        backend_.release("k");
+        delete.join(SETTLE_MILLIS);
+        assertTrue(service_.flush(SETTLE_MILLIS));
+        assertEquals("v2", backendContent_("k"));
+        assertEquals("put k", backend_.calls.get(backend_.calls.size() - 1));
+    }
+
+    @Test(timeout = TEST_MILLIS)
+    public void failedUploadIsRetriedWithoutBlockingTheKey() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        WriteBehindStorageService service = new WriteBehindStorageService(new Held(backend_.service) {
+            @Override
+            public void put(String key, ISObject stuff) throws IOException {
+                if (failures.getAndDecrement() > 0) throw new IOException("backend down");
+                super.put(key, stuff);
+            }
+        });
+        service_.close();
+        service_ = service;
+        Map<String, String> conf = new HashMap<String, String>();
+        conf.put(WriteBehindStorageService.CONF_HOME, "queue2");
+        conf.put(WriteBehindStorageService.CONF_SYNC, "false");
+        service_.configure(conf);
+        put_("k", "v1");
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (failures.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the retry waits for its delay, a remove meanwhile cancels it
+        assertTrue(service_.delete("k"));
+        assertTrue(service_.flush(SETTLE_MILLIS));
+        assertNull(backendContent_("k"));
+    }
+}